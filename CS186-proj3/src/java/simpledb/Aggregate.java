@@ -1,29 +1,37 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min). It computes any number of aggregates, grouped by any number of
+ * columns, in one pass over its child.  Groups beyond its memory budget
+ * are spilled to disk as partial aggregates and merged afterwards.  A
+ * child that returns batches is read a batch at a time.
+ * <p>
+ * Over a child with no tuples, an ungrouped Aggregate of only COUNTs
+ * returns one tuple of zeros, as SQL does.  Any other aggregate of no
+ * tuples has no value, and there is no NULL to return for it.  So an
+ * ungrouped Aggregate with one returns no tuples, as does any grouped
+ * Aggregate.
+ *
+ * @see GroupAggregator
  */
-public class Aggregate extends Operator {
+public class Aggregate extends Operator implements BatchedDbIterator {
 
     private static final long serialVersionUID = 1L;
 	private DbIterator dbi;
-	private int aggfield;
-	private int groupfield;
-	private Aggregator.Op operator;
-	private Aggregator aggregate;
+	private int[] aggfields;
+	private int[] groupfields;
+	private Aggregator.Op[] operators;
+	private final int memoryGroups;
+	private GroupAggregator aggregate;
 	private DbIterator aggIt;
+	private transient TupleBatch batch = null;
     /**
      * Constructor.
      * 
-     * Implementation hint: depending on the type of afield, you will want to
-     * construct an {@link IntAggregator} or {@link StringAggregator} to help
-     * you with your implementation of readNext().
-     * 
-     * 
      * @param child
      *            The DbIterator that is feeding us tuples.
      * @param afield
@@ -35,28 +43,72 @@ public class Aggregate extends Operator {
      *            The aggregation operator to use
      */
     public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop) {
-        // some code goes here
+        this(child, new int[] { afield }, new Aggregator.Op[] { aop },
+                gfield == Aggregator.NO_GROUPING ? new int[0] : new int[] { gfield });
+    }
+
+    /**
+     * Constructor for several aggregates over a composite group key.
+     *
+     * @param child
+     *            The DbIterator that is feeding us tuples.
+     * @param afields
+     *            The columns over which we are computing aggregates.
+     * @param aops
+     *            The aggregation operator for each of afields
+     * @param gfields
+     *            The columns over which we are grouping the result, or an
+     *            empty array if there is no grouping
+     */
+    public Aggregate(DbIterator child, int[] afields, Aggregator.Op[] aops, int[] gfields) {
+        this(child, afields, aops, gfields, GroupAggregator.DEFAULT_MEMORY_GROUPS);
+    }
+
+    /**
+     * Constructor for aggregates that hold at most memoryGroups groups in
+     * memory, spilling the rest to disk.
+     */
+    public Aggregate(DbIterator child, int[] afields, Aggregator.Op[] aops, int[] gfields,
+            int memoryGroups) {
+        if (afields.length == 0 || afields.length != aops.length)
+            throw new IllegalArgumentException("need one operator per aggregate field");
         this.dbi = child;
-        this.aggfield = afield;
-        this.groupfield = gfield;
-        this.operator = aop;
-        //creating the aggregators for either int or string types
-        if (this.dbi.getTupleDesc().getFieldType(this.aggfield) == Type.INT_TYPE) {
-            if (this.groupfield != -1) {
-                aggregate = new IntegerAggregator(this.groupfield, this.dbi.getTupleDesc().getFieldType(this.groupfield), this.aggfield, this.operator);
-            }
-            else {
-                aggregate = new IntegerAggregator(this.groupfield, null, this.aggfield, this.operator);
-            }
-        } 
-        else{
-            if (this.groupfield != -1) {
-                aggregate = new StringAggregator(this.groupfield, this.dbi.getTupleDesc().getFieldType(this.groupfield), this.aggfield, this.operator);
-            }
-            else {
-                aggregate = new StringAggregator(this.groupfield, null, this.aggfield, this.operator);
-            }
+        this.aggfields = afields.clone();
+        this.groupfields = gfields.clone();
+        this.operators = aops.clone();
+        this.memoryGroups = memoryGroups;
+        // fails here, rather than in open, if an op cannot aggregate its field
+        this.aggregate = newAggregator();
+    }
+
+    /**
+     * Create an empty aggregator for the aggregates; each open gets its own,
+     * so reopening does not count the child twice.
+     */
+    private GroupAggregator newAggregator() {
+        return new GroupAggregator(this.dbi.getTupleDesc(), this.groupfields,
+                this.aggfields, this.operators, this.memoryGroups);
+    }
+
+    /**
+     * @return the TupleDesc of the output of aggregates aops over afields of
+     *         child tuples of td, grouped by gfields: the group-by fields,
+     *         then a field named "aop(afield)" for each aggregate
+     */
+    static TupleDesc outputTupleDesc(TupleDesc td, int[] gfields, int[] afields,
+            Aggregator.Op[] aops) {
+        Type[] types = new Type[gfields.length + afields.length];
+        String[] names = new String[types.length];
+        for (int j = 0; j < gfields.length; j++) {
+            types[j] = td.getFieldType(gfields[j]);
+            names[j] = td.getFieldName(gfields[j]);
+        }
+        for (int a = 0; a < afields.length; a++) {
+            types[gfields.length + a] = Type.INT_TYPE;
+            names[gfields.length + a] = nameOfAggregatorOp(aops[a]) + "("
+                    + td.getFieldName(afields[a]) + ")";
         }
+        return new TupleDesc(types, names);
     }
 
     /**
@@ -65,8 +117,15 @@ public class Aggregate extends Operator {
      *         {@link simpledb.Aggregator#NO_GROUPING}
      * */
     public int groupField() {
-		// some code goes here
-		return this.groupfield;
+		return this.groupfields.length == 0 ? Aggregator.NO_GROUPING : this.groupfields[0];
+    }
+
+    /**
+     * @return the groupby field indexes in the <b>INPUT</b> tuples, which
+     *         are the first fields of the output tuples, in order
+     * */
+    public int[] groupFields() {
+		return this.groupfields.clone();
     }
 
     /**
@@ -75,21 +134,27 @@ public class Aggregate extends Operator {
      *         null;
      * */
     public String groupFieldName() {
-		// some code goes here
-		if(this.groupfield == -1) {
+		if(this.groupfields.length == 0) {
 			return null;
 		}
 		else {
-			return this.dbi.getTupleDesc().getFieldName(this.groupfield);
+			return this.dbi.getTupleDesc().getFieldName(this.groupfields[0]);
 		}
     }
 
     /**
-     * @return the aggregate field
+     * @return the aggregate field, or the first of them
      * */
     public int aggregateField() {
-		// some code goes here
-		return this.aggfield;
+		return this.aggfields[0];
+    }
+
+    /**
+     * @return the aggregate fields, in the order of the aggregates in the
+     *         output tuples
+     * */
+    public int[] aggregateFields() {
+		return this.aggfields.clone();
     }
 
     /**
@@ -97,16 +162,21 @@ public class Aggregate extends Operator {
      *         tuples
      * */
     public String aggregateFieldName() {
-		// some code goes here
-		return this.dbi.getTupleDesc().getFieldName(this.aggfield);
+		return this.dbi.getTupleDesc().getFieldName(this.aggfields[0]);
     }
 
     /**
-     * @return return the aggregate operator
+     * @return return the aggregate operator, or the first of them
      * */
     public Aggregator.Op aggregateOp() {
-		// some code goes here
-		return this.operator;
+		return this.operators[0];
+    }
+
+    /**
+     * @return the aggregate operators, one per aggregate field
+     * */
+    public Aggregator.Op[] aggregateOps() {
+		return this.operators.clone();
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
@@ -115,22 +185,41 @@ public class Aggregate extends Operator {
 
     public void open() throws NoSuchElementException, DbException,
 	    TransactionAbortedException {
-		// some code goes here
 		super.open();
 		this.dbi.open();
-		while (this.dbi.hasNext()) {
-          	this.aggregate.mergeTupleIntoGroup(this.dbi.next());
-        }
-        this.aggIt = aggregate.iterator();
+        this.aggIt = groups(this.dbi);
         this.aggIt.open();
     }
 
     /**
-     * Returns the next tuple. If there is a group by field, then the first
-     * field is the field by which we are grouping, and the second field is the
-     * result of computing the aggregate, If there is no group by field, then
-     * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * @return an iterator over the groups of the open child, which is
+     *         rewound and closed with this operator.  This builds every
+     *         group before returning; subclasses may compute them as they
+     *         are read.
+     */
+    protected DbIterator groups(DbIterator child) throws DbException,
+            TransactionAbortedException {
+		this.aggregate = newAggregator();
+		try {
+			if (child instanceof BatchedDbIterator) {
+				TupleBatch b;
+				while ((b = ((BatchedDbIterator) child).nextBatch()) != null)
+					this.aggregate.merge(b);
+			} else {
+				while (child.hasNext()) {
+					this.aggregate.merge(child.next());
+				}
+			}
+		} catch (IOException e) {
+			throw new DbException("could not spill aggregate: " + e);
+		}
+        return aggregate.iterator();
+    }
+
+    /**
+     * Returns the next tuple. Its first fields are the fields by which we
+     * are grouping, if any, and the rest are the results of computing the
+     * aggregates. Should return null if there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
 		// some code goes here
@@ -142,6 +231,12 @@ public class Aggregate extends Operator {
 		}
     }
 
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+		if (this.batch == null)
+			this.batch = new TupleBatch(getTupleDesc());
+		return TupleBatch.read(aggIt, this.batch);
+    }
+
     public void rewind() throws DbException, TransactionAbortedException {
 		// some code goes here
 		//super.rewind();
@@ -150,10 +245,8 @@ public class Aggregate extends Operator {
     }
 
     /**
-     * Returns the TupleDesc of this Aggregate. If there is no group by field,
-     * this will have one field - the aggregate column. If there is a group by
-     * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * Returns the TupleDesc of this Aggregate: the group by fields, if any,
+     * then one field per aggregate.
      * 
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
@@ -161,32 +254,16 @@ public class Aggregate extends Operator {
      * iterator.
      */
     public TupleDesc getTupleDesc() {
-		// some code goes here
-		//List<Tuple> myList = new ArrayList<Tuple> ();
-        TupleDesc myTD;
-        Type[] tdType;
-        String[] tdString;
-        if(this.aggfield == -1){
-        	tdType = new Type[] {this.dbi.getTupleDesc().getFieldType(this.aggfield)};
-        	String aggcol = this.operator.toString() + "(" + dbi.getTupleDesc().getFieldName(this.aggfield) + ")";
-        	tdString = new String[] {aggcol};
-        	myTD = new TupleDesc(tdType,tdString);
-            return myTD;     
-        } 
-        else{
-        	tdType = new Type[] {this.dbi.getTupleDesc().getFieldType(this.groupfield), this.dbi.getTupleDesc().getFieldType(this.aggfield)};
-        	String aggcol = this.operator.toString() + "(" + dbi.getTupleDesc().getFieldName(this.aggfield) + ")";
-        	tdString = new String[] {this.dbi.getTupleDesc().getFieldName(this.groupfield), aggcol};
-			myTD = new TupleDesc(tdType, tdString);
-            return myTD;    
-        }
+		return outputTupleDesc(this.dbi.getTupleDesc(), this.groupfields,
+				this.aggfields, this.operators);
     }
 
     public void close() {
 	// some code goes here
 		super.close();
 		this.dbi.close();
-		aggIt.close();
+		if (aggIt != null)
+			aggIt.close();
     }
 
     @Override
@@ -199,6 +276,7 @@ public class Aggregate extends Operator {
     public void setChildren(DbIterator[] children) {
 		// some code goes here
 		this.dbi = children[0];
+		this.batch = null;
     }
     
 }
@@ -0,0 +1,24 @@
+package simpledb;
+
+/**
+ * BatchedDbIterator is a DbIterator that can also return its tuples a
+ * TupleBatch at a time, so that an operator above it handles each batch
+ * with a loop over its columns rather than a call per tuple.  Any
+ * DbIterator can be read in batches with {@link TupleBatch#read}.
+ * <p>
+ * Between an open or rewind and the end of the tuples, an iterator is
+ * read either by next or by nextBatch, not both.
+ */
+public interface BatchedDbIterator extends DbIterator {
+
+  /**
+   * Returns the next tuples of the iterator.  The batch may be reused for
+   * the batch after it, so it is only valid until the next call to
+   * nextBatch, rewind or close.
+   *
+   * @return a batch of at least one selected tuple, or null if there are
+   *         no more tuples
+   * @throws IllegalStateException If the iterator has not been opened
+   */
+  public TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+}
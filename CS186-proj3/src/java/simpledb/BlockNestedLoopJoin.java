@@ -0,0 +1,130 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * BlockNestedLoopJoin is a Join that reads the outer (left) child a block
+ * at a time and scans the inner (right) child once per block rather than
+ * once per outer tuple, comparing each inner tuple with the whole block.
+ * A block holds as many outer tuples as fit in blockBytes, counting each
+ * at its size on a page.  With b tuples per block, the inner child is
+ * rewound |outer| / b times instead of |outer| times.
+ * <p>
+ * The result is the same as Join's, but it comes out ordered by block,
+ * then by inner tuple, then by outer tuple within the block.
+ *
+ * @see JoinOptimizer#estimateJoinCost
+ */
+public class BlockNestedLoopJoin extends Join {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default memory budget for a block of outer tuples, in bytes */
+    public static final int DEFAULT_BLOCK_BYTES = 256 * BufferPool.PAGE_SIZE;
+
+    private final int blockBytes;
+    private TupleDesc comboTD;
+    private transient ArrayList<Tuple> block = new ArrayList<Tuple>();
+    private transient Tuple inner = null;
+    private transient int nextOuter = 0;
+
+    /**
+     * Constructor. Accepts two children to join, the predicate to join them
+     * on and the memory budget for a block of outer tuples
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param blockBytes
+     *            Bytes of outer tuples to hold in memory at once
+     */
+    public BlockNestedLoopJoin(JoinPredicate p, DbIterator child1,
+            DbIterator child2, int blockBytes) {
+        super(p, child1, child2);
+        this.blockBytes = blockBytes;
+    }
+
+    /** Constructor using DEFAULT_BLOCK_BYTES for the block. */
+    public BlockNestedLoopJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, DEFAULT_BLOCK_BYTES);
+    }
+
+    /**
+     * @return the number of tuples of tupleSize bytes that fit in a block
+     *   of blockBytes; at least one
+     */
+    public static int blockTuples(int tupleSize, int blockBytes) {
+        return Math.max(1, blockBytes / Math.max(1, tupleSize));
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        comboTD = getTupleDesc();
+        loadBlock();
+    }
+
+    public void close() {
+        super.close();
+        block.clear();
+        inner = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        super.rewind();
+        loadBlock();
+    }
+
+    /** Read the next block of outer tuples, and start the inner over. */
+    private boolean loadBlock() throws DbException, TransactionAbortedException {
+        DbIterator outer = getChildren()[0];
+        int capacity = blockTuples(outer.getTupleDesc().getSize(), blockBytes);
+        block.clear();
+        inner = null;
+        while (block.size() < capacity && outer.hasNext()) {
+            block.add(outer.next());
+        }
+        return !block.isEmpty();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples.
+     *
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        DbIterator child2 = getChildren()[1];
+        JoinPredicate jp = getJoinPredicate();
+        while (!block.isEmpty()) {
+            if (inner != null) {
+                while (nextOuter < block.size()) {
+                    Tuple outer = block.get(nextOuter++);
+                    if (jp.filter(outer, inner))
+                        return merge(outer, inner);
+                }
+            }
+            if (child2.hasNext()) {
+                inner = child2.next();
+                nextOuter = 0;
+            } else if (loadBlock()) {
+                child2.rewind();
+            }
+        }
+        return null;
+    }
+
+    private Tuple merge(Tuple outer, Tuple inner) {
+        int n1 = outer.getTupleDesc().numFields();
+        int n2 = inner.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < n1; i++)
+            t.setField(i, outer.getField(i));
+        for (int i = 0; i < n2; i++)
+            t.setField(n1 + i, inner.getField(i));
+        return t;
+    }
+}
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
@@ -23,6 +24,16 @@ public class BufferPool {
     public static final int DEFAULT_PAGES = 50;
 	public int pageNum;
     public HashMap<PageId, Page> cache;
+    private final LockManager lockManager = new LockManager();
+    private final VersionStore versions = new VersionStore();
+
+    /**
+     * Guards the page cache.  A ReentrantLock rather than the BufferPool's
+     * monitor: it is held across page reads and writes, and a virtual
+     * thread blocked on I/O under a monitor would pin its carrier thread.
+     * LogFile takes it before its own latch.
+     */
+    final ReentrantLock latch = new ReentrantLock();
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -35,6 +46,11 @@ public class BufferPool {
         this.cache = new HashMap<PageId, Page>();
     }
 
+    /** Return the lock manager guarding this buffer pool's pages */
+    public LockManager getLockManager() {
+        return this.lockManager;
+    }
+
     private boolean isBufferFull() {
 
         return this.cache.size() >= this.pageNum;
@@ -64,10 +80,49 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
      * @param perm the requested permissions on the page
+     * <p>
+     * A snapshot transaction takes no lock; it gets the version of the
+     * page committed as of its start, which it must not modify.
+     *
+     * @throws TransactionAbortedException if waiting for the lock would
+     *   deadlock; the transaction must then be aborted
      */
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
+        if (this.versions.isSnapshot(tid)) {
+            if (perm != Permissions.READ_ONLY)
+                throw new DbException("snapshot transactions are read only");
+            return this.getSnapshotPage(tid, pid);
+        }
+        // lock first, and outside the latch: this may block
+        this.lockManager.acquire(tid, pid, perm);
+        latch.lock();
+        try {
+            Page page = this.loadPage(tid, pid);
+            if (perm == Permissions.READ_WRITE) {
+                try {
+                    this.versions.beforeWrite(tid, page);
+                } catch (IOException e) {
+                    throw new DbException("cannot keep version of " + pid + ": " + e);
+                }
+            }
+            return page;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private Page loadPage(TransactionId tid, PageId pid) throws DbException {
+        latch.lock();
+        try {
+            return loadPageLatched(tid, pid);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private Page loadPageLatched(TransactionId tid, PageId pid) throws DbException {
 		if(!isPageInCache(pid)) {
 			if (this.isBufferFull()) {
 				this.evictPage();
@@ -76,9 +131,115 @@ public class BufferPool {
 			Page page = dbf.readPage(pid);
 			page.markDirty(false, tid);
 			cache.put(pid, page);
-			
 		}
-        return this.cache.get(pid);
+		return this.cache.get(pid);
+    }
+
+    private Page getSnapshotPage(TransactionId tid, PageId pid) throws DbException {
+        latch.lock();
+        try {
+            return getSnapshotPageLatched(tid, pid);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private Page getSnapshotPageLatched(TransactionId tid, PageId pid) throws DbException {
+        Page page = this.versions.visible(tid, pid);
+        if (page != null)
+            return page;
+        // nobody is writing pid now, but a writer may change the cached
+        // copy while the snapshot still reads it
+        try {
+            return VersionStore.copyOf(this.loadPage(tid, pid));
+        } catch (IOException e) {
+            throw new DbException("cannot copy " + pid + ": " + e);
+        }
+    }
+
+    /**
+     * Retrieve a page whose tuples tid is going to insert or delete one at
+     * a time.  Takes an intention-exclusive lock on the page rather than
+     * an exclusive one, so that other transactions can change other tuples
+     * of it at the same time; each tuple changed must be locked with
+     * lockTuple.
+     *
+     * @see HeapFile#insertTuple
+     * @see HeapFile#deleteTuple
+     */
+    public Page getPageForUpdate(TransactionId tid, PageId pid)
+        throws TransactionAbortedException, DbException {
+        if (this.versions.isSnapshot(tid))
+            throw new DbException("snapshot transactions are read only");
+        this.lockManager.acquireForUpdate(tid, pid);
+        latch.lock();
+        try {
+            Page page = this.loadPage(tid, pid);
+            try {
+                this.versions.beforeWrite(tid, page);
+            } catch (IOException e) {
+                throw new DbException("cannot keep version of " + pid + ": " + e);
+            }
+            return page;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Lock a single tuple for tid, on a page retrieved with
+     * getPageForUpdate.  May block, and may escalate tid's tuple locks to
+     * a lock on the whole page or table.
+     *
+     * @throws TransactionAbortedException if waiting for the lock would
+     *   deadlock; the transaction must then be aborted
+     */
+    public void lockTuple(TransactionId tid, RecordId rid, Permissions perm)
+        throws TransactionAbortedException {
+        this.lockManager.acquireTuple(tid, rid, perm);
+    }
+
+    /** @return true if page holds uncommitted changes of tid */
+    private static boolean changedBy(Page page, TransactionId tid) {
+        TransactionId dirtier = page.isDirty();
+        if (dirtier != null && dirtier.equals(tid))
+            return true;
+        return page instanceof HeapPage && ((HeapPage) page).getWriters().contains(tid);
+    }
+
+    /**
+     * Called by the log once tid's logged changes to pid have been undone
+     * on disk.  A cached copy that other transactions are also changing is
+     * kept, and tid's tuples in it are reverted by transactionComplete;
+     * any other cached copy is dropped and will be read back from disk.
+     */
+    void rolledBack(TransactionId tid, PageId pid) {
+        latch.lock();
+        try {
+            rolledBackLatched(tid, pid);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private void rolledBackLatched(TransactionId tid, PageId pid) {
+        Page page = this.cache.get(pid);
+        if (page instanceof HeapPage) {
+            Set<TransactionId> writers = ((HeapPage) page).getWriters();
+            writers.remove(tid);
+            if (!writers.isEmpty())
+                return;
+        }
+        this.discardPage(pid);
+    }
+
+    /**
+     * Start a read-only snapshot for tid.  Its reads see the pages as
+     * committed at this point, take no locks, and neither block nor are
+     * blocked by writers.  End it with transactionComplete.
+     */
+    public void beginSnapshot(TransactionId tid) {
+        this.versions.beginSnapshot(tid);
     }
 
     /**
@@ -92,7 +253,8 @@ public class BufferPool {
      */
     public  void releasePage(TransactionId tid, PageId pid) {
         // some code goes here
-        // not necessary for proj1
+        this.versions.released(tid, pid);
+        this.lockManager.release(tid, pid);
     }
 
     /**
@@ -102,14 +264,13 @@ public class BufferPool {
      */
     public void transactionComplete(TransactionId tid) throws IOException {
         // some code goes here
-        // not necessary for proj1
+        transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
-        // not necessary for proj1
-        return false;
+        return this.lockManager.holdsLock(tid, p);
     }
 
     /**
@@ -122,7 +283,60 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
         // some code goes here
-        // not necessary for proj1
+        if (this.versions.isSnapshot(tid)) {
+            this.versions.endSnapshot(tid);
+            return;
+        }
+        if (!commit) {
+            // the log has already restored whatever this transaction
+            // flushed; drop the cached copies it dirtied but never wrote,
+            // or revert its tuples where other transactions share the page
+            latch.lock();
+            try {
+                ArrayList<PageId> dirtied = new ArrayList<PageId>();
+                for (Page page : this.cache.values()) {
+                    if (!changedBy(page, tid))
+                        continue;
+                    Set<TransactionId> others = page instanceof HeapPage
+                        ? ((HeapPage) page).getWriters() : new HashSet<TransactionId>();
+                    others.remove(tid);
+                    if (others.isEmpty()) {
+                        dirtied.add(page.getId());
+                    } else {
+                        ((HeapPage) page).revertSlots(tid);
+                        // the disk copy may hold tid's tuples again
+                        page.markDirty(true, others.iterator().next());
+                    }
+                }
+                for (PageId pid : dirtied) {
+                    this.discardPage(pid);
+                }
+                this.versions.abort(tid);
+            } finally {
+                latch.unlock();
+            }
+        } else {
+            // publish the new versions before other writers can get at
+            // them, then make tid's tuples part of the before images
+            latch.lock();
+            try {
+                ArrayList<Page> written = new ArrayList<Page>();
+                for (PageId pid : this.versions.writtenBy(tid)) {
+                    Page page = this.cache.get(pid);
+                    if (page == null)
+                        page = Database.getCatalog().getDbFile(pid.getTableId()).readPage(pid);
+                    written.add(page);
+                }
+                this.versions.commit(tid, written);
+                for (Page page : this.cache.values()) {
+                    if (page instanceof HeapPage)
+                        ((HeapPage) page).commitSlots(tid);
+                }
+            } finally {
+                latch.unlock();
+            }
+        }
+        this.lockManager.releaseAll(tid);
     }
 
     /**
@@ -147,7 +361,12 @@ public class BufferPool {
         HeapFile f = (HeapFile)Database.getCatalog().getDbFile(tableId);
         HeapPage pg = (HeapPage)f.insertTuple(tid, t).get(0);
         pg.markDirty(true, tid);
-        cache.put(pg.getId(), pg);
+        latch.lock();
+        try {
+            cache.put(pg.getId(), pg);
+        } finally {
+            latch.unlock();
+        }
         
     }
 
@@ -179,7 +398,16 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
+        latch.lock();
+        try {
+            flushAllPagesLatched();
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private void flushAllPagesLatched() throws IOException {
         // some code goes here
         // not necessary for proj1
         //pull full set of keys from cache and flush each of them individually
@@ -195,7 +423,16 @@ public class BufferPool {
         buffer pool doesn't keep a rolled back page in its
         cache.
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
+        latch.lock();
+        try {
+            discardPageLatched(pid);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private void discardPageLatched(PageId pid) {
         // some code goes here
 		// not necessary for proj1
 		this.cache.remove(pid);
@@ -206,12 +443,43 @@ public class BufferPool {
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
+        latch.lock();
+        try {
+            flushPageLatched(pid);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private void flushPageLatched(PageId pid) throws IOException {
         // some code goes here
         // not necessary for proj1
-        HeapPage pgf = (HeapPage)this.cache.get(pid);
-        if(pgf.isDirty() != null) {
-        	Database.getCatalog().getDbFile(pid.getTableId()).writePage(pgf);
+        Page pgf = this.cache.get(pid);
+        // no tuple may change between logging the page and writing it
+        HeapPage hp = pgf instanceof HeapPage ? (HeapPage) pgf : null;
+        if (hp != null)
+            hp.latch.lock();
+        try {
+            TransactionId dirtier = pgf.isDirty();
+            if(dirtier != null) {
+                // write-ahead: the update records must be durable before
+                // the page; each transaction with changes in it gets its
+                // own, so that it can be undone alone
+                Page before = pgf.getBeforeImage();
+                Collection<TransactionId> writers = Collections.singleton(dirtier);
+                if (pgf instanceof HeapPage && !((HeapPage) pgf).getWriters().isEmpty())
+                    writers = ((HeapPage) pgf).getWriters();
+                for (TransactionId writer : writers) {
+                    Database.getLogFile().logWrite(writer, before, pgf);
+                }
+                Database.getLogFile().force();
+            	Database.getCatalog().getDbFile(pid.getTableId()).writePage(pgf);
+                pgf.markDirty(false, null);
+            }
+        } finally {
+            if (hp != null)
+                hp.latch.unlock();
         }
         
         
@@ -219,14 +487,28 @@ public class BufferPool {
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
+        latch.lock();
+        try {
+            flushPagesLatched(tid);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private void flushPagesLatched(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for proj1
         //Collection<Page> cachePages = this.cache.values();
         
         for(Page page : this.cache.values()) {
-        	if (page.isDirty() != null && tid.equals(page.isDirty())) {
+        	if (changedBy(page, tid)) {
         		this.flushPage(page.getId());
+        		// the flushed contents are now what a later rollback of
+        		// another transaction must restore.  HeapPages track this
+        		// per tuple instead, in transactionComplete.
+        		if (!(page instanceof HeapPage))
+        			page.setBeforeImage();
         	}
         	
         }
@@ -236,13 +518,24 @@ public class BufferPool {
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
      */
-    private synchronized  void evictPage() throws DbException {
+    private void evictPage() throws DbException {
+        latch.lock();
+        try {
+            evictPageLatched();
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private void evictPageLatched() throws DbException {
         // some code goes here
         // not necessary for proj1
         
         for (PageId pid: this.cache.keySet()) {
             Page p = this.cache.get(pid);
             //System.out.println(p+ " " + pid);
+            if (!this.isStealable(p))
+                continue;
             
             try {
                 this.flushPage(pid);
@@ -253,7 +546,26 @@ public class BufferPool {
             }
             return;
         }
-   	}
+        throw new DbException("every cached page has uncommitted changes of several transactions");
+    }
+
+    /**
+     * A HeapPage with uncommitted changes keeps its before image and the
+     * record of who changed which tuple only while it is cached, so it
+     * can only be evicted if a single transaction changed it, and only
+     * after that transaction's lock on it is made exclusive: nobody else
+     * may change the copy read back until that transaction completes.
+     */
+    private boolean isStealable(Page p) {
+        if (!(p instanceof HeapPage))
+            return true;
+        Set<TransactionId> writers = ((HeapPage) p).getWriters();
+        if (writers.isEmpty())
+            return true;
+        if (writers.size() > 1)
+            return false;
+        return this.lockManager.tryExclusive(writers.iterator().next(), p.getId());
+    }
      
      /*
         HeapPage evictee = null;
@@ -28,6 +28,13 @@ public interface DbFile extends Serializable {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Force every page written so far to stable storage.
+     *
+     * @throws IOException if the force fails
+     */
+    public void force() throws IOException;
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -0,0 +1,235 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * ExternalSort returns the tuples of its child in the order given by a
+ * comparator, sorting in memory when they fit and with an external merge
+ * sort when they do not.  Open reads the whole child: each memoryTuples
+ * of them are split into sortThreads slices, which are sorted in parallel
+ * on the fork-join pool that Gather's workers share, and written to runs
+ * in SpillFiles.  The runs are merged with a heap,
+ * MERGE_FAN_IN at a time, until few enough are left to merge as the
+ * tuples are returned.  The sort is stable.
+ * <p>
+ * Rewinding returns the sorted tuples again without reading the child.
+ *
+ * @see SortMergeJoin
+ */
+class ExternalSort implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of tuples sorted in memory */
+    public static final int DEFAULT_MEMORY_TUPLES = 20000;
+    /** Most runs merged at once */
+    static final int MERGE_FAN_IN = 64;
+    /** Most slices sorted at once */
+    static int sortThreads = Runtime.getRuntime().availableProcessors();
+    /** Fewest tuples worth sorting on a thread of their own */
+    static final int MIN_SLICE = 1024;
+
+    private final DbIterator child;
+    private final Comparator<Tuple> comparator;
+    private final int memoryTuples;
+
+    // the sorted tuples, if they fit in memory
+    private transient ArrayList<Tuple> memory = null;
+    private transient int nextInMemory = 0;
+    // the sorted runs otherwise, and the next tuple of each being merged
+    private transient ArrayList<SpillFile> runs = null;
+    private transient PriorityQueue<Head> heads = null;
+
+    /** The next unread tuple of a run */
+    private class Head implements Comparable<Head> {
+        final int run;
+        Tuple t;
+
+        Head(int run, Tuple t) {
+            this.run = run;
+            this.t = t;
+        }
+
+        public int compareTo(Head h) {
+            int c = comparator.compare(t, h.t);
+            // ties go to the earlier run, keeping the sort stable
+            return c != 0 ? c : run - h.run;
+        }
+    }
+
+    /**
+     * @param child the tuples to sort
+     * @param comparator the order to return them in
+     * @param memoryTuples the most tuples to hold in memory at once
+     */
+    ExternalSort(DbIterator child, Comparator<Tuple> comparator, int memoryTuples) {
+        this.child = child;
+        this.comparator = comparator;
+        this.memoryTuples = Math.max(1, memoryTuples);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    /** @return the number of runs the tuples were merged from, or 0 if
+        they were sorted in memory */
+    int numRuns() {
+        return runs == null ? 0 : runs.size();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        clear();
+        child.open();
+        try {
+            ArrayList<Tuple> buffer = new ArrayList<Tuple>();
+            while (child.hasNext()) {
+                buffer.add(child.next());
+                if (buffer.size() == memoryTuples) {
+                    writeRuns(buffer);
+                    buffer.clear();
+                }
+            }
+            if (runs == null) {
+                Collections.sort(buffer, comparator);
+                memory = buffer;
+            } else {
+                if (!buffer.isEmpty())
+                    writeRuns(buffer);
+                while (runs.size() > MERGE_FAN_IN)
+                    mergePass();
+            }
+            rewind();
+        } catch (IOException e) {
+            throw new DbException("could not spill sort run: " + e);
+        }
+    }
+
+    /** Sort buffer into runs, a slice per thread, and spill them. */
+    private void writeRuns(ArrayList<Tuple> buffer) throws IOException {
+        if (runs == null)
+            runs = new ArrayList<SpillFile>();
+        int slices = Math.max(1, Math.min(sortThreads, buffer.size() / MIN_SLICE));
+        if (slices == 1) {
+            runs.add(writeRun(buffer));
+            return;
+        }
+        ArrayList<Future<SpillFile>> done = new ArrayList<Future<SpillFile>>();
+        for (int i = 0; i < slices; i++) {
+            final List<Tuple> slice = buffer.subList(buffer.size() * i / slices,
+                    buffer.size() * (i + 1) / slices);
+            done.add(Gather.pool.submit(new Callable<SpillFile>() {
+                public SpillFile call() throws IOException {
+                    return writeRun(slice);
+                }
+            }));
+        }
+        // keep the runs in input order, for stability
+        for (Future<SpillFile> f : done) {
+            try {
+                runs.add(f.get());
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted while sorting");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    private SpillFile writeRun(List<Tuple> tuples) throws IOException {
+        Collections.sort(tuples, comparator);
+        SpillFile run = new SpillFile(getTupleDesc());
+        for (Tuple t : tuples)
+            run.add(t);
+        return run;
+    }
+
+    /** Merge the runs, MERGE_FAN_IN at a time, into fewer longer ones. */
+    private void mergePass() throws IOException {
+        ArrayList<SpillFile> merged = new ArrayList<SpillFile>();
+        for (int from = 0; from < runs.size(); from += MERGE_FAN_IN) {
+            List<SpillFile> group = runs.subList(from, Math.min(runs.size(), from + MERGE_FAN_IN));
+            PriorityQueue<Head> q = startMerge(group);
+            SpillFile out = new SpillFile(getTupleDesc());
+            Tuple t;
+            while ((t = nextMerged(q, group)) != null)
+                out.add(t);
+            for (SpillFile run : group)
+                run.delete();
+            merged.add(out);
+        }
+        runs = merged;
+    }
+
+    private PriorityQueue<Head> startMerge(List<SpillFile> group) throws IOException {
+        PriorityQueue<Head> q = new PriorityQueue<Head>(Math.max(1, group.size()));
+        for (int i = 0; i < group.size(); i++) {
+            SpillFile run = group.get(i);
+            run.rewind();
+            Tuple t = run.read();
+            if (t != null)
+                q.add(new Head(i, t));
+        }
+        return q;
+    }
+
+    private Tuple nextMerged(PriorityQueue<Head> q, List<SpillFile> group) throws IOException {
+        Head h = q.poll();
+        if (h == null)
+            return null;
+        Tuple t = h.t;
+        h.t = group.get(h.run).read();
+        if (h.t != null)
+            q.add(h);
+        return t;
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if (memory != null)
+            return nextInMemory < memory.size();
+        return heads != null && !heads.isEmpty();
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException,
+            NoSuchElementException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        if (memory != null)
+            return memory.get(nextInMemory++);
+        try {
+            return nextMerged(heads, runs);
+        } catch (IOException e) {
+            throw new DbException("could not read sort run: " + e);
+        }
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        nextInMemory = 0;
+        if (runs != null) {
+            try {
+                heads = startMerge(runs);
+            } catch (IOException e) {
+                throw new DbException("could not read sort run: " + e);
+            }
+        }
+    }
+
+    public void close() {
+        child.close();
+        clear();
+    }
+
+    private void clear() {
+        if (runs != null) {
+            for (SpillFile run : runs)
+                run.delete();
+        }
+        runs = null;
+        heads = null;
+        memory = null;
+    }
+}
@@ -3,12 +3,14 @@ package simpledb;
 import java.util.*;
 
 /**
- * Filter is an operator that implements a relational select.
+ * Filter is an operator that implements a relational select.  In batches,
+ * it narrows each batch of its child to the tuples that pass.
  */
-public class Filter extends Operator {
+public class Filter extends Operator implements BatchedDbIterator {
 
 	private Predicate predicate;
 	private DbIterator dbi;
+	private transient TupleBatch rows = null;
     private static final long serialVersionUID = 1L;
 
     /**
@@ -75,6 +77,24 @@ public class Filter extends Operator {
         return null;
     }
 
+    /**
+     * Returns the next batch of the child with only the tuples that pass
+     * the predicate selected, skipping batches where none do.
+     *
+     * @see Predicate#filter(TupleBatch)
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (this.rows == null)
+            this.rows = new TupleBatch(this.dbi.getTupleDesc());
+        TupleBatch batch;
+        while ((batch = TupleBatch.read(this.dbi, this.rows)) != null) {
+            this.predicate.filter(batch);
+            if (batch.size() > 0)
+                return batch;
+        }
+        return null;
+    }
+
     @Override
     public DbIterator[] getChildren() {
         // some code goes here
@@ -85,6 +105,7 @@ public class Filter extends Operator {
     public void setChildren(DbIterator[] children) {
         // some code goes here
         this.dbi = children[0];
+        this.rows = null;
     }
 
 }
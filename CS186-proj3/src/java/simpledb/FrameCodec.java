@@ -0,0 +1,207 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.CumulativeProtocolDecoder;
+import org.apache.mina.filter.codec.ProtocolCodecFactory;
+import org.apache.mina.filter.codec.ProtocolDecoder;
+import org.apache.mina.filter.codec.ProtocolDecoderException;
+import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+import org.apache.mina.filter.codec.ProtocolEncoder;
+import org.apache.mina.filter.codec.ProtocolEncoderAdapter;
+import org.apache.mina.filter.codec.ProtocolEncoderOutput;
+
+/**
+ * FrameCodec reads and writes the frames that SqlServer and SqlClient
+ * exchange.  A frame is a one-byte type, a four-byte payload length and
+ * the payload:
+ * <ul>
+ * <li>QUERY: a statement in UTF-8, from client to server;
+ * <li>SCHEMA: the number of result fields, then each field's type
+ *     ordinal and name;
+ * <li>ROWS: a number of rows, then the rows, each int field as four
+ *     bytes and each string field as its length and bytes;
+ * <li>DONE: the number of rows the statement returned;
+ * <li>ERROR: why the statement failed.
+ * </ul>
+ * A statement is answered with a SCHEMA and ROWS frames if it has a
+ * result, then exactly one DONE or ERROR frame.
+ */
+class FrameCodec implements ProtocolCodecFactory {
+
+    static final byte QUERY = 'Q';
+    static final byte SCHEMA = 'S';
+    static final byte ROWS = 'R';
+    static final byte DONE = 'D';
+    static final byte ERROR = 'E';
+
+    /** Frames longer than this are rejected as corrupt */
+    static final int MAX_FRAME = 16 << 20;
+
+    static class Frame {
+        final byte type;
+        final byte[] payload;
+
+        Frame(byte type, byte[] payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+
+        DataInputStream input() {
+            return new DataInputStream(new ByteArrayInputStream(payload));
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeByte(type);
+            out.writeInt(payload.length);
+            out.write(payload);
+        }
+
+        /** @return the next frame on in, or null at the end of the stream */
+        static Frame read(DataInputStream in) throws IOException {
+            int type = in.read();
+            if (type < 0)
+                return null;
+            int length = in.readInt();
+            if (length < 0 || length > MAX_FRAME)
+                throw new IOException("bad frame length " + length);
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            return new Frame((byte) type, payload);
+        }
+    }
+
+    static Frame query(String sql) throws IOException {
+        return new Frame(QUERY, sql.getBytes("UTF-8"));
+    }
+
+    static Frame schema(TupleDesc td) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(td.numFields());
+        for (int i = 0; i < td.numFields(); i++) {
+            out.writeByte(td.getFieldType(i).ordinal());
+            String name = td.getFieldName(i);
+            out.writeUTF(name == null ? "" : name);
+        }
+        return new Frame(SCHEMA, bytes.toByteArray());
+    }
+
+    static Frame done(int rows) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeInt(rows);
+        return new Frame(DONE, bytes.toByteArray());
+    }
+
+    static Frame error(String message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(message == null ? "unknown error" : message);
+        return new Frame(ERROR, bytes.toByteArray());
+    }
+
+    static TupleDesc readSchema(Frame f) throws IOException {
+        DataInputStream in = f.input();
+        int n = in.readInt();
+        Type[] types = new Type[n];
+        String[] names = new String[n];
+        for (int i = 0; i < n; i++) {
+            types[i] = Type.values()[in.readByte()];
+            String name = in.readUTF();
+            names[i] = name.length() == 0 ? null : name;
+        }
+        return new TupleDesc(types, names);
+    }
+
+    /** Append t to a ROWS payload being built in out. */
+    static void writeTuple(DataOutputStream out, Tuple t) throws IOException {
+        TupleDesc td = t.getTupleDesc();
+        for (int i = 0; i < td.numFields(); i++) {
+            Field f = t.getField(i);
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                out.writeInt(((IntField) f).getValue());
+            } else {
+                byte[] s = ((StringField) f).getValue().getBytes("UTF-8");
+                out.writeShort(s.length);
+                out.write(s);
+            }
+        }
+    }
+
+    /** @return the rows in a ROWS frame, whose fields are described by td */
+    static ArrayList<Tuple> readRows(Frame f, TupleDesc td) throws IOException {
+        DataInputStream in = f.input();
+        int n = in.readInt();
+        ArrayList<Tuple> rows = new ArrayList<Tuple>(n);
+        for (int r = 0; r < n; r++) {
+            rows.add(readTuple(in, td));
+        }
+        return rows;
+    }
+
+    /** Read a tuple written by writeTuple, whose fields are described by td. */
+    static Tuple readTuple(DataInputStream in, TupleDesc td) throws IOException {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                t.setField(i, new IntField(in.readInt()));
+            } else {
+                byte[] s = new byte[in.readUnsignedShort()];
+                in.readFully(s);
+                t.setField(i, new StringField(new String(s, "UTF-8"), Type.STRING_LEN));
+            }
+        }
+        return t;
+    }
+
+    static int readInt(Frame f) throws IOException {
+        return f.input().readInt();
+    }
+
+    static String readMessage(Frame f) throws IOException {
+        return f.input().readUTF();
+    }
+
+    private final ProtocolEncoder encoder = new ProtocolEncoderAdapter() {
+        public void encode(IoSession session, Object message, ProtocolEncoderOutput out) {
+            Frame f = (Frame) message;
+            IoBuffer buf = IoBuffer.allocate(5 + f.payload.length);
+            buf.put(f.type);
+            buf.putInt(f.payload.length);
+            buf.put(f.payload);
+            buf.flip();
+            out.write(buf);
+        }
+    };
+
+    private final ProtocolDecoder decoder = new CumulativeProtocolDecoder() {
+        protected boolean doDecode(IoSession session, IoBuffer in, ProtocolDecoderOutput out)
+            throws ProtocolDecoderException {
+            if (in.remaining() < 5)
+                return false;
+            int start = in.position();
+            byte type = in.get();
+            int length = in.getInt();
+            if (length < 0 || length > MAX_FRAME)
+                throw new ProtocolDecoderException("bad frame length " + length);
+            if (in.remaining() < length) {
+                in.position(start);
+                return false;
+            }
+            byte[] payload = new byte[length];
+            in.get(payload);
+            out.write(new Frame(type, payload));
+            return true;
+        }
+    };
+
+    public ProtocolEncoder getEncoder(IoSession session) {
+        return encoder;
+    }
+
+    public ProtocolDecoder getDecoder(IoSession session) {
+        return decoder;
+    }
+}
@@ -0,0 +1,205 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Gather is an exchange operator that runs each of its children on a
+ * thread of its own and returns the tuples of all of them, in no
+ * particular order.  The children are usually copies of one pipeline
+ * (a scan, then filters and a projection) whose scans share the pages of
+ * a table as Morsels, so together they return the tuples of the whole
+ * table, using a core each.
+ * <p>
+ * The workers run on a fork-join pool shared by every Gather and by
+ * ExternalSort.  Each fills chunks of CHUNK_TUPLES tuples and hands them
+ * over through a bounded queue, so a worker that gets ahead of the
+ * consumer waits for it.  That wait and a worker's wait for a lock are
+ * managed blocks, during which the pool may run another worker.  An
+ * error in a worker is thrown by the consumer's next call to hasNext or
+ * next.
+ */
+public class Gather extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of pipelines to run at once */
+    public static final int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors();
+    /** Tuples handed from a worker to the consumer at a time */
+    static final int CHUNK_TUPLES = 256;
+    /** Chunks each worker may have waiting for the consumer */
+    static final int CHUNKS_PER_WORKER = 4;
+
+    /** Runs the workers of every Gather, and ExternalSort's run sorting */
+    static final ForkJoinPool pool = new ForkJoinPool(DEFAULT_WORKERS);
+    // the chunk a worker hands over when it is done
+    private static final List<Tuple> DONE = new ArrayList<Tuple>(0);
+
+    private DbIterator[] children;
+
+    private transient BlockingQueue<List<Tuple>> chunks = null;
+    private transient ArrayList<Future<?>> workers = null;
+    private transient volatile boolean stopped = false;
+    private transient volatile Throwable failure = null;
+    private transient int running = 0;
+    // the chunk being returned, and the next tuple of it
+    private transient List<Tuple> chunk = null;
+    private transient int next = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param children
+     *            The pipelines to run in parallel, which must all return
+     *            tuples of the same TupleDesc
+     */
+    public Gather(DbIterator[] children) {
+        if (children.length == 0)
+            throw new IllegalArgumentException("nothing to gather");
+        this.children = children.clone();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return children[0].getTupleDesc();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        for (DbIterator child : children)
+            child.open();
+        super.open();
+        start();
+    }
+
+    public void close() {
+        super.close();
+        stop();
+        for (DbIterator child : children)
+            child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        stop();
+        for (DbIterator child : children)
+            child.rewind();
+        start();
+    }
+
+    /** Start a worker reading each child. */
+    private void start() {
+        chunks = new ArrayBlockingQueue<List<Tuple>>(CHUNKS_PER_WORKER * children.length);
+        workers = new ArrayList<Future<?>>();
+        stopped = false;
+        failure = null;
+        running = children.length;
+        chunk = null;
+        for (final DbIterator child : children) {
+            workers.add(pool.submit(new Runnable() {
+                public void run() {
+                    work(child);
+                }
+            }));
+        }
+    }
+
+    /** Hand every tuple of child to the consumer in chunks. */
+    private void work(DbIterator child) {
+        try {
+            List<Tuple> tuples = new ArrayList<Tuple>(CHUNK_TUPLES);
+            while (!stopped && child.hasNext()) {
+                tuples.add(child.next());
+                if (tuples.size() == CHUNK_TUPLES) {
+                    hand(tuples);
+                    tuples = new ArrayList<Tuple>(CHUNK_TUPLES);
+                }
+            }
+            if (!tuples.isEmpty())
+                hand(tuples);
+        } catch (Throwable e) {
+            if (failure == null)
+                failure = e;
+        } finally {
+            try {
+                hand(DONE);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Queue tuples for the consumer, unless it has stopped the workers.  A
+     * worker waiting for its consumer lets the pool run another thread in
+     * its place, so workers of a Gather that is not being read, such as the
+     * probe side of a join still building, cannot hold up another's.
+     */
+    private void hand(final List<Tuple> tuples) throws InterruptedException {
+        ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+            private boolean handed = false;
+
+            public boolean isReleasable() {
+                if (!handed && !stopped)
+                    handed = chunks.offer(tuples);
+                return handed || stopped;
+            }
+
+            public boolean block() throws InterruptedException {
+                if (!isReleasable())
+                    handed = chunks.offer(tuples, 10, TimeUnit.MILLISECONDS);
+                return handed || stopped;
+            }
+        });
+    }
+
+    /** Stop the workers and wait for them to finish. */
+    private void stop() {
+        if (workers == null)
+            return;
+        stopped = true;
+        for (Future<?> f : workers) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // work catches its own failures
+            }
+        }
+        workers = null;
+        chunks = null;
+        chunk = null;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (chunk == null || next == chunk.size()) {
+            if (running == 0)
+                return null;
+            try {
+                chunk = chunks.take();
+            } catch (InterruptedException e) {
+                throw new DbException("interrupted while gathering tuples");
+            }
+            next = 0;
+            if (chunk == DONE) {
+                running--;
+                Throwable e = failure;
+                if (e instanceof TransactionAbortedException)
+                    throw (TransactionAbortedException) e;
+                if (e instanceof DbException)
+                    throw (DbException) e;
+                if (e != null)
+                    throw new DbException("gathered pipeline failed: " + e);
+            }
+        }
+        return chunk.get(next++);
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return children.clone();
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.children = children.clone();
+    }
+}
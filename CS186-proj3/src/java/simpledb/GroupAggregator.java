@@ -0,0 +1,335 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Knows how to compute several aggregates at once, grouped by any number
+ * of fields.  Each tuple is merged into all of its group's aggregates, so
+ * one pass over the input answers the whole select list.  As in
+ * IntegerAggregator, groups are kept in an IntAggregateTable; a composite
+ * group key is the list of its fields' GroupKeys.
+ * <p>
+ * When there are more groups than fit in memory, every group is written
+ * out as a partial aggregate (its key, and each aggregate's count and
+ * SUM, MIN or MAX) to one of SPILL_PARTITIONS spill files chosen by a hash
+ * of its key, and the table starts empty again.  The iterator then
+ * merges the partial aggregates a partition at a time; a partition that
+ * is still too big is split again, on other bits of the hash.
+ */
+public class GroupAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of groups held in memory */
+    public static final int DEFAULT_MEMORY_GROUPS = 1 << 16;
+    /** Partitions the groups are split into each time they spill */
+    static final int SPILL_PARTITIONS = 16;
+    // bits of the key hash picking a partition, and the most times a
+    // partition is split before it is merged in memory whatever its size
+    private static final int PARTITION_BITS = 4;
+    private static final int MAX_SPLITS = 32 / PARTITION_BITS;
+
+    private final int[] gbfields;
+    private final int[] afields;
+    private final Op[] whats;
+    private final TupleDesc td;
+    private final int memoryGroups;
+    // the group fields, then a count and the two halves of a long for
+    // each aggregate
+    private final TupleDesc partialTD;
+
+    private GroupKeys[] groups;
+    private IntAggregateTable table;
+    private final int[] key;
+    // the partitions of the partial aggregates, once the groups overflow
+    private transient SpillFile[] spills = null;
+
+    /**
+     * Aggregate constructor
+     *
+     * @param childTD
+     *            the TupleDesc of the tuples to aggregate
+     * @param gbfields
+     *            the 0-based indexes of the group-by fields in the tuple, or
+     *            an empty array if there is no grouping
+     * @param afields
+     *            the 0-based indexes of the fields to aggregate, one per
+     *            aggregate
+     * @param whats
+     *            the aggregation operators, one per aggregate
+     * @throws IllegalArgumentException if an aggregate other than COUNT is
+     *             over a string field
+     */
+    public GroupAggregator(TupleDesc childTD, int[] gbfields, int[] afields, Op[] whats) {
+        this(childTD, gbfields, afields, whats, DEFAULT_MEMORY_GROUPS);
+    }
+
+    /**
+     * Aggregate constructor for an aggregator that holds at most
+     * memoryGroups groups in memory, spilling the rest to disk.
+     */
+    public GroupAggregator(TupleDesc childTD, int[] gbfields, int[] afields, Op[] whats,
+            int memoryGroups) {
+        if (afields.length != whats.length)
+            throw new IllegalArgumentException("need one operator per aggregate field");
+        for (int a = 0; a < afields.length; a++) {
+            if (whats[a] != Op.COUNT && childTD.getFieldType(afields[a]) != Type.INT_TYPE)
+                throw new IllegalArgumentException("only COUNT can aggregate "
+                        + childTD.getFieldName(afields[a]));
+        }
+        this.gbfields = gbfields.clone();
+        this.afields = afields.clone();
+        this.whats = whats.clone();
+        this.memoryGroups = Math.max(1, memoryGroups);
+        td = Aggregate.outputTupleDesc(childTD, gbfields, afields, whats);
+        Type[] types = new Type[gbfields.length + 3 * afields.length];
+        for (int i = 0; i < types.length; i++)
+            types[i] = i < gbfields.length ? td.getFieldType(i) : Type.INT_TYPE;
+        partialTD = new TupleDesc(types);
+        key = new int[gbfields.length];
+        reset();
+    }
+
+    /** Start again with no groups in memory. */
+    private void reset() {
+        groups = new GroupKeys[gbfields.length];
+        for (int j = 0; j < gbfields.length; j++)
+            groups[j] = new GroupKeys(td.getFieldType(j));
+        table = new IntAggregateTable(this.whats, gbfields.length);
+    }
+
+    /** @return true if the groups have overflowed memory */
+    boolean spilled() {
+        return spills != null;
+    }
+
+    /**
+     * Merge a new tuple into each aggregate of its group, creating the group
+     * if its values have not been seen
+     *
+     * @param tup
+     *            the Tuple containing the aggregate and group-by fields
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        try {
+            merge(tup);
+        } catch (IOException e) {
+            throw new RuntimeException("could not spill aggregate: " + e);
+        }
+    }
+
+    /** mergeTupleIntoGroup, reporting a failure to spill. */
+    void merge(Tuple tup) throws IOException {
+        for (int j = 0; j < gbfields.length; j++)
+            key[j] = groups[j].key(tup.getField(gbfields[j]));
+        int g = table.group(key);
+        for (int a = 0; a < afields.length; a++) {
+            int value = whats[a] == Op.COUNT ? 0
+                    : ((IntField) tup.getField(afields[a])).getValue();
+            table.add(g, a, value);
+        }
+        checkMemory();
+    }
+
+    /**
+     * Merge the selected tuples of batch, reading INT fields from its
+     * columns.
+     */
+    void merge(TupleBatch batch) throws IOException {
+        for (int k = 0; k < batch.size(); k++) {
+            int row = batch.row(k);
+            for (int j = 0; j < gbfields.length; j++)
+                key[j] = groups[j].key(batch, gbfields[j], row);
+            int g = table.group(key);
+            for (int a = 0; a < afields.length; a++) {
+                int value = whats[a] == Op.COUNT ? 0 : batch.getInt(afields[a], row);
+                table.add(g, a, value);
+            }
+            checkMemory();
+        }
+    }
+
+    /** Spill the groups if there are more than fit in memory. */
+    private void checkMemory() throws IOException {
+        if (table.size() > memoryGroups) {
+            if (spills == null)
+                spills = newPartitions();
+            spill(spills, 0);
+        }
+    }
+
+    private SpillFile[] newPartitions() throws IOException {
+        SpillFile[] parts = new SpillFile[SPILL_PARTITIONS];
+        for (int i = 0; i < SPILL_PARTITIONS; i++)
+            parts[i] = new SpillFile(partialTD);
+        return parts;
+    }
+
+    /**
+     * Write every group in memory to its partition of parts, split by the
+     * splits'th bits of the hash of its key, and empty the table.
+     */
+    private void spill(SpillFile[] parts, int splits) throws IOException {
+        int w = gbfields.length;
+        for (int g = 0; g < table.size(); g++) {
+            Tuple t = new Tuple(partialTD);
+            int h = 0;
+            for (int j = 0; j < w; j++) {
+                Field f = groups[j].field(table.key(g, j));
+                t.setField(j, f);
+                h = (h + f.hashCode()) * 0x9E3779B9;
+            }
+            for (int a = 0; a < afields.length; a++) {
+                long value = table.value(g, a);
+                t.setField(w + 3 * a, new IntField(table.count(g, a)));
+                t.setField(w + 3 * a + 1, new IntField((int) (value >>> 32)));
+                t.setField(w + 3 * a + 2, new IntField((int) value));
+            }
+            int part = ((h ^ (h >>> 16)) >>> (PARTITION_BITS * splits)) & (SPILL_PARTITIONS - 1);
+            parts[part].add(t);
+        }
+        reset();
+    }
+
+    /** Merge a partial aggregate written by spill into the table. */
+    private void mergePartial(Tuple t) {
+        int w = gbfields.length;
+        for (int j = 0; j < w; j++)
+            key[j] = groups[j].key(t.getField(j));
+        int g = table.group(key);
+        for (int a = 0; a < afields.length; a++) {
+            int count = ((IntField) t.getField(w + 3 * a)).getValue();
+            long high = ((IntField) t.getField(w + 3 * a + 1)).getValue();
+            long low = ((IntField) t.getField(w + 3 * a + 2)).getValue() & 0xffffffffL;
+            table.merge(g, a, count, (high << 32) | low);
+        }
+    }
+
+    /**
+     * Create a DbIterator over group aggregate results.  Once the groups
+     * have spilled, this ends the merging: the iterator owns the spill
+     * files, and deletes them when it is closed.
+     *
+     * @return a DbIterator whose tuples are the group-by values followed by
+     *         the aggregate values, in the order given to the constructor
+     */
+    public DbIterator iterator() {
+        if (spills == null)
+            return table.iterator(td, groups);
+        try {
+            spill(spills, 0);
+        } catch (IOException e) {
+            throw new RuntimeException("could not spill aggregate: " + e);
+        }
+        SpillFile[] parts = spills;
+        spills = null;
+        return new PartitionIterator(parts);
+    }
+
+    /** Returns the groups of the spilled partitions, a partition at a time. */
+    private class PartitionIterator implements DbIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final SpillFile[] parts;
+        // the partitions left to merge, and how often each has been split
+        private final LinkedList<SpillFile> pending = new LinkedList<SpillFile>();
+        private final LinkedList<Integer> splits = new LinkedList<Integer>();
+        // partitions split from parts, deleted once merged
+        private final ArrayList<SpillFile> created = new ArrayList<SpillFile>();
+        // the groups of the partition being returned
+        private DbIterator current = null;
+
+        PartitionIterator(SpillFile[] parts) {
+            this.parts = parts;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            rewind();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            clear();
+            for (SpillFile part : parts) {
+                pending.add(part);
+                splits.add(0);
+            }
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            while ((current == null || !current.hasNext()) && !pending.isEmpty()) {
+                try {
+                    current = mergeNext();
+                } catch (IOException e) {
+                    throw new DbException("could not read aggregate spill: " + e);
+                }
+            }
+            return current != null && current.hasNext();
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException,
+                NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return current.next();
+        }
+
+        /**
+         * Merge the next pending partition.
+         * @return its groups, or null if it was too big and has been split
+         */
+        private DbIterator mergeNext() throws IOException, DbException,
+                TransactionAbortedException {
+            SpillFile part = pending.removeFirst();
+            int split = splits.removeFirst();
+            reset();
+            SpillFile[] smaller = null;
+            part.rewind();
+            Tuple t;
+            while ((t = part.read()) != null) {
+                mergePartial(t);
+                if (table.size() > memoryGroups && split + 1 < MAX_SPLITS) {
+                    if (smaller == null)
+                        smaller = newPartitions();
+                    spill(smaller, split + 1);
+                }
+            }
+            if (created.remove(part))
+                part.delete();
+            if (smaller == null) {
+                DbIterator it = table.iterator(td, groups);
+                it.open();
+                return it;
+            }
+            spill(smaller, split + 1);
+            for (int i = SPILL_PARTITIONS - 1; i >= 0; i--) {
+                pending.addFirst(smaller[i]);
+                splits.addFirst(split + 1);
+                created.add(smaller[i]);
+            }
+            return null;
+        }
+
+        /** Delete the partitions split from parts, and forget the rest. */
+        private void clear() {
+            for (SpillFile f : created)
+                f.delete();
+            created.clear();
+            pending.clear();
+            splits.clear();
+            current = null;
+            reset();
+        }
+
+        public void close() {
+            clear();
+            for (SpillFile part : parts)
+                part.delete();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * GroupKeys maps the values of a group-by field to the int keys of an
+ * IntAggregateTable, and back.  An IntField is its own key; strings are
+ * dictionary coded, numbered in the order they are first seen, so only a
+ * new group allocates.
+ */
+class GroupKeys implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Type type;
+    private final HashMap<String, Integer> codes = new HashMap<String, Integer>();
+    private final ArrayList<Field> strings = new ArrayList<Field>();
+
+    /** @param type the type of the group-by field */
+    GroupKeys(Type type) {
+        this.type = type;
+    }
+
+    /** @return the key of f */
+    int key(Field f) {
+        if (type == Type.INT_TYPE)
+            return ((IntField) f).getValue();
+        String s = ((StringField) f).getValue();
+        Integer code = codes.get(s);
+        if (code == null) {
+            code = strings.size();
+            codes.put(s, code);
+            strings.add(f);
+        }
+        return code;
+    }
+
+    /** @return the key of field c of row of batch */
+    int key(TupleBatch batch, int c, int row) {
+        if (type == Type.INT_TYPE)
+            return batch.getInt(c, row);
+        return key(batch.getField(c, row));
+    }
+
+    /** @return the field whose key is key */
+    Field field(int key) {
+        if (type == Type.INT_TYPE)
+            return new IntField(key);
+        return strings.get(key);
+    }
+}
@@ -1,11 +1,22 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The HashEquiJoin operator implements an equality join with a hybrid
+ * hash join.  It builds a hash table on child1 and probes it with child2.
+ * When child1 has more tuples than fit in memory, both children are split
+ * by a hash of the join field into SPILL_PARTITIONS partitions: the first
+ * stays in memory and is joined as child2 is read, while the others are
+ * written to spill files and joined pairwise afterwards.  So each child is
+ * read once, and spilled tuples are written and read back once more.
+ * <p>
+ * In batches, each batch of child2 probes the hash table row by row and
+ * the matches are written straight into an output batch, until a
+ * partition spills; spilled partitions are joined a tuple at a time.
  */
-public class HashEquiJoin extends Operator {
+public class HashEquiJoin extends Operator implements BatchedDbIterator {
 
     private static final long serialVersionUID = 1L;
     private JoinPredicate pred;
@@ -26,10 +37,7 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
-        this.pred = p;
-        this.child1 = child1;
-        this.child2 = child2;
-        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        this(p, child1, child2, MAP_SIZE);
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -51,32 +59,186 @@ public class HashEquiJoin extends Operator {
     }
     
     HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
+    /** Default number of build tuples held in memory */
     public final static int MAP_SIZE = 20000;
+    /** Partitions each input is split into once the build side spills */
+    public final static int SPILL_PARTITIONS = 16;
+
+    private final int memoryTuples;
+    private int inMemory = 0;
+    // once the build side has overflowed memory: the spill files of the
+    // partitions not in the map, or null for resident partitions
+    private transient SpillFile[] buildSpills = null;
+    private transient SpillFile[] probeSpills = null;
+    // the spilled partition being joined, or -1 while probing with child2
+    private transient int partition = -1;
+
+    /**
+     * Constructor. Accepts two children to join, the predicate to join
+     * them on and the number of tuples of child1 that may be held in memory
+     *
+     * @param memoryTuples
+     *            Tuples of the build side (child1) to hold in memory before
+     *            both children are partitioned into spill files
+     */
+    public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2,
+            int memoryTuples) {
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.memoryTuples = memoryTuples;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    private static int partitionOf(Field key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % SPILL_PARTITIONS;
+    }
+
+    private void put(Tuple t) {
+        ArrayList<Tuple> list = map.get(t.getField(pred.getField1()));
+        if (list == null) {
+            list = new ArrayList<Tuple>();
+            map.put(t.getField(pred.getField1()), list);
+        }
+        list.add(t);
+        inMemory++;
+    }
+
+    /**
+     * Read child1 into the map.  If it does not fit, every partition but
+     * the first is moved to a spill file, and if that is still too much
+     * the first goes too; tuples of spilled partitions are then written
+     * straight to their file.
+     */
+    private void build() throws DbException, TransactionAbortedException {
+        map.clear();
+        inMemory = 0;
+        try {
+            while (child1.hasNext()) {
+                t1 = child1.next();
+                if (buildSpills != null) {
+                    SpillFile spill = buildSpills[partitionOf(t1.getField(pred.getField1()))];
+                    if (spill != null) {
+                        spill.add(t1);
+                        continue;
+                    }
+                }
+                put(t1);
+                if (inMemory > memoryTuples) {
+                    if (buildSpills == null) {
+                        buildSpills = new SpillFile[SPILL_PARTITIONS];
+                        probeSpills = new SpillFile[SPILL_PARTITIONS];
+                        for (int i = 1; i < SPILL_PARTITIONS; i++)
+                            evict(i);
+                    } else {
+                        evict(0);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("could not spill hash join: " + e);
+        }
+    }
+
+    /** Move partition part of the map to a new spill file. */
+    private void evict(int part) throws IOException {
+        buildSpills[part] = new SpillFile(child1.getTupleDesc());
+        probeSpills[part] = new SpillFile(child2.getTupleDesc());
+        Iterator<Map.Entry<Object, ArrayList<Tuple>>> it = map.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Object, ArrayList<Tuple>> e = it.next();
+            if (partitionOf((Field) e.getKey()) != part)
+                continue;
+            for (Tuple t : e.getValue())
+                buildSpills[part].add(t);
+            inMemory -= e.getValue().size();
+            it.remove();
+        }
+    }
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
+    /**
+     * Load the next memoryTuples tuples of the current partition's build
+     * spill into the map.
+     * @return false if there were none left
+     */
+    private boolean loadChunk() throws IOException {
         map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
-            if (list == null) {
-                list = new ArrayList<Tuple>();
-                map.put(t1.getField(pred.getField1()), list);
+        inMemory = 0;
+        Tuple t;
+        while (inMemory < memoryTuples && (t = buildSpills[partition].read()) != null)
+            put(t);
+        return inMemory > 0;
+    }
+
+    /**
+     * @return the next tuple to probe the map with, or null when the join
+     *   is done.  Probe tuples of spilled partitions are set aside until
+     *   child2 is exhausted, then each spilled partition is joined in turn.
+     */
+    private Tuple nextProbe() throws DbException, TransactionAbortedException,
+            IOException {
+        if (partition < 0) {
+            while (child2.hasNext()) {
+                Tuple t = child2.next();
+                if (probeSpills != null) {
+                    SpillFile spill = probeSpills[partitionOf(t.getField(pred.getField2()))];
+                    if (spill != null) {
+                        spill.add(t);
+                        continue;
+                    }
+                }
+                return t;
+            }
+            if (buildSpills == null)
+                return null;
+        } else if (partition == SPILL_PARTITIONS) {
+            // every spilled partition has been joined
+            return null;
+        } else {
+            Tuple t = probeSpills[partition].read();
+            if (t != null)
+                return t;
+            // a partition too big for memory is joined a chunk at a time
+            if (loadChunk()) {
+                probeSpills[partition].rewind();
+                return nextProbe();
             }
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+            buildSpills[partition].delete();
+            probeSpills[partition].delete();
         }
-        return cnt > 0;
 
+        do {
+            partition++;
+        } while (partition < SPILL_PARTITIONS && buildSpills[partition] == null);
+        if (partition == SPILL_PARTITIONS)
+            return null;
+        buildSpills[partition].rewind();
+        probeSpills[partition].rewind();
+        loadChunk();
+        return nextProbe();
     }
 
+    /** Delete any spill files, and forget which partitions spilled. */
+    private void clearSpills() {
+        if (buildSpills != null) {
+            for (int i = 0; i < SPILL_PARTITIONS; i++) {
+                if (buildSpills[i] != null) {
+                    buildSpills[i].delete();
+                    probeSpills[i].delete();
+                }
+            }
+        }
+        buildSpills = null;
+        probeSpills = null;
+        partition = -1;
+    }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        super.open();
         child1.open();
         child2.open();
-        loadMap();
+        build();
     }
 
     public void close() {
@@ -86,16 +248,47 @@ public class HashEquiJoin extends Operator {
         this.t1=null;
         this.t2=null;
         this.listIt=null;
+        this.probe=null;
         this.map.clear();
+        clearSpills();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
         child2.rewind();
+        this.listIt = null;
+        this.probe = null;
+        clearSpills();
+        build();
     }
 
     transient Iterator<Tuple> listIt = null;
 
+    // in batches: the batch of child2 probing the map, the index in its
+    // selection of the next row to probe with, the row whose matches are
+    // in listIt, and the batch being returned
+    private transient TupleBatch probe = null, probeRows = null, out = null;
+    private transient int probeIndex = 0, probeRow = 0;
+    // looks up an INT join value of a probe row without making an IntField
+    private transient IntKey probeKey = null;
+
+    /**
+     * Equal to an IntField key of the map with the same value, and hashed
+     * as IntField is, so its value can be changed to look up each probe
+     * row in turn.  It is never put in the map.
+     */
+    private static class IntKey {
+        int value;
+
+        public int hashCode() {
+            return value;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof IntField && ((IntField) o).getValue() == value;
+        }
+    }
+
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
@@ -136,28 +329,60 @@ public class HashEquiJoin extends Operator {
             return processList();
         }
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
-
-            return processList();
-
+        try {
+            while ((t2 = nextProbe()) != null) {
+                // if match, create a combined tuple and fill it with the
+                // values from both tuples
+                ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
+                if (l == null)
+                    continue;
+                listIt = l.iterator();
+                return processList();
+            }
+        } catch (IOException e) {
+            throw new DbException("could not read hash join spill: " + e);
         }
+        return null;
+    }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (out == null) {
+            out = new TupleBatch(comboTD);
+            probeRows = new TupleBatch(child2.getTupleDesc());
+            probeKey = new IntKey();
+        }
+        out.clear();
+        if (buildSpills != null) {
+            Tuple t;
+            while (!out.isFull() && (t = fetchNext()) != null)
+                out.add(t);
+            return out.size() == 0 ? null : out;
+        }
+        while (!out.isFull()) {
+            if (listIt != null && listIt.hasNext()) {
+                out.add(listIt.next(), probe, probeRow);
+                continue;
+            }
+            if (probe == null || probeIndex == probe.size()) {
+                probe = TupleBatch.read(child2, probeRows);
+                probeIndex = 0;
+                if (probe == null)
+                    break;
+            }
+            probeRow = probe.row(probeIndex++);
+            ArrayList<Tuple> l = map.get(probeKey(probe, probeRow));
+            listIt = l == null ? null : l.iterator();
         }
+        return out.size() == 0 ? null : out;
+    }
 
-        return null;
+    /** @return the key to look up the join value of row of batch with */
+    private Object probeKey(TupleBatch batch, int row) {
+        int f = pred.getField2();
+        if (batch.getTupleDesc().getFieldType(f) != Type.INT_TYPE)
+            return batch.getField(f, row);
+        probeKey.value = batch.getInt(f, row);
+        return probeKey;
     }
 
     @Override
@@ -169,6 +394,7 @@ public class HashEquiJoin extends Operator {
     public void setChildren(DbIterator[] children) {
         this.child1 = children[0];
         this.child2 = children[1];
+        this.out = null;
     }
     
 
@@ -5,6 +5,7 @@ import java.util.*;
 import java.nio.channels.ByteChannel;
 import java.nio.channels.FileChannel;
 import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -22,6 +23,7 @@ public class HeapFile implements DbFile {
 	public TupleDesc heapFileTD; 
 	public int uniqId;
 	public FileChannel fc;
+	private final ReentrantLock appendLatch = new ReentrantLock();
 	public int pageSize;
 	
     /**
@@ -115,6 +117,11 @@ public class HeapFile implements DbFile {
         
     }
 
+    // see DbFile.java for javadocs
+    public void force() throws IOException {
+        fc.force(true);
+    }
+
     /**
      * Returns the number of pages in this HeapFile.
      */
@@ -138,39 +145,36 @@ public class HeapFile implements DbFile {
         // not necessary for proj1
         //System.out.println("printing from insertTuple in Heapfile.java");
         List<Page> insertedPgList = new ArrayList<Page>();
+        BufferPool bp = Database.getBufferPool();
         int i = 0;
-        //checking existing pages for empty slots
-        for( ; i < this.numPages(); i++) {
-        	PageId pid = new HeapPageId(this.uniqId, i);
-        	HeapPage hostPage = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-        	if(hostPage.getNumEmptySlots() > 0) {
-        		hostPage.insertTuple(t);
-        		hostPage.markDirty(true, tid);
-        		insertedPgList.add(hostPage);
-        		return (ArrayList<Page>) insertedPgList;
-        	}
+        while (true) {
+            //checking existing pages for empty slots
+            for( ; i < this.numPages(); i++) {
+            	PageId pid = new HeapPageId(this.uniqId, i);
+            	boolean held = bp.holdsLock(tid, pid);
+            	HeapPage hostPage = (HeapPage)bp.getPageForUpdate(tid, pid);
+            	if(hostPage.insertTuple(t, tid)) {
+            		bp.lockTuple(tid, t.getRecordId(), Permissions.READ_WRITE);
+            		hostPage.markDirty(true, tid);
+            		insertedPgList.add(hostPage);
+            		return (ArrayList<Page>) insertedPgList;
+            	}
+            	// nothing was changed, so the lock on a full page can go
+            	if (!held)
+            		bp.releasePage(tid, pid);
+            }
+            //no open space was found: append an empty page and lock it
+            //through the buffer pool like any other
+            appendLatch.lock();
+            try {
+            	if (this.numPages() == i) {
+            		ByteBuffer byteBuff = ByteBuffer.wrap(HeapPage.createEmptyPageData());
+            		fc.write(byteBuff, (long) this.pageSize * i);
+            	}
+            } finally {
+                appendLatch.unlock();
+            }
         }
-        //creating new page since no open space was found in pages from memory
-        HeapPageId  insertedPgId = new HeapPageId(this.uniqId, i);
-        HeapPage insertedPg = new HeapPage(insertedPgId, HeapPage.createEmptyPageData());
-        insertedPg.insertTuple(t);
-        int pagesize = BufferPool.PAGE_SIZE;
-        
-        RandomAccessFile raf = new RandomAccessFile(this.heapFileBacking, "r");
-       	try{
-       		raf.seek(pagesize * i);
-       	}
-       	catch (IOException error){
-       		System.out.println("IOException " + error);
-       		System.exit(1);
-       	}
-       	raf.close();
-       	raf = new RandomAccessFile(this.heapFileBacking, "rw");
-        raf.seek(pagesize * i);
-        raf.write(insertedPg.getPageData(), 0, pagesize);
-        raf.close();
-        insertedPgList.add(insertedPg);
-        return (ArrayList<Page>) insertedPgList;
     }
 
     // see DbFile.java for javadocs
@@ -179,8 +183,10 @@ public class HeapFile implements DbFile {
         // some code goes here
         //return null;
         // not necessary for proj1
-        HeapPage delPg = (HeapPage)Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
-        delPg.deleteTuple(t);
+        BufferPool bp = Database.getBufferPool();
+        HeapPage delPg = (HeapPage)bp.getPageForUpdate(tid, t.getRecordId().getPageId());
+        bp.lockTuple(tid, t.getRecordId(), Permissions.READ_WRITE);
+        delPg.deleteTuple(t, tid);
         delPg.markDirty(true,tid);
         return delPg;
     }
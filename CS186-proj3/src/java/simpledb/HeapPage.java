@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
@@ -23,6 +24,16 @@ public class HeapPage implements Page {
     TransactionId tid = null;
 	boolean dirty;
     byte[] oldData;
+    // slots changed by insertTuple/deleteTuple since the before image
+    // was taken; lets the log record only those slots
+    BitSet dirtySlots = new BitSet();
+    // the same slots by the transaction that changed them.  Changes made
+    // without naming a transaction are credited to the one that next
+    // marks the page dirty.
+    HashMap<TransactionId,BitSet> slotWriters = new HashMap<TransactionId,BitSet>();
+    BitSet unclaimed = new BitSet();
+    // guards the slots; BufferPool also holds it while writing the page out
+    final ReentrantLock latch = new ReentrantLock();
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -77,7 +88,7 @@ public class HeapPage implements Page {
      * Computes the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      * @return the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      */
-    private int getHeaderSize() {        
+    int getHeaderSize() {        
         double numoTup = getNumTuples();
         // some code goes here
         return (int) Math.ceil(numoTup / 8);                 
@@ -86,6 +97,15 @@ public class HeapPage implements Page {
     /** Return a view of this page before it was modified
         -- used by recovery */
     public HeapPage getBeforeImage(){
+        latch.lock();
+        try {
+            return getBeforeImageLatched();
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private HeapPage getBeforeImageLatched() {
         try {
             return new HeapPage(pid,oldData);
         } catch (IOException e) {
@@ -97,7 +117,99 @@ public class HeapPage implements Page {
     }
     
     public void setBeforeImage() {
-        oldData = getPageData().clone();
+        latch.lock();
+        try {
+            oldData = getPageData().clone();
+            dirtySlots.clear();
+            slotWriters.clear();
+            unclaimed.clear();
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** Return the slots tid changed since the before image was taken.
+        -- used by recovery */
+    BitSet getDirtySlots(TransactionId tid) {
+        latch.lock();
+        try {
+            BitSet slots = slotWriters.get(tid);
+            return slots == null ? new BitSet() : (BitSet) slots.clone();
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** Return the transactions with changes not yet in the before image */
+    Set<TransactionId> getWriters() {
+        latch.lock();
+        try {
+            return new HashSet<TransactionId>(slotWriters.keySet());
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** Copy the slots tid changed into the before image, as tid commits. */
+    void commitSlots(TransactionId tid) {
+        latch.lock();
+        try {
+            commitSlotsLatched(tid);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private void commitSlotsLatched(TransactionId tid) {
+        BitSet slots = slotWriters.remove(tid);
+        if (slots == null)
+            return;
+        byte[] data = getPageData();
+        int headerSize = getHeaderSize();
+        int tupleSize = td.getSize();
+        for (int slot = slots.nextSetBit(0); slot >= 0; slot = slots.nextSetBit(slot + 1)) {
+            int mask = 1 << (slot % 8);
+            oldData[slot / 8] = (byte) ((oldData[slot / 8] & ~mask) | (data[slot / 8] & mask));
+            System.arraycopy(data, headerSize + slot * tupleSize,
+                             oldData, headerSize + slot * tupleSize, tupleSize);
+        }
+        dirtySlots.andNot(slots);
+    }
+
+    /** Restore the slots tid changed from the before image, as tid aborts. */
+    void revertSlots(TransactionId tid) {
+        latch.lock();
+        try {
+            revertSlotsLatched(tid);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private void revertSlotsLatched(TransactionId tid) {
+        BitSet slots = slotWriters.remove(tid);
+        if (slots == null)
+            return;
+        HeapPage before = getBeforeImage();
+        for (int slot = slots.nextSetBit(0); slot >= 0; slot = slots.nextSetBit(slot + 1)) {
+            markSlotUsed(slot, before.isSlotUsed(slot));
+            tuples[slot] = before.tuples[slot];
+        }
+        dirtySlots.andNot(slots);
+    }
+
+    private void changed(int slot, TransactionId tid) {
+        dirtySlots.set(slot);
+        if (tid == null) {
+            unclaimed.set(slot);
+            return;
+        }
+        BitSet slots = slotWriters.get(tid);
+        if (slots == null) {
+            slots = new BitSet();
+            slotWriters.put(tid, slots);
+        }
+        slots.set(slot);
     }
 
     /**
@@ -155,6 +267,15 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
+        latch.lock();
+        try {
+            return getPageDataLatched();
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private byte[] getPageDataLatched() {
         int len = BufferPool.PAGE_SIZE;
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
@@ -237,6 +358,23 @@ public class HeapPage implements Page {
      * @param t The tuple to delete
      */
     public void deleteTuple(Tuple t) throws DbException {
+        deleteTuple(t, null);
+    }
+
+    /**
+     * Delete the specified tuple on behalf of tid, which must hold a
+     * write lock on it.
+     */
+    void deleteTuple(Tuple t, TransactionId tid) throws DbException {
+        latch.lock();
+        try {
+            deleteTupleLatched(t, tid);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private void deleteTupleLatched(Tuple t, TransactionId tid) throws DbException {
         // some code goes here
         // not necessary for lab1
         int slot = t.getRecordId().tupleno();
@@ -246,6 +384,7 @@ public class HeapPage implements Page {
         
         //how to delete? 
         this.markSlotUsed(slot, false);
+        changed(slot, tid);
     }
 
     /**
@@ -256,6 +395,15 @@ public class HeapPage implements Page {
      * @param t The tuple to add.
      */
     public void insertTuple(Tuple t) throws DbException {
+        latch.lock();
+        try {
+            insertTupleLatched(t);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private void insertTupleLatched(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
         if(!t.getTupleDesc().equals(this.td) || this.getNumEmptySlots() == 0) {
@@ -279,20 +427,72 @@ public class HeapPage implements Page {
         t.setRecordId(rid);
         tuples[index] = t;
         this.markSlotUsed(index, true);
+        changed(index, null);
         
     }
 
+    /**
+     * Adds the specified tuple on behalf of tid, in an empty slot that no
+     * other running transaction has changed: a slot emptied by a delete
+     * that may still be rolled back cannot be reused.
+     *
+     * @return false if there is no such slot
+     * @throws DbException if the tupledesc is mismatch
+     */
+    boolean insertTuple(Tuple t, TransactionId tid) throws DbException {
+        latch.lock();
+        try {
+            return insertTupleLatched(t, tid);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private boolean insertTupleLatched(Tuple t, TransactionId tid) throws DbException {
+        if (!t.getTupleDesc().equals(this.td)) {
+            throw new DbException("TD between insert and page does not match");
+        }
+        BitSet own = slotWriters.get(tid);
+        for (int slot = 0; slot < this.numSlots; slot++) {
+            if (this.isSlotUsed(slot))
+                continue;
+            if (dirtySlots.get(slot) && (own == null || !own.get(slot)))
+                continue;
+            t.setRecordId(new RecordId(this.pid, slot));
+            tuples[slot] = t;
+            this.markSlotUsed(slot, true);
+            changed(slot, tid);
+            return true;
+        }
+        return false;
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
      */
     public void markDirty(boolean dirty, TransactionId tid) {
+        latch.lock();
+        try {
+            markDirtyLatched(dirty, tid);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private void markDirtyLatched(boolean dirty, TransactionId tid) {
         // some code goes here
 	// not necessary for lab1
 
 		this.dirty = dirty;
 		if (dirty) {
 			this.lastDirty = tid;
+			if (tid != null && !unclaimed.isEmpty()) {
+				for (int slot = unclaimed.nextSetBit(0); slot >= 0; slot = unclaimed.nextSetBit(slot + 1)) {
+					changed(slot, tid);
+				}
+				unclaimed.clear();
+			}
 		}
 		else {
 			this.lastDirty = null;
@@ -305,6 +505,15 @@ public class HeapPage implements Page {
      * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
      */
     public TransactionId isDirty() {
+        latch.lock();
+        try {
+            return isDirtyLatched();
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private TransactionId isDirtyLatched() {
         // some code goes here
 	// Not necessary for lab1
 		return this.lastDirty;
@@ -320,6 +529,15 @@ public class HeapPage implements Page {
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
+        latch.lock();
+        try {
+            return getNumEmptySlotsLatched();
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private int getNumEmptySlotsLatched() {
         // some code goes here
         int numOfTuples = getNumTuples();
         int slotNum = 0;
@@ -13,15 +13,27 @@ public class HeapPageIterator implements Iterator<Tuple> {
         this.currTuple = 0;
         int openTuples = this.page.getNumTuples() - this.page.getNumEmptySlots();
         this.tupleNum = openTuples;
+        skipEmpty();
+    }
+
+    /** Move currTuple to the next used slot: undone inserts and deletes
+        leave holes anywhere on the page. */
+    private void skipEmpty() {
+        while (this.currTuple < this.page.getNumTuples() && !this.page.isSlotUsed(this.currTuple))
+            this.currTuple++;
     }
         
     public boolean hasNext() {
-        return this.currTuple < this.tupleNum;
+        return this.currTuple < this.page.getNumTuples();
     }
         
     public Tuple next() {
         //System.out.print("Inside next");
-        return this.page.tuples[this.currTuple++];
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Tuple t = this.page.tuples[this.currTuple++];
+        skipEmpty();
+        return t;
     }
         
     public void remove() throws UnsupportedOperationException {
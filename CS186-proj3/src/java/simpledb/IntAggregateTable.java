@@ -0,0 +1,211 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * IntAggregateTable computes a list of aggregates per group, for groups
+ * keyed by a fixed number of ints.  It is an open-addressing hash table
+ * with linear probing: slots hold group numbers, and each group's key and
+ * accumulators live in primitive arrays indexed by group number, so
+ * adding values to an existing group allocates nothing.  Groups are
+ * numbered 0..size()-1 in the order they are first seen.
+ * <p>
+ * A table belongs to one aggregator and is not safe to share between
+ * threads; separate tables are independent.
+ *
+ * @see GroupKeys
+ */
+class IntAggregateTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int INITIAL_GROUPS = 16;
+
+    private final Aggregator.Op[] ops;
+    private final int width;
+
+    // group number + 1 per slot, 0 if the slot is empty
+    private int[] slots;
+    private int mask;
+    private int size = 0;
+    private int capacity;
+
+    // the key of group g is keys[g*width .. (g+1)*width), and its COUNT
+    // and SUM, MIN or MAX for aggregate a are at g*ops.length + a
+    private int[] keys;
+    private int[] counts;
+    private long[] values;
+
+    /**
+     * @param ops the aggregates to compute for each group
+     * @param width the number of ints in a group's key; 0 for one group
+     */
+    IntAggregateTable(Aggregator.Op[] ops, int width) {
+        this.ops = ops;
+        this.width = width;
+        capacity = INITIAL_GROUPS;
+        slots = new int[2 * capacity];
+        mask = slots.length - 1;
+        keys = new int[capacity * width];
+        counts = new int[capacity * ops.length];
+        values = new long[capacity * ops.length];
+    }
+
+    /** @return the number of groups */
+    int size() {
+        return size;
+    }
+
+    /** Remove every group, keeping the space they used. */
+    void clear() {
+        Arrays.fill(slots, 0);
+        Arrays.fill(counts, 0, size * ops.length, 0);
+        Arrays.fill(values, 0, size * ops.length, 0L);
+        size = 0;
+    }
+
+    /** @return the jth int of the key of group g */
+    int key(int g, int j) {
+        return keys[g * width + j];
+    }
+
+    /** Add value to aggregate a of group g. */
+    void add(int g, int a, int value) {
+        merge(g, a, 1, value);
+    }
+
+    /**
+     * Merge a partial aggregate into aggregate a of group g: the count of
+     * values it covers and their SUM, MIN or MAX, as returned by count and
+     * value for a group of another table.
+     */
+    void merge(int g, int a, int count, long value) {
+        int i = g * ops.length + a;
+        boolean first = counts[i] == 0;
+        counts[i] += count;
+        switch (ops[a]) {
+        case SUM:
+        case AVG:
+            values[i] += value;
+            break;
+        case MIN:
+            if (first || value < values[i])
+                values[i] = value;
+            break;
+        case MAX:
+            if (first || value > values[i])
+                values[i] = value;
+            break;
+        default:
+            break;
+        }
+    }
+
+    /** @return the number of values added to aggregate a of group g */
+    int count(int g, int a) {
+        return counts[g * ops.length + a];
+    }
+
+    /** @return the SUM, MIN or MAX of the values of aggregate a of group g */
+    long value(int g, int a) {
+        return values[g * ops.length + a];
+    }
+
+    /** @return aggregate a of group g */
+    int result(int g, int a) {
+        int i = g * ops.length + a;
+        switch (ops[a]) {
+        case COUNT:
+            return counts[i];
+        case AVG:
+            return (int) (values[i] / counts[i]);
+        default:
+            return (int) values[i];
+        }
+    }
+
+    /**
+     * @return the groups' aggregates as tuples of td: the fields of each
+     *         group decoded by groups, then its aggregates
+     */
+    DbIterator iterator(TupleDesc td, GroupKeys[] groups) {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>(size);
+        if (width == 0 && size == 0 && onlyCounts()) {
+            // COUNT of no tuples is 0; other aggregates have no value
+            Tuple t = new Tuple(td);
+            for (int a = 0; a < ops.length; a++)
+                t.setField(a, new IntField(0));
+            tuples.add(t);
+        }
+        for (int g = 0; g < size; g++) {
+            Tuple t = new Tuple(td);
+            for (int j = 0; j < width; j++)
+                t.setField(j, groups[j].field(key(g, j)));
+            for (int a = 0; a < ops.length; a++)
+                t.setField(width + a, new IntField(result(g, a)));
+            tuples.add(t);
+        }
+        return new TupleIterator(td, tuples);
+    }
+
+    private boolean onlyCounts() {
+        for (Aggregator.Op op : ops) {
+            if (op != Aggregator.Op.COUNT)
+                return false;
+        }
+        return true;
+    }
+
+    /** @return the number of the group with key, starting it if new */
+    int group(int[] key) {
+        int i = hash(key, 0) & mask;
+        while (slots[i] != 0) {
+            int g = slots[i] - 1;
+            if (matches(g, key))
+                return g;
+            i = (i + 1) & mask;
+        }
+        if (size == capacity) {
+            grow();
+            return group(key);
+        }
+        int g = size++;
+        System.arraycopy(key, 0, keys, g * width, width);
+        slots[i] = g + 1;
+        return g;
+    }
+
+    private boolean matches(int g, int[] key) {
+        for (int j = 0, k = g * width; j < width; j++, k++) {
+            if (keys[k] != key[j])
+                return false;
+        }
+        return true;
+    }
+
+    /** Double the groups, keeping the slots at most half full. */
+    private void grow() {
+        capacity *= 2;
+        keys = Arrays.copyOf(keys, capacity * width);
+        counts = Arrays.copyOf(counts, capacity * ops.length);
+        values = Arrays.copyOf(values, capacity * ops.length);
+        slots = new int[2 * capacity];
+        mask = slots.length - 1;
+        for (int g = 0; g < size; g++) {
+            int i = hash(keys, g * width) & mask;
+            while (slots[i] != 0)
+                i = (i + 1) & mask;
+            slots[i] = g + 1;
+        }
+    }
+
+    // spread the bits of the width ints from ints[from] across the table
+    private int hash(int[] ints, int from) {
+        int h = 0;
+        for (int j = from; j < from + width; j++)
+            h = (h + ints[j]) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -12,6 +12,9 @@ import simpledb.Predicate.Op;
  * logical plan.
  */
 public class JoinOptimizer {
+    /** Fraction of pairs a range join is assumed to match */
+    static final double RANGE_SELECTIVITY = .30;
+
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
 
@@ -69,7 +72,12 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        if (lj.algorithm == LogicalJoinNode.Algorithm.HASH)
+            j = new HashEquiJoin(p,plan1,plan2);
+        else if (lj.algorithm == LogicalJoinNode.Algorithm.SORT_MERGE)
+            j = new SortMergeJoin(p,plan1,plan2);
+        else
+            j = new BlockNestedLoopJoin(p,plan1,plan2);
 
         return j;
 
@@ -100,6 +108,7 @@ public class JoinOptimizer {
      *            side of the query
      * @return An estimate of the cost of this query, in terms of cost1 and
      *         cost2
+     * @see #chooseAlgorithm
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
@@ -108,11 +117,105 @@ public class JoinOptimizer {
             // You do not need to implement proper support for these for Project 3.
             return card1 + cost1 + cost2;
         } else {
-            // some code goes here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic nested-loops
-            // join.
-            return (double) card1 * card2 + cost1 + card1 * cost2;
+            return algorithmCost(chooseAlgorithm(j, card1, card2, cost1, cost2),
+                    j, card1, card2, cost1, cost2);
+        }
+    }
+
+    /**
+     * Choose the cheapest physical operator for a join: BlockNestedLoopJoin,
+     * HashEquiJoin (which builds its table on the left-hand side) for
+     * equality joins, or SortMergeJoin for equality and range joins.  The
+     * arguments are as for estimateJoinCost.
+     */
+    public LogicalJoinNode.Algorithm chooseAlgorithm(LogicalJoinNode j, int card1,
+            int card2, double cost1, double cost2) {
+        LogicalJoinNode.Algorithm best = LogicalJoinNode.Algorithm.NESTED_LOOPS;
+        if (j instanceof LogicalSubplanJoinNode)
+            return best;
+        double bestCost = algorithmCost(best, j, card1, card2, cost1, cost2);
+        for (LogicalJoinNode.Algorithm a : LogicalJoinNode.Algorithm.values()) {
+            if (a == LogicalJoinNode.Algorithm.HASH && j.p != Predicate.Op.EQUALS)
+                continue;
+            if (a == LogicalJoinNode.Algorithm.SORT_MERGE && !SortMergeJoin.supports(j.p))
+                continue;
+            double cost = algorithmCost(a, j, card1, card2, cost1, cost2);
+            if (cost < bestCost) {
+                best = a;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    private double algorithmCost(LogicalJoinNode.Algorithm a, LogicalJoinNode j,
+            int card1, int card2, double cost1, double cost2) {
+        switch (a) {
+        case HASH:
+            return hashJoinCost(card1, card2, cost1, cost2);
+        case SORT_MERGE:
+            return sortMergeCost(j, card1, card2, cost1, cost2);
+        default:
+            return nestedLoopsCost(j, card1, card2, cost1, cost2);
+        }
+    }
+
+    // block nested loops: one scan of the inner per block of outer tuples
+    // (counting the last, partial block as a whole one), and one predicate
+    // application per pair
+    private double nestedLoopsCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2) {
+        int block = BlockNestedLoopJoin.blockTuples(outerTupleSize(j),
+                BlockNestedLoopJoin.DEFAULT_BLOCK_BYTES);
+        return (double) card1 * card2 + cost1 + ((double) card1 / block + 1) * cost2;
+    }
+
+    // hash join: one scan of each side, one insert per outer tuple and one
+    // probe per inner tuple.  If the outer does not fit in memory, all but
+    // one partition of each side is also written out and read back.
+    private static double hashJoinCost(int card1, int card2, double cost1,
+            double cost2) {
+        double cost = cost1 + cost2 + card1 + card2;
+        if (card1 > HashEquiJoin.MAP_SIZE) {
+            double spilled = 1.0 - 1.0 / HashEquiJoin.SPILL_PARTITIONS;
+            cost += 2 * spilled * (cost1 + cost2);
+        }
+        return cost;
+    }
+
+    // sort-merge: sort both sides, then one read per tuple for an equality
+    // join.  For a range join each tuple of the driving side also rereads
+    // the prefix of the other side that it matches.
+    private static double sortMergeCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2) {
+        double cost = sortCost(card1, cost1) + sortCost(card2, cost2) + card1 + card2;
+        if (j.p != Predicate.Op.EQUALS)
+            cost += RANGE_SELECTIVITY * card1 * card2;
+        return cost;
+    }
+
+    // comparisons to sort, plus writing and reading back the runs of an
+    // external sort
+    private static double sortCost(int card, double cost) {
+        double sort = cost + card * (Math.log(card + 1) / Math.log(2));
+        if (card > ExternalSort.DEFAULT_MEMORY_TUPLES)
+            sort += 2 * cost;
+        return sort;
+    }
+
+    /**
+     * Return the size in bytes of a tuple of the outer table of j, or of an
+     * int if the table is unknown.  For an outer that is itself a join this
+     * is an underestimate, as only the first table is counted.
+     */
+    private int outerTupleSize(LogicalJoinNode j) {
+        Integer tableId = p == null ? null : p.getTableId(j.t1Alias);
+        if (tableId == null)
+            return Type.INT_TYPE.getLen();
+        try {
+            return Database.getCatalog().getTupleDesc(tableId).getSize();
+        } catch (NoSuchElementException e) {
+            return Type.INT_TYPE.getLen();
         }
     }
 
@@ -168,7 +271,7 @@ public class JoinOptimizer {
         } 
         else {
         	//went with .30 as described in the proj3 spec
-          	return (int) (.30 * card1 * card2);
+          	return (int) (RANGE_SELECTIVITY * card1 * card2);
         }
     }
 
@@ -237,6 +340,8 @@ public class JoinOptimizer {
         //Replace the following
         
         //1. j = set of join nodes
+        if (joins.isEmpty())
+            return joins;
         PlanCache plans = new PlanCache();
 		//2. for (i in 1...|j|):  // First find best plan for single join, then for two joins, etc. 
 		for (int i = 1; i <= joins.size(); i++) {
@@ -407,8 +512,10 @@ public class JoinOptimizer {
 
         LogicalJoinNode j2 = j.swapInnerOuter();
         double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        boolean swapped = false;
         if (cost2 < cost1) {
             boolean tmp;
+            swapped = true;
             j = j2;
             cost1 = cost2;
             tmp = rightPkey;
@@ -417,6 +524,12 @@ public class JoinOptimizer {
         }
         if (cost1 >= bestCostSoFar)
             return null;
+        if (!(j instanceof LogicalSubplanJoinNode)) {
+            if (swapped)
+                j = j.using(chooseAlgorithm(j, t2card, t1card, t2cost, t1cost));
+            else
+                j = j.using(chooseAlgorithm(j, t1card, t2card, t1cost, t2cost));
+        }
 
         CostCard cc = new CostCard();
 
@@ -0,0 +1,525 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LockManager grants locks to transactions for BufferPool at three
+ * granularities: tables, pages and tuples (RecordIds).  Reads and writes
+ * of whole pages take a shared (S) or exclusive (X) lock on the page;
+ * transactions changing single tuples take an intention-exclusive (IX)
+ * lock on the page and an X lock on each tuple, so several of them can
+ * change different tuples of the same page.  Every page or tuple lock is
+ * taken under the matching intention lock (IS or IX) on its table, and a
+ * table lock in S or X mode covers everything below it.  Locks are held
+ * until releaseAll is called when the transaction completes (strict
+ * two-phase locking); a transaction asking for a stronger mode than it
+ * holds is upgraded to the weakest mode covering both.
+ * <p>
+ * Once a transaction holds more than pageEscalation tuple locks on one
+ * page, or tableEscalation on one table, they are replaced by a single
+ * lock on the page or table, so that bulk inserts and deletes do not
+ * fill the lock table.
+ * <p>
+ * A request that conflicts blocks until it can be granted.  Before each
+ * wait the requester's edges in the wait-for graph are updated, and if
+ * they close a cycle the requester is chosen as the victim and
+ * TransactionAbortedException is thrown; the caller must then abort.
+ * Waits are managed blocks, so a Gather worker waiting for a lock lets
+ * the fork-join pool run another worker in its place.
+ * <p>
+ * Counters for requests, conflicts, deadlocks, escalations and time spent
+ * waiting are kept for monitoring.
+ *
+ * @see BufferPool#getPage
+ * @see TransactionGraph
+ */
+public class LockManager {
+
+    /** Tuple locks on one page that a transaction may hold before they
+        are escalated to a page lock */
+    static int pageEscalation = 64;
+
+    /** Tuple locks on one table that a transaction may hold before they
+        are escalated to a table lock */
+    static int tableEscalation = 1024;
+
+    enum Mode { IS, IX, S, SIX, X }
+
+    private static final boolean[][] COMPATIBLE = {
+        //           IS     IX     S      SIX    X
+        /* IS  */ { true,  true,  true,  true,  false },
+        /* IX  */ { true,  true,  false, false, false },
+        /* S   */ { true,  false, true,  false, false },
+        /* SIX */ { true,  false, false, false, false },
+        /* X   */ { false, false, false, false, false },
+    };
+
+    /** @return the weakest mode at least as strong as both a and b */
+    static Mode combine(Mode a, Mode b) {
+        if (a == null || a == b)
+            return b;
+        if (a == Mode.X || b == Mode.X)
+            return Mode.X;
+        if (a == Mode.IS)
+            return b;
+        if (b == Mode.IS)
+            return a;
+        // two different ones of IX, S and SIX
+        return Mode.SIX;
+    }
+
+    private static boolean covers(Mode held, Mode wanted) {
+        return held != null && combine(held, wanted) == held;
+    }
+
+    /** A blocked request, one per waiting thread of a transaction */
+    private static class Wait {
+        final TransactionId tid;
+        final Mode mode;
+
+        Wait(TransactionId tid, Mode mode) {
+            this.tid = tid;
+            this.mode = mode;
+        }
+    }
+
+    private static class Lock {
+        final HashMap<TransactionId,Mode> holders = new HashMap<TransactionId,Mode>();
+        // blocked requests, in the order they began waiting
+        final ArrayList<Wait> waiters = new ArrayList<Wait>();
+
+        boolean canGrant(TransactionId tid, Mode mode) {
+            return blockers(tid, mode).isEmpty();
+        }
+
+        /** @return the holders a request by tid would have to wait for */
+        HashSet<TransactionId> blockers(TransactionId tid, Mode mode) {
+            Mode want = combine(holders.get(tid), mode);
+            HashSet<TransactionId> b = new HashSet<TransactionId>();
+            for (Map.Entry<TransactionId,Mode> h : holders.entrySet()) {
+                if (!h.getKey().equals(tid)
+                    && !COMPATIBLE[want.ordinal()][h.getValue().ordinal()])
+                    b.add(h.getKey());
+            }
+            return b;
+        }
+
+        boolean isFree() {
+            return holders.isEmpty() && waiters.isEmpty();
+        }
+    }
+
+    // keys are table ids (Integer), PageIds and RecordIds
+    private final HashMap<Object,Lock> locks = new HashMap<Object,Lock>();
+    private final HashMap<TransactionId,HashSet<Object>> held =
+        new HashMap<TransactionId,HashSet<Object>>();
+    // tuple locks granted per page and per table, for escalation
+    private final HashMap<TransactionId,HashMap<Object,Integer>> tupleCounts =
+        new HashMap<TransactionId,HashMap<Object,Integer>>();
+    private final TransactionGraph waitsFor = new TransactionGraph();
+
+    // guards all of the above.  Waiters park on changed rather than on the
+    // object's monitor, so a blocked virtual thread frees its carrier.
+    private final ReentrantLock latch = new ReentrantLock();
+    private final Condition changed = latch.newCondition();
+
+    private long requests = 0;
+    private long conflicts = 0;
+    private long deadlocks = 0;
+    private long escalations = 0;
+    private long waitNanos = 0;
+
+    private static Integer table(PageId pid) {
+        return Integer.valueOf(pid.getTableId());
+    }
+
+    private static Mode mode(Permissions perm) {
+        return perm == Permissions.READ_WRITE ? Mode.X : Mode.S;
+    }
+
+    private static Mode intention(Mode m) {
+        return m == Mode.S || m == Mode.IS ? Mode.IS : Mode.IX;
+    }
+
+    private Mode heldMode(TransactionId tid, Object key) {
+        Lock lock = locks.get(key);
+        return lock == null ? null : lock.holders.get(tid);
+    }
+
+    /**
+     * Lock page pid for tid: S for READ_ONLY, X for READ_WRITE.
+     *
+     * @throws TransactionAbortedException if waiting would deadlock, or
+     *   the thread is interrupted while waiting
+     */
+    public void acquire(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
+        latch.lock();
+        try {
+            Mode m = mode(perm);
+            if (covers(heldMode(tid, table(pid)), m))
+                return;
+            lock(tid, table(pid), intention(m));
+            lock(tid, pid, m);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Lock page pid IX for tid, which is going to change some of its
+     * tuples and lock each of them with acquireTuple.
+     */
+    public void acquireForUpdate(TransactionId tid, PageId pid)
+        throws TransactionAbortedException {
+        latch.lock();
+        try {
+            if (covers(heldMode(tid, table(pid)), Mode.X))
+                return;
+            lock(tid, table(pid), Mode.IX);
+            lock(tid, pid, Mode.IX);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Lock tuple rid for tid: S for READ_ONLY, X for READ_WRITE.  May
+     * escalate tid's tuple locks to a page or table lock.
+     */
+    public void acquireTuple(TransactionId tid, RecordId rid, Permissions perm)
+        throws TransactionAbortedException {
+        latch.lock();
+        try {
+            acquireTupleLatched(tid, rid, perm);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private void acquireTupleLatched(TransactionId tid, RecordId rid, Permissions perm)
+        throws TransactionAbortedException {
+        Mode m = mode(perm);
+        PageId pid = rid.getPageId();
+        Integer table = table(pid);
+        if (covers(heldMode(tid, table), m) || covers(heldMode(tid, pid), m))
+            return;
+        boolean first = heldMode(tid, rid) == null;
+        lock(tid, table, intention(m));
+        lock(tid, pid, intention(m));
+        lock(tid, rid, m);
+
+        // only a newly locked tuple counts towards escalation, not a
+        // tuple read again or upgraded from S to X
+        if (!first)
+            return;
+        if (count(tid, pid) > pageEscalation) {
+            escalate(tid, pid);
+        }
+        if (count(tid, table) > tableEscalation) {
+            escalate(tid, table);
+        }
+    }
+
+    private int count(TransactionId tid, Object key) {
+        HashMap<Object,Integer> counts = tupleCounts.get(tid);
+        if (counts == null) {
+            counts = new HashMap<Object,Integer>();
+            tupleCounts.put(tid, counts);
+        }
+        Integer n = counts.get(key);
+        n = n == null ? 1 : n + 1;
+        counts.put(key, n);
+        return n;
+    }
+
+    /**
+     * Replace tid's locks below key (a page or a table) with one lock on
+     * key, exclusive if any of them was.
+     */
+    private void escalate(TransactionId tid, Object key)
+        throws TransactionAbortedException {
+        ArrayList<Object> below = new ArrayList<Object>();
+        Mode m = Mode.S;
+        for (Object k : held.get(tid)) {
+            boolean under = key instanceof PageId
+                ? k instanceof RecordId && ((RecordId) k).getPageId().equals(key)
+                : (k instanceof RecordId && table(((RecordId) k).getPageId()).equals(key))
+                  || (k instanceof PageId && table((PageId) k).equals(key));
+            if (under) {
+                below.add(k);
+                Mode h = heldMode(tid, k);
+                if (h == Mode.X || h == Mode.IX || h == Mode.SIX)
+                    m = Mode.X;
+            }
+        }
+        lock(tid, key, m);
+        escalations++;
+        HashSet<Object> keys = held.get(tid);
+        for (Object k : below) {
+            keys.remove(k);
+            unlock(tid, k);
+        }
+        tupleCounts.get(tid).remove(key);
+        changed.signalAll();
+    }
+
+    /**
+     * Lock key in mode for tid, blocking while another transaction holds
+     * a conflicting lock.
+     */
+    private void lock(TransactionId tid, Object key, Mode mode)
+        throws TransactionAbortedException {
+        requests++;
+        Lock lock = locks.get(key);
+        if (lock == null) {
+            lock = new Lock();
+            locks.put(key, lock);
+        }
+        Mode have = lock.holders.get(tid);
+        if (covers(have, mode))
+            return;
+
+        if (!lock.canGrant(tid, mode)) {
+            conflicts++;
+            long start = System.nanoTime();
+            Wait wait = new Wait(tid, mode);
+            lock.waiters.add(wait);
+            boolean granted = false;
+            try {
+                while (!lock.canGrant(tid, mode)) {
+                    waitsFor.setEdges(wait, tid, lock.blockers(tid, mode));
+                    if (waitsFor.hasCycle(tid)) {
+                        deadlocks++;
+                        throw new TransactionAbortedException();
+                    }
+                    try {
+                        awaitGrant(lock, tid, mode);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new TransactionAbortedException();
+                    }
+                }
+                granted = true;
+            } finally {
+                lock.waiters.remove(wait);
+                waitsFor.removeEdges(wait, tid);
+                waitNanos += System.nanoTime() - start;
+                // a granted lock gets tid as a holder below, so stays
+                if (!granted && lock.isFree())
+                    locks.remove(key);
+            }
+        }
+
+        lock.holders.put(tid, combine(lock.holders.get(tid), mode));
+        HashSet<Object> keys = held.get(tid);
+        if (keys == null) {
+            keys = new HashSet<Object>();
+            held.put(tid, keys);
+        }
+        keys.add(key);
+        refreshWaiters(lock);
+    }
+
+    /**
+     * Wait for a change to the locks, or until lock can be granted to tid
+     * in mode.  On a fork-join worker the pool may start another thread
+     * while this one waits.
+     */
+    private void awaitGrant(final Lock lock, final TransactionId tid, final Mode mode)
+        throws InterruptedException {
+        ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+            private boolean woken = false;
+
+            public boolean isReleasable() {
+                return woken || lock.canGrant(tid, mode);
+            }
+
+            public boolean block() throws InterruptedException {
+                changed.await();
+                woken = true;
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Make tid's lock on pid exclusive if that needs no waiting, as when
+     * the buffer pool evicts a page only tid has changed.
+     *
+     * @return true if tid now holds pid, or its table, exclusively
+     */
+    boolean tryExclusive(TransactionId tid, PageId pid) {
+        latch.lock();
+        try {
+            return tryExclusiveLatched(tid, pid);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private boolean tryExclusiveLatched(TransactionId tid, PageId pid) {
+        if (heldMode(tid, table(pid)) == Mode.X)
+            return true;
+        Lock lock = locks.get(pid);
+        if (lock == null || !lock.holders.containsKey(tid) || !lock.canGrant(tid, Mode.X))
+            return false;
+        lock.holders.put(tid, Mode.X);
+        refreshWaiters(lock);
+        return true;
+    }
+
+    /** Release tid's lock on pid, and its tuple locks on pid, if any. */
+    public void release(TransactionId tid, PageId pid) {
+        latch.lock();
+        try {
+            releaseLatched(tid, pid);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private void releaseLatched(TransactionId tid, PageId pid) {
+        HashSet<Object> keys = held.get(tid);
+        if (keys == null)
+            return;
+        Iterator<Object> it = keys.iterator();
+        while (it.hasNext()) {
+            Object k = it.next();
+            if (k.equals(pid) || (k instanceof RecordId && ((RecordId) k).getPageId().equals(pid))) {
+                it.remove();
+                unlock(tid, k);
+            }
+        }
+        if (keys.isEmpty())
+            held.remove(tid);
+        changed.signalAll();
+    }
+
+    /** Release every lock tid holds. */
+    public void releaseAll(TransactionId tid) {
+        latch.lock();
+        try {
+            releaseAllLatched(tid);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private void releaseAllLatched(TransactionId tid) {
+        tupleCounts.remove(tid);
+        HashSet<Object> keys = held.remove(tid);
+        if (keys == null)
+            return;
+        for (Object k : keys) {
+            unlock(tid, k);
+        }
+        changed.signalAll();
+    }
+
+    private void unlock(TransactionId tid, Object key) {
+        Lock lock = locks.get(key);
+        if (lock == null)
+            return;
+        lock.holders.remove(tid);
+        if (lock.isFree()) {
+            locks.remove(key);
+        } else {
+            refreshWaiters(lock);
+        }
+    }
+
+    /** The holders of lock changed: point its waiters' edges at the new ones. */
+    private void refreshWaiters(Lock lock) {
+        for (Wait w : lock.waiters) {
+            waitsFor.setEdges(w, w.tid, lock.blockers(w.tid, w.mode));
+        }
+    }
+
+    /** @return true if tid holds any lock on pid, or an S or X lock on its table */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        latch.lock();
+        try {
+            Mode t = heldMode(tid, table(pid));
+            return heldMode(tid, pid) != null || covers(t, Mode.S);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** @return true if tid holds any lock on tuple rid, or one covering it */
+    public boolean holdsLock(TransactionId tid, RecordId rid) {
+        latch.lock();
+        try {
+            return heldMode(tid, rid) != null
+                || covers(heldMode(tid, rid.getPageId()), Mode.S)
+                || covers(heldMode(tid, table(rid.getPageId())), Mode.S);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** @return the number of locks tid holds, at every granularity */
+    public int locksHeld(TransactionId tid) {
+        latch.lock();
+        try {
+            HashSet<Object> keys = held.get(tid);
+            return keys == null ? 0 : keys.size();
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** @return the number of lock requests made */
+    public long getRequests() {
+        latch.lock();
+        try {
+            return requests;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** @return the number of requests that had to wait for another transaction */
+    public long getConflicts() {
+        latch.lock();
+        try {
+            return conflicts;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** @return the number of requests aborted to break a deadlock */
+    public long getDeadlocks() {
+        latch.lock();
+        try {
+            return deadlocks;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** @return the number of times tuple locks were escalated */
+    public long getEscalations() {
+        latch.lock();
+        try {
+            return escalations;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** @return total time requests spent blocked, in milliseconds */
+    public long getWaitMillis() {
+        latch.lock();
+        try {
+            return waitNanos / 1000000;
+        } finally {
+            latch.unlock();
+        }
+    }
+}
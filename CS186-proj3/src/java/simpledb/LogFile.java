@@ -3,7 +3,9 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -14,22 +16,30 @@ two-phase locking discipline are followed.  <p>
 <u> Locking note: </u>
 <p>
 
-Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
-that reason, any LogFile operation that needs to access the BufferPool
-must not be declared synchronized and must begin with a block like:
+Most of the methods here hold the log's latch (to prevent concurrent
+log writes from happening); many of the methods in BufferPool hold the
+BufferPool's latch (for similar reasons.)  Problem is that BufferPool
+writes log records (on page flushed) and the log file flushes
+BufferPool pages (on checkpoints and recovery.)  This can lead to
+deadlock.  For that reason, any LogFile operation that needs to access
+the BufferPool must take the BufferPool's latch first, with a block
+like:
 
 <p>
 <pre>
-    synchronized (Database.getBufferPool()) {
-       synchronized (this) {
+    ReentrantLock poolLatch = Database.getBufferPool().latch;
+    poolLatch.lock();
+    try {
+       latch.lock();
+       try {
 
        ..
 
+       } finally {
+           latch.unlock();
        }
+    } finally {
+        poolLatch.unlock();
     }
 </pre>
 */
@@ -39,33 +49,60 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log is stored by SegmentedLog as a sequence of fixed-size
+segment files.  Records are addressed by their log sequence number
+(LSN), a byte offset into the whole log that is never renumbered, even
+when old segments are deleted.  The offsets below are all LSNs.
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The control file (the file the LogFile was created with) holds the
+LSN of the last written checkpoint, or -1 if there are no checkpoints,
+followed by the segment size.
+
+<li> The segments hold nothing but log records.  Log records are
+variable length.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer LSN representing
+the position in the log where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, DELTA, BEGIN,
+and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+<li>UPDATE RECORDS consist of three entries: the long integer offset
+of the previous record written by the same transaction (its BEGIN
+record for the first update), a before image and an after image.
+These images are serialized Page objects, and can be accessed with the
+LogFile.readPageData() and LogFile.writePageData() methods.  Pages and
+page ids are identified by the integer tags registered in PageCodec.
+See LogFile.print() for an example.  The previous-record offsets chain
+each transaction's records backwards, so rollback only has to read
+the records of the aborting transaction.
+
+<li> DELTA records are compact UPDATE records for HeapPages.  After the
+previous-record offset they hold the page tag and the page id (as in
+page data), the page's header size and tuple
+size, an integer count of changed slots and, for each changed slot, its
+integer slot number, its before and after header bits as booleans and
+its before and after tuple bytes.  logWrite() falls back to an UPDATE
+record when the page is not a HeapPage or the delta would not be
+smaller than the full images.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first and last log records on disk,
+followed by the dirty page table.  The format of the record is an
+integer count of the number of transactions, as well as a long integer
+transaction id, a long integer first record offset and a long integer
+last record offset for each active transaction; then an integer count
+of dirty pages, and a page id (see PageCodec.writePageId) and a long
+integer recovery offset for each of them.  Checkpoints are fuzzy: a
+page is dirty here if it was written to its table file after being
+logged but that file has not been forced since, and its recovery
+offset is the first record that may not be on disk.  Redo starts at the
+smallest recovery offset (or at the checkpoint if there are none.)
 
 </ul>
 
@@ -74,7 +111,11 @@ for each active transaction.
 public class LogFile {
 
     File logFile;
-    RandomAccessFile raf;
+    SegmentedLog log;
+
+    /** Guards the log's state.  A lock rather than the object's monitor,
+        since it is held across log writes and forces. */
+    final ReentrantLock latch = new ReentrantLock();
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -82,16 +123,58 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
+    static final long NO_PREV_RECORD = -1;
 
     static int INT_SIZE = 4;
     static int LONG_SIZE = 8;
 
+    /** Size of each log segment file, in bytes, for newly created logs */
+    static long segmentSize = 16 * 1024 * 1024;
+
     long currentOffset = -1;
     int pageSize;
     int totalRecords = 0; // for PatchTest
 
+    /** Number of worker threads used by the redo pass of recover() */
+    static int recoveryThreads = Runtime.getRuntime().availableProcessors();
+
+    /** How long, in microseconds, the thread that forces a commit batch
+        waits for more COMMIT records to join the batch before forcing.
+        With 0 only commits that arrive while a force is already in
+        progress are batched together. */
+    static long groupCommitWindowMicros = 0;
+
+    // group commit state.  Every append gets the next sequence number;
+    // durableSeq is the highest sequence number known to be on disk.
+    long appendSeq = 0;
+    long durableSeq = 0;
+    boolean flushing = false;
+    final ReentrantLock flushLock = new ReentrantLock();
+    final Condition flushed = flushLock.newCondition();
+
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    HashMap<Long,Long> tidToLastLogRecord = new HashMap<Long,Long>();
+
+    /** Log offsets of the first and last records for a page written to
+        its table file since that file was last forced. */
+    static class DirtyPage {
+        long recLSN;
+        long lastLSN;
+
+        DirtyPage(long lsn) {
+            recLSN = lsn;
+            lastLSN = lsn;
+        }
+    }
+
+    // dirty page table (see the CHECKPOINT record format)
+    HashMap<PageId,DirtyPage> dirtyPages = new HashMap<PageId,DirtyPage>();
+
+    /** Default period of the background flusher, in milliseconds */
+    public static final long DEFAULT_FLUSH_INTERVAL = 30000;
+    Thread flusher = null;
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -102,11 +185,11 @@ public class LogFile {
         do it, while if someone starts adding log file entries, then first
         throw out the initial log file contents.
 
-        @param f The log file's name
+        @param f The log's control file; segments are created beside it
     */
     public LogFile(File f) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        log = new SegmentedLog(f, segmentSize, false);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -125,13 +208,11 @@ public class LogFile {
     // the log.
     void preAppend() throws IOException {
         totalRecords++;
+        appendSeq++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            log.reset();
+            currentOffset = log.getFilePointer();
         }
     }
 
@@ -147,9 +228,12 @@ public class LogFile {
         // must have buffer pool lock before proceeding, since this
         // calls rollback
 
-        synchronized (Database.getBufferPool()) {
+        ReentrantLock poolLatch = Database.getBufferPool().latch;
+        poolLatch.lock();
+        try {
 
-            synchronized(this) {
+            latch.lock();
+            try {
                 preAppend();
                 //Debug.log("ABORT");
                 //should we verify that this is a live transaction?
@@ -158,32 +242,114 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                log.writeInt(ABORT_RECORD);
+                log.writeLong(tid.getId());
+                log.writeLong(currentOffset);
+                currentOffset = log.getFilePointer();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToLastLogRecord.remove(tid.getId());
+            } finally {
+                latch.unlock();
             }
+        } finally {
+            poolLatch.unlock();
         }
     }
 
     /** Write a commit record to disk for the specified tid,
         and force the log to disk.
+        <p>
+        Commits are forced in groups: the record is appended under the
+        LogFile lock, but the caller waits for it to become durable
+        outside of it.  The first waiter to find no force in progress
+        becomes the leader and forces the log once on behalf of every
+        record appended so far; the others sleep until it is done.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long seq;
+        latch.lock();
+        try {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            log.writeInt(COMMIT_RECORD);
+            log.writeLong(tid.getId());
+            log.writeLong(currentOffset);
+            currentOffset = log.getFilePointer();
+            seq = appendSeq;
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLastLogRecord.remove(tid.getId());
+        } finally {
+            latch.unlock();
+        }
+        waitUntilDurable(seq);
+    }
+
+    /** Block until the record with sequence number seq is on disk,
+        forcing the log if no other thread is doing so. */
+    void waitUntilDurable(long seq) throws IOException {
+        while (true) {
+            flushLock.lock();
+            try {
+                while (durableSeq < seq && flushing) {
+                    try {
+                        flushed.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException("interrupted while waiting for commit");
+                    }
+                }
+                if (durableSeq >= seq)
+                    return;
+                flushing = true;
+            } finally {
+                flushLock.unlock();
+            }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+            try {
+                if (groupCommitWindowMicros > 0) {
+                    try {
+                        Thread.sleep(groupCommitWindowMicros / 1000,
+                                     (int) (groupCommitWindowMicros % 1000) * 1000);
+                    } catch (InterruptedException e) {
+                        throw new IOException("interrupted while waiting for commit");
+                    }
+                }
+
+                long batch;
+                latch.lock();
+                try {
+                    batch = appendSeq;
+                } finally {
+                    latch.unlock();
+                }
+                log.force();
+                markDurable(batch);
+            } finally {
+                flushLock.lock();
+                try {
+                    flushing = false;
+                    flushed.signalAll();
+                } finally {
+                    flushLock.unlock();
+                }
+            }
+        }
+    }
+
+    void markDurable(long seq) {
+        flushLock.lock();
+        try {
+            if (seq > durableSeq) {
+                durableSeq = seq;
+                flushed.signalAll();
+            }
+        } finally {
+            flushLock.unlock();
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -194,263 +360,539 @@ public class LogFile {
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        latch.lock();
+        try {
+            logWriteLatched(tid, before, after);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private void logWriteLatched(TransactionId tid, Page before, Page after)
+        throws IOException {
+        Debug.log("WRITE, offset = " + log.getFilePointer());
         preAppend();
         /* update record conists of
 
            record type
            transaction id
+           offset of this transaction's previous record
            before page data (see writePageData)
            after page data
            start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+           or, for a delta record, the changed slots (see SlotDelta)
+           in place of the page data
+        */
+        Long prev = tidToLastLogRecord.get(tid.getId());
+        SlotDelta delta = SlotDelta.between(before, after, tid);
+        log.writeInt(delta == null ? UPDATE_RECORD : DELTA_RECORD);
+        log.writeLong(tid.getId());
+        log.writeLong(prev == null ? NO_PREV_RECORD : prev);
+
+        if (delta == null) {
+            writePageData(log,before);
+            writePageData(log,after);
+        } else {
+            delta.write(log);
+        }
+        log.writeLong(currentOffset);
+        tidToLastLogRecord.put(tid.getId(), currentOffset);
+        DirtyPage dp = dirtyPages.get(after.getId());
+        if (dp == null)
+            dirtyPages.put(after.getId(), new DirtyPage(currentOffset));
+        else
+            dp.lastLSN = currentOffset;
+        currentOffset = log.getFilePointer();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
-
+    void writePageData(DataOutput log, Page p) throws IOException{
         //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+        // page type tag (see PageCodec)
+        // page id (see PageCodec.writePageId)
+        // page data length
+        // page data
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+        log.writeInt(PageCodec.pageTag(p));
+        PageCodec.writePageId(log, p.getId());
+        byte[] pageData = p.getPageData();
+        log.writeInt(pageData.length);
+        log.write(pageData);
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    Page readPageData(DataInput log) throws IOException {
+        int pageTag = log.readInt();
+        PageId pid = PageCodec.readPageId(log);
+        int pageSize = log.readInt();
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+        byte[] pageData = new byte[pageSize];
+        log.readFully(pageData); //read before image
+
+        return PageCodec.newPage(pageTag, pid, pageData);
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    /** Skip over page data written by writePageData without building
+        the page itself.  Throws EOFException if the data runs past the
+        end of the log (a torn write.)
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        @return the id of the skipped page
+    */
+    PageId skipPageData(SegmentedLog log) throws IOException {
+        log.readInt();
+        PageId pid = PageCodec.readPageId(log);
+        int pageSize = log.readInt();
+        long next = log.getFilePointer() + pageSize;
+        if (pageSize < 0 || next > log.length())
+            throw new EOFException();
+        log.seek(next);
+        return pid;
+    }
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
+    /** The slots of a HeapPage changed between a before and an after
+        image, as logged by a DELTA record.  Header bits are kept per slot
+        rather than per header byte, so applying one delta never touches
+        the bits of slots it does not name. */
+    static class SlotDelta {
+        int pageTag;
+        PageId pid;
+        int headerSize;
+        int tupleSize;
+        int[] slots;
+        boolean[] beforeUsed;
+        boolean[] afterUsed;
+        byte[][] beforeTuples;
+        byte[][] afterTuples;
+
+        /** @return the delta of the slots tid changed between before and
+            after, or null if a full image record should be written
+            instead.  Full images are only used while tid is the only
+            transaction changing the page, since undoing one would undo
+            everything else in it too. */
+        static SlotDelta between(Page before, Page after, TransactionId tid) {
+            if (!(before instanceof HeapPage) || !(after instanceof HeapPage)
+                || !before.getId().equals(after.getId()))
+                return null;
+            HeapPage hp = (HeapPage) after;
+            BitSet dirty = hp.getDirtySlots(tid);
+            int count = dirty.cardinality();
+            if (count == 0)
+                return null;
+            Set<TransactionId> writers = hp.getWriters();
+            writers.remove(tid);
+            if (writers.isEmpty()
+                && count * (2L * hp.td.getSize() + INT_SIZE + 2) >= 2L * BufferPool.PAGE_SIZE)
+                return null;
+            return of(before, after, dirty);
+        }
+
+        /** @return the slots whose header bit or tuple differ between
+            before and after, or null if they are not HeapPages */
+        static SlotDelta diff(Page before, Page after) {
+            if (!(before instanceof HeapPage) || !(after instanceof HeapPage))
+                return null;
+            HeapPage b = (HeapPage) before;
+            HeapPage a = (HeapPage) after;
+            byte[] beforeData = b.getPageData();
+            byte[] afterData = a.getPageData();
+            int headerSize = a.getHeaderSize();
+            int tupleSize = a.td.getSize();
+            BitSet changed = new BitSet();
+            for (int slot = 0; slot < a.numSlots; slot++) {
+                int off = headerSize + slot * tupleSize;
+                if (isUsed(beforeData, slot) != isUsed(afterData, slot)) {
+                    changed.set(slot);
+                    continue;
+                }
+                for (int i = off; i < off + tupleSize; i++) {
+                    if (beforeData[i] != afterData[i]) {
+                        changed.set(slot);
+                        break;
+                    }
+                }
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+            return of(before, after, changed);
+        }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+        /** @return the delta of the given slots between before and after,
+            which must be HeapPages of the same table */
+        static SlotDelta of(Page before, Page after, BitSet dirty) {
+            HeapPage hp = (HeapPage) after;
+            int count = dirty.cardinality();
+            int tupleSize = hp.td.getSize();
+            byte[] beforeData = before.getPageData();
+            byte[] afterData = after.getPageData();
+            SlotDelta d = new SlotDelta();
+            d.pageTag = PageCodec.pageTag(after);
+            d.pid = after.getId();
+            d.headerSize = hp.getHeaderSize();
+            d.tupleSize = tupleSize;
+            d.slots = new int[count];
+            d.beforeUsed = new boolean[count];
+            d.afterUsed = new boolean[count];
+            d.beforeTuples = new byte[count][];
+            d.afterTuples = new byte[count][];
+            int i = 0;
+            for (int slot = dirty.nextSetBit(0); slot >= 0; slot = dirty.nextSetBit(slot + 1)) {
+                d.slots[i] = slot;
+                d.beforeUsed[i] = isUsed(beforeData, slot);
+                d.afterUsed[i] = isUsed(afterData, slot);
+                d.beforeTuples[i] = d.tupleBytes(beforeData, slot);
+                d.afterTuples[i] = d.tupleBytes(afterData, slot);
+                i++;
+            }
+            return d;
+        }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+        static boolean isUsed(byte[] data, int slot) {
+            return (data[slot / 8] & (1 << (slot % 8))) != 0;
+        }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+        byte[] tupleBytes(byte[] data, int slot) {
+            byte[] t = new byte[tupleSize];
+            System.arraycopy(data, headerSize + slot * tupleSize, t, 0, tupleSize);
+            return t;
+        }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+        /** Patch the page bytes data with the after state of every slot
+            (redo) or with their before state (undo.) */
+        void apply(byte[] data, boolean redo) {
+            for (int i = 0; i < slots.length; i++) {
+                int slot = slots[i];
+                boolean used = redo ? afterUsed[i] : beforeUsed[i];
+                if (used)
+                    data[slot / 8] |= (byte) (1 << (slot % 8));
+                else
+                    data[slot / 8] &= (byte) ~(1 << (slot % 8));
+                System.arraycopy(redo ? afterTuples[i] : beforeTuples[i], 0,
+                                 data, headerSize + slot * tupleSize, tupleSize);
+            }
+        }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+        void write(DataOutput out) throws IOException {
+            out.writeInt(pageTag);
+            PageCodec.writePageId(out, pid);
+            out.writeInt(headerSize);
+            out.writeInt(tupleSize);
+            out.writeInt(slots.length);
+            for (int i = 0; i < slots.length; i++) {
+                out.writeInt(slots[i]);
+                out.writeBoolean(beforeUsed[i]);
+                out.writeBoolean(afterUsed[i]);
+                out.write(beforeTuples[i]);
+                out.write(afterTuples[i]);
+            }
         }
-        return newPage;
 
+        /** Read a delta written by write().  Throws EOFException if it
+            runs past the end of the log (a torn write.) */
+        static SlotDelta read(SegmentedLog in) throws IOException {
+            SlotDelta d = new SlotDelta();
+            d.pageTag = in.readInt();
+            d.pid = PageCodec.readPageId(in);
+            d.headerSize = in.readInt();
+            d.tupleSize = in.readInt();
+            int count = in.readInt();
+            if (d.headerSize < 0 || d.tupleSize < 0 || count < 0
+                || (long) count * (2L * d.tupleSize + INT_SIZE + 2) > in.length() - in.getFilePointer())
+                throw new EOFException();
+            d.slots = new int[count];
+            d.beforeUsed = new boolean[count];
+            d.afterUsed = new boolean[count];
+            d.beforeTuples = new byte[count][];
+            d.afterTuples = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                d.slots[i] = in.readInt();
+                d.beforeUsed[i] = in.readBoolean();
+                d.afterUsed[i] = in.readBoolean();
+                d.beforeTuples[i] = new byte[d.tupleSize];
+                in.readFully(d.beforeTuples[i]);
+                d.afterTuples[i] = new byte[d.tupleSize];
+                in.readFully(d.afterTuples[i]);
+            }
+            return d;
+        }
     }
 
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
 
     */
-    public synchronized  void logXactionBegin(TransactionId tid)
+    public void logXactionBegin(TransactionId tid)
         throws IOException {
+        latch.lock();
+        try {
+            logXactionBeginLatched(tid);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private void logXactionBeginLatched(TransactionId tid) throws IOException {
         Debug.log("BEGIN");
         if(tidToFirstLogRecord.get(tid.getId()) != null){
             System.err.printf("logXactionBegin: already began this tid\n");
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        log.writeInt(BEGIN_RECORD);
+        log.writeLong(tid.getId());
+        log.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        tidToLastLogRecord.put(tid.getId(), currentOffset);
+        currentOffset = log.getFilePointer();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.
+        <p>
+        The checkpoint is fuzzy: nothing is flushed, and only the LogFile
+        lock is held, while the active transaction and dirty page tables
+        are written.  Pages that are dirty in the BufferPool need not be
+        written, since their changes are not logged until they are.  The
+        control file is pointed at the new record once it is durable.
+        Use syncDataFiles() and logTruncate() (as the background flusher
+        does) to advance the point from which redo must start.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        long startCpOffset, seq;
+        latch.lock();
+        try {
+            //Debug.log("CHECKPOINT, offset = " + log.getFilePointer());
+            preAppend();
+            startCpOffset = log.getFilePointer();
+            log.writeInt(CHECKPOINT_RECORD);
+            log.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            log.writeInt(tidToFirstLogRecord.size());
+            for (Long key : tidToFirstLogRecord.keySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                log.writeLong(key);
+                log.writeLong(tidToFirstLogRecord.get(key));
+                log.writeLong(tidToLastLogRecord.get(key));
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //and the pages whose table files have not been forced
+            log.writeInt(dirtyPages.size());
+            for (Map.Entry<PageId,DirtyPage> e : dirtyPages.entrySet()) {
+                PageCodec.writePageId(log, e.getKey());
+                log.writeLong(e.getValue().recLSN);
             }
-        }
 
-        logTruncate();
-    }
+            log.writeLong(currentOffset);
+            currentOffset = log.getFilePointer();
+            seq = appendSeq;
+        } finally {
+            latch.unlock();
+        }
 
-    /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        waitUntilDurable(seq);
 
-        long minLogRecord = cpLoc;
+        //once the CP is on disk, make sure the CP location in the
+        // control file is updated
+        latch.lock();
+        try {
+            log.setCheckpoint(startCpOffset);
+        } finally {
+            latch.unlock();
+        }
+        //Debug.log("CP OFFSET = " + currentOffset);
+    }
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+    /** Read the body of a checkpoint record (after its type and tid),
+        adding its active transactions to firsts and lasts and its dirty
+        page table to dirty.  Any of them may be null to skip.  Leaves the
+        file positioned at the record's trailing offset. */
+    static void readCheckpoint(SegmentedLog in, Map<Long,Long> firsts,
+                               Map<Long,Long> lasts, Map<PageId,Long> dirty)
+        throws IOException {
+        int numXactions = in.readInt();
+        if (numXactions < 0)
+            throw new EOFException();
+        for (int i = 0; i < numXactions; i++) {
+            long tid = in.readLong();
+            long first = in.readLong();
+            long last = in.readLong();
+            if (firsts != null)
+                firsts.put(tid, first);
+            if (lasts != null)
+                lasts.put(tid, last);
+        }
+        int numDirty = in.readInt();
+        if (numDirty < 0)
+            throw new EOFException();
+        for (int i = 0; i < numDirty; i++) {
+            PageId pid = PageCodec.readPageId(in);
+            long recLSN = in.readLong();
+            if (dirty != null)
+                dirty.put(pid, recLSN);
+        }
+    }
 
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+    /** Force the table files of every page in the dirty page table, and
+        drop the pages that were not written again meanwhile.  The table
+        is copied under the BufferPool lock, so every page write it names
+        has completed, but the files are forced without holding any lock.
+    */
+    public void syncDataFiles() throws IOException {
+        HashMap<PageId,Long> synced = new HashMap<PageId,Long>();
+        ReentrantLock poolLatch = Database.getBufferPool().latch;
+        poolLatch.lock();
+        try {
+            latch.lock();
+            try {
+                for (Map.Entry<PageId,DirtyPage> e : dirtyPages.entrySet()) {
+                    synced.put(e.getKey(), e.getValue().lastLSN);
+                }
+            } finally {
+                latch.unlock();
             }
+        } finally {
+            poolLatch.unlock();
+        }
 
-            int numOutstanding = raf.readInt();
+        HashSet<Integer> tables = new HashSet<Integer>();
+        for (PageId pid : synced.keySet()) {
+            tables.add(pid.getTableId());
+        }
+        for (Integer tableid : tables) {
+            try {
+                Database.getCatalog().getDbFile(tableid).force();
+            } catch (NoSuchElementException e) {
+                // table was dropped from the catalog; nothing to force
+            }
+        }
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+        latch.lock();
+        try {
+            for (Map.Entry<PageId,Long> e : synced.entrySet()) {
+                DirtyPage dp = dirtyPages.get(e.getKey());
+                if (dp == null)
+                    continue;
+                if (dp.lastLSN == e.getValue())
+                    dirtyPages.remove(e.getKey());
+                else
+                    dp.recLSN = Math.max(dp.recLSN, e.getValue());
             }
+        } finally {
+            latch.unlock();
         }
+    }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+    /** Start a daemon thread that, every periodMillis, forces the table
+        files, takes a checkpoint and truncates the log.  Stopped by
+        shutdown(). */
+    public void startFlusher(final long periodMillis) {
+        latch.lock();
+        try {
+            startFlusherLatched(periodMillis);
+        } finally {
+            latch.unlock();
+        }
+    }
 
-        raf.seek(minLogRecord);
+    private void startFlusherLatched(final long periodMillis) {
+        if (flusher != null)
+            return;
+        flusher = VirtualThreads.factory("LogFile flusher ").newThread(new Runnable() {
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        Thread.sleep(periodMillis);
+                        syncDataFiles();
+                        logCheckpoint();
+                        logTruncate();
+                    } catch (InterruptedException e) {
+                        break;
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+        flusher.start();
+    }
 
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
+    /** Stop the background flusher, if it is running. */
+    public void stopFlusher() {
+        Thread t;
+        latch.lock();
+        try {
+            t = flusher;
+            flusher = null;
+        } finally {
+            latch.unlock();
+        }
+        if (t != null) {
+            t.interrupt();
             try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
 
-                Debug.log("NEW START = " + newStart);
+    /** Truncate any unneeded portion of the log to reduce its space
+        consumption.  Since records are addressed by LSN, this only
+        deletes the segments that lie entirely before the oldest record
+        still needed; nothing is copied or renumbered. */
+    public void logTruncate() throws IOException {
+        latch.lock();
+        try {
+            logTruncateLatched();
+        } finally {
+            latch.unlock();
+        }
+    }
 
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+    private void logTruncateLatched() throws IOException {
+        preAppend();
+        long cpLoc = log.getCheckpoint();
 
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
+        long minLogRecord = cpLoc;
 
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            return;
+        }
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+        log.seek(cpLoc);
+        int cpType = log.readInt();
+        @SuppressWarnings("unused")
+        long cpTid = log.readLong();
 
-            } catch (EOFException e) {
-                break;
-            }
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+        // the log is needed from the first record of any active
+        // transaction and from the redo point of any dirty page
+        HashMap<Long,Long> cpFirsts = new HashMap<Long,Long>();
+        HashMap<PageId,Long> cpDirty = new HashMap<PageId,Long>();
+        readCheckpoint(log, cpFirsts, null, cpDirty);
+        for (Long firstLogRecord : cpFirsts.values()) {
+            minLogRecord = Math.min(minLogRecord, firstLogRecord);
+        }
+        for (Long recLSN : cpDirty.values()) {
+            minLogRecord = Math.min(minLogRecord, recLSN);
+        }
+        for (Long firstLogRecord : tidToFirstLogRecord.values()) {
+            if (firstLogRecord != NO_PREV_RECORD)
+                minLogRecord = Math.min(minLogRecord, firstLogRecord);
+        }
+        for (DirtyPage dp : dirtyPages.values()) {
+            minLogRecord = Math.min(minLogRecord, dp.recLSN);
+        }
 
-        currentOffset = raf.getFilePointer();
-        //print();
+        Debug.log("TRUNCATING LOG BEFORE " + minLogRecord);
+        log.truncateBefore(minLogRecord);
+        log.seek(currentOffset);
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -458,27 +900,129 @@ public class LogFile {
         transaction semantics, this should not be called on
         transactions that have already committed (though this may not
         be enforced by this method.)
+        <p>
+        Only the records of tid are read: starting from its last record,
+        the backward chain stored in each UPDATE record is followed until
+        the BEGIN record is reached.  Because the chain is walked newest
+        first, the before image that ends up installed for each page is
+        the one from the transaction's earliest update of it.
 
         @param tid The transaction to rollback
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized(this) {
+        ReentrantLock poolLatch = Database.getBufferPool().latch;
+        poolLatch.lock();
+        try {
+            latch.lock();
+            try {
                 preAppend();
-                // some code goes here
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                Long last = tidToLastLogRecord.get(tid.getId());
+                if (first == null || last == null) {
+                    throw new NoSuchElementException("no log records for transaction " + tid.getId());
+                }
+
+                long endOffset = log.getFilePointer();
+                ArrayList<Long> updates = new ArrayList<Long>();
+                collectUpdates(log, tid.getId(), first, last, updates);
+                HashSet<PageId> pages = new HashSet<PageId>();
+                for (Long offset : updates) {
+                    pages.add(undoUpdate(log, offset));
+                }
+                HashSet<Integer> tables = new HashSet<Integer>();
+                for (PageId pid : pages) {
+                    Database.getBufferPool().rolledBack(tid, pid);
+                    tables.add(pid.getTableId());
+                }
+                // the ABORT record stops recovery from undoing tid, so
+                // the undo must reach disk before it is written
+                for (Integer tableid : tables) {
+                    Database.getCatalog().getDbFile(tableid).force();
+                }
+                log.seek(endOffset);
+            } finally {
+                latch.unlock();
             }
+        } finally {
+            poolLatch.unlock();
         }
     }
 
+    /** Follow the backward chain of transaction tid from its record at
+        offset last down to (but not including) its record at offset
+        first, adding the offset of each UPDATE record to updates, newest
+        first.  Only record headers are read.
+    */
+    void collectUpdates(SegmentedLog in, long tid, long first, long last,
+                        List<Long> updates) throws IOException {
+        long offset = last;
+        while (offset != NO_PREV_RECORD && offset > first) {
+            in.seek(offset);
+            int type = in.readInt();
+            @SuppressWarnings("unused")
+            long recordTid = in.readLong();
+            if (type == BEGIN_RECORD)
+                break;
+            if (type != UPDATE_RECORD && type != DELTA_RECORD) {
+                throw new RuntimeException("Rollback chain of transaction " + tid + " points to a non-update record at offset " + offset);
+            }
+            updates.add(offset);
+            offset = in.readLong();
+        }
+    }
+
+    /** Undo the UPDATE or DELTA record at offset on disk.  Only the
+        slots the record changed are restored, since other transactions
+        may have changed other slots of the page since; a full image is
+        installed whole only for pages that are not HeapPages.  Cached
+        copies of the page are left to the caller.  The caller must hold
+        the BufferPool lock.
+
+        @return the id of the page
+    */
+    PageId undoUpdate(SegmentedLog in, long offset) throws IOException {
+        in.seek(offset);
+        int type = in.readInt();
+        in.seek(offset + INT_SIZE + 2 * LONG_SIZE);
+        SlotDelta delta;
+        Page before = null;
+        if (type == DELTA_RECORD) {
+            delta = SlotDelta.read(in);
+        } else {
+            before = readPageData(in);
+            delta = SlotDelta.diff(before, readPageData(in));
+        }
+        if (delta != null) {
+            // the page on disk holds this change, since it was logged
+            // when the page was written
+            DbFile file = Database.getCatalog().getDbFile(delta.pid.getTableId());
+            byte[] data = file.readPage(delta.pid).getPageData();
+            delta.apply(data, false);
+            before = PageCodec.newPage(delta.pageTag, delta.pid, data);
+        }
+        PageId pid = before.getId();
+        Database.getCatalog().getDbFile(pid.getTableId()).writePage(before);
+        return pid;
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
-            logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            stopFlusher();
+            // a sharp checkpoint, so start up needs no redo
+            syncDataFiles();
+            logCheckpoint();
+            logTruncate();
+            latch.lock();
+            try {
+                log.close();
+            } finally {
+                latch.unlock();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -488,14 +1032,313 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        Recovery runs in three passes:
+        <ul>
+        <li> Analysis reads the checkpoint named by the first long of the
+        log and scans forward from its redo point (the smallest recovery
+        offset in its dirty page table, or the checkpoint itself) to the
+        end of the log, noting which transactions committed or aborted
+        and which UPDATE and DELTA records need redo.  Transactions that
+        were active at the checkpoint join the active transaction table
+        when the scan reaches it.  A partially written record at the tail
+        is discarded.
+        <li> Redo reapplies those records for every page, skipping
+        transactions that aborted.  Pages are partitioned by PageId
+        across recoveryThreads workers, each reading the log through its
+        own file handle.  Aborted transactions are skipped because their
+        rollback is not itself logged; it was already applied to disk
+        before the ABORT record was written.
+        <li> Undo walks the backward chains of the losers (transactions
+        with neither a COMMIT nor an ABORT record) and restores the slots
+        each record changed, newest record first across all losers, then writes
+        an ABORT record for each so they are not undone again.
+        </ul>
     */
     public void recover() throws IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
+        ReentrantLock poolLatch = Database.getBufferPool().latch;
+        poolLatch.lock();
+        try {
+            latch.lock();
+            try {
                 recoveryUndecided = false;
-                // some code goes here
+
+                HashSet<Long> aborted = new HashSet<Long>();
+                HashMap<PageId,ArrayList<Long>> pageUpdates = new HashMap<PageId,ArrayList<Long>>();
+                long endOffset = analyze(aborted, pageUpdates);
+                log.setLength(endOffset);
+
+                redo(pageUpdates, aborted);
+                for (PageId pid : pageUpdates.keySet()) {
+                    Database.getBufferPool().discardPage(pid);
+                }
+
+                ArrayList<Long> updates = new ArrayList<Long>();
+                for (Long tid : tidToLastLogRecord.keySet()) {
+                    collectUpdates(log, tid, tidToFirstLogRecord.get(tid),
+                                   tidToLastLogRecord.get(tid), updates);
+                }
+                Collections.sort(updates, Collections.reverseOrder());
+                HashSet<Integer> tables = new HashSet<Integer>();
+                for (Long offset : updates) {
+                    PageId pid = undoUpdate(log, offset);
+                    Database.getBufferPool().discardPage(pid);
+                    tables.add(pid.getTableId());
+                }
+
+                // the ABORT records below stop the losers from being
+                // undone again, so the undo must be on disk first
+                for (PageId pid : pageUpdates.keySet()) {
+                    tables.add(pid.getTableId());
+                }
+                for (Integer tableid : tables) {
+                    Database.getCatalog().getDbFile(tableid).force();
+                }
+                dirtyPages.clear();
+
+                log.seek(endOffset);
+                currentOffset = endOffset;
+                for (Long tid : tidToLastLogRecord.keySet()) {
+                    log.writeInt(ABORT_RECORD);
+                    log.writeLong(tid);
+                    log.writeLong(currentOffset);
+                    currentOffset = log.getFilePointer();
+                }
+                tidToFirstLogRecord.clear();
+                tidToLastLogRecord.clear();
+                force();
+            } finally {
+                latch.unlock();
             }
-         }
+        } finally {
+            poolLatch.unlock();
+        }
+    }
+
+    /** Analysis pass of recovery.  Leaves the losers in
+        tidToFirstLogRecord and tidToLastLogRecord, adds the ids of
+        aborted transactions to aborted and, for every page, the offsets
+        of the UPDATE records after the checkpoint that touched it (in
+        log order) to pageUpdates.  Also moves the TransactionId counter
+        past every id in the log so new transactions cannot reuse one.
+
+        @return the offset just past the last complete log record
+    */
+    long analyze(HashSet<Long> aborted, HashMap<PageId,ArrayList<Long>> pageUpdates)
+        throws IOException {
+        tidToFirstLogRecord.clear();
+        tidToLastLogRecord.clear();
+        long maxTid = -1;
+
+        long cpLoc = log.getCheckpoint();
+        long redoStart = log.firstLSN();
+        HashMap<Long,Long> cpFirsts = new HashMap<Long,Long>();
+        HashMap<Long,Long> cpLasts = new HashMap<Long,Long>();
+        HashMap<PageId,Long> cpDirty = new HashMap<PageId,Long>();
+        if (cpLoc != NO_CHECKPOINT_ID) {
+            log.seek(cpLoc);
+            int cpType = log.readInt();
+            log.readLong();
+            if (cpType != CHECKPOINT_RECORD) {
+                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+            }
+            readCheckpoint(log, cpFirsts, cpLasts, cpDirty);
+            redoStart = cpLoc;
+            for (Long recLSN : cpDirty.values()) {
+                redoStart = Math.min(redoStart, recLSN);
+            }
+        }
+
+        // scan from the redo point; records before the checkpoint only
+        // need redo if their page was still dirty at the checkpoint
+        HashSet<Long> completed = new HashSet<Long>();
+        log.seek(redoStart);
+        long endOffset = redoStart;
+        while (true) {
+            try {
+                long start = log.getFilePointer();
+                int type = log.readInt();
+                long tid = log.readLong();
+                PageId pid = null;
+                switch (type) {
+                case UPDATE_RECORD:
+                    log.readLong();
+                    pid = skipPageData(log);
+                    skipPageData(log);
+                    break;
+                case DELTA_RECORD:
+                    log.readLong();
+                    pid = SlotDelta.read(log).pid;
+                    break;
+                case CHECKPOINT_RECORD:
+                    readCheckpoint(log, null, null, null);
+                    break;
+                case ABORT_RECORD:
+                case COMMIT_RECORD:
+                case BEGIN_RECORD:
+                    break;
+                default:
+                    throw new EOFException();
+                }
+                if (log.readLong() != start) {
+                    break; // garbage after a torn write
+                }
+
+                switch (type) {
+                case BEGIN_RECORD:
+                    tidToFirstLogRecord.put(tid, start);
+                    tidToLastLogRecord.put(tid, start);
+                    break;
+                case CHECKPOINT_RECORD:
+                    if (start != cpLoc)
+                        break;
+                    // transactions that began before the redo point
+                    for (Long cpTid : cpFirsts.keySet()) {
+                        if (completed.contains(cpTid))
+                            continue;
+                        tidToFirstLogRecord.put(cpTid, cpFirsts.get(cpTid));
+                        if (!tidToLastLogRecord.containsKey(cpTid))
+                            tidToLastLogRecord.put(cpTid, cpLasts.get(cpTid));
+                        maxTid = Math.max(maxTid, cpTid);
+                    }
+                    break;
+                case UPDATE_RECORD:
+                case DELTA_RECORD:
+                    if (!tidToFirstLogRecord.containsKey(tid))
+                        tidToFirstLogRecord.put(tid, NO_PREV_RECORD);
+                    tidToLastLogRecord.put(tid, start);
+                    if (start < cpLoc) {
+                        Long recLSN = cpDirty.get(pid);
+                        if (recLSN == null || start < recLSN)
+                            break;
+                    }
+                    ArrayList<Long> offsets = pageUpdates.get(pid);
+                    if (offsets == null) {
+                        offsets = new ArrayList<Long>();
+                        pageUpdates.put(pid, offsets);
+                    }
+                    offsets.add(start);
+                    break;
+                case ABORT_RECORD:
+                case COMMIT_RECORD:
+                    if (type == ABORT_RECORD)
+                        aborted.add(tid);
+                    tidToFirstLogRecord.remove(tid);
+                    tidToLastLogRecord.remove(tid);
+                    completed.add(tid);
+                    break;
+                }
+                if (type != CHECKPOINT_RECORD)
+                    maxTid = Math.max(maxTid, tid);
+                endOffset = log.getFilePointer();
+            } catch (EOFException e) {
+                break;
+            }
+        }
+
+        while (TransactionId.counter.get() <= maxTid) {
+            TransactionId.counter.compareAndSet(TransactionId.counter.get(), maxTid + 1);
+        }
+        return endOffset;
+    }
+
+    /** Redo pass of recovery.  Pages are split into recoveryThreads
+        partitions by PageId hash; each partition is replayed by its own
+        worker, so pages are written concurrently but each page by
+        exactly one thread. */
+    void redo(final HashMap<PageId,ArrayList<Long>> pageUpdates,
+              final HashSet<Long> aborted) throws IOException {
+        if (pageUpdates.isEmpty())
+            return;
+
+        int nThreads = Math.max(1, Math.min(recoveryThreads, pageUpdates.size()));
+        ArrayList<ArrayList<PageId>> partitions = new ArrayList<ArrayList<PageId>>();
+        for (int i = 0; i < nThreads; i++) {
+            partitions.add(new ArrayList<PageId>());
+        }
+        for (PageId pid : pageUpdates.keySet()) {
+            partitions.get((pid.hashCode() & Integer.MAX_VALUE) % nThreads).add(pid);
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(nThreads,
+                VirtualThreads.factory("LogFile redo "));
+        try {
+            ArrayList<Future<Void>> done = new ArrayList<Future<Void>>();
+            for (final ArrayList<PageId> partition : partitions) {
+                done.add(workers.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        redoPartition(partition, pageUpdates, aborted);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> f : done) {
+                try {
+                    f.get();
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted during redo");
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException)
+                        throw (IOException)e.getCause();
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    /** Replay the pages of one redo partition.  Records of transactions
+        that did not abort are applied in log order, starting from the
+        newest full page image (or from the page on disk if there is
+        none), since a full image makes every earlier record irrelevant.
+        Each page is written once. */
+    void redoPartition(List<PageId> pids, Map<PageId,ArrayList<Long>> pageUpdates,
+                       Set<Long> aborted) throws IOException {
+        SegmentedLog in = new SegmentedLog(logFile, segmentSize, true);
+        try {
+            for (PageId pid : pids) {
+                ArrayList<Long> offsets = pageUpdates.get(pid);
+                int start = 0;
+                for (int i = offsets.size() - 1; i >= 0; i--) {
+                    in.seek(offsets.get(i));
+                    int type = in.readInt();
+                    long tid = in.readLong();
+                    if (type == UPDATE_RECORD && !aborted.contains(tid)) {
+                        start = i;
+                        break;
+                    }
+                }
+
+                DbFile file = Database.getCatalog().getDbFile(pid.getTableId());
+                int pageTag = 0;
+                byte[] data = null;
+                for (int i = start; i < offsets.size(); i++) {
+                    in.seek(offsets.get(i));
+                    int type = in.readInt();
+                    long tid = in.readLong();
+                    if (aborted.contains(tid))
+                        continue;
+                    in.readLong();
+                    if (type == UPDATE_RECORD) {
+                        skipPageData(in);
+                        Page after = readPageData(in);
+                        pageTag = PageCodec.pageTag(after);
+                        data = after.getPageData();
+                    } else {
+                        SlotDelta delta = SlotDelta.read(in);
+                        if (data == null)
+                            data = file.readPage(pid).getPageData();
+                        pageTag = delta.pageTag;
+                        delta.apply(data, true);
+                    }
+                }
+                if (data != null)
+                    file.writePage(PageCodec.newPage(pageTag, pid, data));
+            }
+        } finally {
+            in.close();
+        }
     }
 
     /** Print out a human readable represenation of the log */
@@ -503,8 +1346,15 @@ public class LogFile {
         // some code goes here
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    public void force() throws IOException {
+        latch.lock();
+        try {
+            long seq = appendSeq;
+            log.force();
+            markDurable(seq);
+        } finally {
+            latch.unlock();
+        }
     }
 
 }
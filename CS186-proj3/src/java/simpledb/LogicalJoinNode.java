@@ -23,6 +23,12 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** Physical join operators JoinOptimizer can choose between */
+    public enum Algorithm { NESTED_LOOPS, HASH, SORT_MERGE }
+
+    /** The physical join operator to use, as chosen by JoinOptimizer */
+    public Algorithm algorithm = Algorithm.NESTED_LOOPS;
+
     public LogicalJoinNode() {
     }
 
@@ -63,6 +69,14 @@ public class LogicalJoinNode {
         return j2;
     }
     
+    /** Return a copy of this LogicalJoinNode that is instantiated with
+     * the given algorithm. */
+    public LogicalJoinNode using(Algorithm a) {
+        LogicalJoinNode j2 = new LogicalJoinNode(t1Alias,t2Alias,f1PureName,f2PureName, p);
+        j2.algorithm = a;
+        return j2;
+    }
+
     @Override public boolean equals(Object o) {
         LogicalJoinNode j2 =(LogicalJoinNode)o;
         return (j2.t1Alias.equals(t1Alias)  || j2.t1Alias.equals(t2Alias)) && (j2.t2Alias.equals(t1Alias)  || j2.t2Alias.equals(t2Alias));
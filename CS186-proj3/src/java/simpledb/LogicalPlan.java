@@ -12,9 +12,8 @@ import java.util.NoSuchElementException;
  * the parser and is ready to be processed by the optimizer.
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
- * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * nodes, filter nodes, a select list, and a list of group by fields.
+ * All of its aggregates are computed by one Aggregate, in one pass.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
@@ -29,12 +28,15 @@ public class LogicalPlan {
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
-    private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
+    private Vector<String> groupByFields = new Vector<String>();
+    private Vector<LogicalSelectListNode> aggregates = new Vector<LogicalSelectListNode>();
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
+    private int limit = Limit.NO_LIMIT;
+
+    private int scanWorkers = 1;
+    /** Fewest morsels of a table worth giving each worker */
+    static final int MORSELS_PER_WORKER = 4;
     private String query;
 //    private Query owner;
 
@@ -50,6 +52,17 @@ public class LogicalPlan {
         this.query = "";
     }
 
+    /**
+     * Set the most workers that scan a table at once in the physical plan,
+     * such as Gather.DEFAULT_WORKERS.  The default, 1, scans every table
+     * serially.  A parallel scan returns its tuples in no particular
+     * order, and restarts its workers each time it is rewound, as the
+     * inner child of a nested loops join is.
+     */
+    public void setScanWorkers(int workers) {
+        this.scanWorkers = workers;
+    }
+
     /** Set the text of the query representing this logical plan.  Does NOT parse the
         specified query -- this method is just used so that the object can print the
         SQL it represents.
@@ -186,21 +199,56 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  The grouping is added to any added before.
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param gfield the field to group by, or null
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
+        addAggregate(op, afield);
+        if (gfield != null)
+            addGroupBy(gfield);
+    }
+
+    /** Add an aggregate to the query.  All the query's aggregates are
+        computed together, in one pass over its input.
+        @param op the aggregation operator
+        @param afield the field to aggregate over, or * for COUNT(*)
+     * @throws ParsingException 
+    */
+    public void addAggregate(String op, String afield) throws ParsingException {
         afield=disambiguateName(afield);
-        if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
-        hasAgg = true;
+        if (afield.equals("*")) {
+            if (getAggOp(op) != Aggregator.Op.COUNT)
+                throw new ParsingException(op + "(*) is not supported");
+            afield="null.*";
+        }
+        LogicalSelectListNode agg = new LogicalSelectListNode(op, afield);
+        if (aggregateIndex(agg) < 0)
+            aggregates.addElement(agg);
+    }
+
+    /** Add a field to group the query's aggregates by.  The groups are the
+        distinct combinations of values of all the fields added.
+        @param gfield the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupBy(String gfield) throws ParsingException {
+        gfield=disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.addElement(gfield);
+    }
+
+    /** @return the position of an aggregate of agg's operator over its
+        field among the query's aggregates, or -1 */
+    private int aggregateIndex(LogicalSelectListNode agg) {
+        for (int i = 0; i < aggregates.size(); i++) {
+            LogicalSelectListNode a = aggregates.elementAt(i);
+            if (a.aggOp.equalsIgnoreCase(agg.aggOp) && a.fname.equals(agg.fname))
+                return i;
+        }
+        return -1;
     }
 
     /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
@@ -216,6 +264,20 @@ public class LogicalPlan {
         hasOrderBy = true;
     }
 
+    /** Return at most the first n tuples of the result, or all of them if n is
+        {@link Limit#NO_LIMIT}.  With an ORDER BY, only the first n in order are
+        kept while sorting; without one, the plan stops reading its input after n.
+        @param n the most tuples to return
+    */
+    public void setLimit(int n) {
+        limit = n;
+    }
+
+    /** @return the limit set by {@link #setLimit} */
+    public int getLimit() {
+        return limit;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -344,6 +406,24 @@ public class LogicalPlan {
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
         
+        // scan big tables in parallel: each worker filters the morsels of
+        // the table it claims, and a Gather returns what they all find
+        tableIt = tables.iterator();
+        while (tableIt.hasNext()) {
+            LogicalScanNode table = tableIt.next();
+            DbFile file = Database.getCatalog().getDbFile(table.t);
+            if (scanWorkers < 2 || !(file instanceof HeapFile))
+                continue;
+            Morsels morsels = new Morsels((HeapFile) file);
+            int workers = Math.min(scanWorkers, morsels.size() / MORSELS_PER_WORKER);
+            if (workers < 2)
+                continue;
+            DbIterator[] pipelines = new DbIterator[workers];
+            for (int i = 0; i < workers; i++)
+                pipelines[i] = copyScan(subplanMap.get(table.alias), t, morsels);
+            subplanMap.put(table.alias, new Gather(pipelines));
+        }
+
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
@@ -414,28 +494,24 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
-                TupleDesc td = node.getTupleDesc();
-//                int  id;
-                try {
-//                    id = 
-                    td.fieldNameToIndex(si.fname);
-                } catch (NoSuchElementException e) {
-                    throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
-                }
+                int a = aggregateIndex(si);
+                if (a < 0)
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") is not computed by the query");
+                outFields.add(groupByFields.size() + a);
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
-            } else if (hasAgg) {
-                    if (groupByField == null) {
+            } else if (!aggregates.isEmpty()) {
+                    int g = groupByFields.indexOf(si.fname);
+                    if (g < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(g);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -458,14 +534,36 @@ public class LogicalPlan {
                 }
         }
 
-        if (hasAgg) {
+        if (node instanceof Gather && aggregates.isEmpty() && !hasOrderBy) {
+            // each worker projects the tuples it scans
+            DbIterator[] pipelines = ((Gather) node).getChildren();
+            for (int i = 0; i < pipelines.length; i++)
+                pipelines[i] = new Project(outFields, outTypes, pipelines[i]);
+            ((Gather) node).setChildren(pipelines);
+            return limit == Limit.NO_LIMIT ? node : new Limit(limit, node);
+        }
+
+        if (!aggregates.isEmpty()) {
             TupleDesc td = node.getTupleDesc();
+            int[] afields = new int[aggregates.size()];
+            Aggregator.Op[] aops = new Aggregator.Op[aggregates.size()];
+            int[] gfields = new int[groupByFields.size()];
             Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                for (int k = 0; k < afields.length; k++) {
+                    LogicalSelectListNode a = aggregates.elementAt(k);
+                    // COUNT(*) counts the tuples, whatever field it reads
+                    afields[k] = a.fname.equals("null.*") ? 0 : td.fieldNameToIndex(a.fname);
+                    aops[k] = getAggOp(a.aggOp);
+                }
+                for (int k = 0; k < gfields.length; k++)
+                    gfields[k] = td.fieldNameToIndex(groupByFields.elementAt(k));
+                // over groups that arrive together, return each as it ends
+                // instead of hashing them all first
+                if (StreamingAggregate.groupsInOrder(node, gfields))
+                    aggNode = new StreamingAggregate(node, afields, aops, gfields);
+                else
+                    aggNode = new Aggregate(node, afields, aops, gfields);
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
@@ -475,12 +573,28 @@ public class LogicalPlan {
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node,
+                               ExternalSort.DEFAULT_MEMORY_TUPLES, limit);
+        } else if (limit != Limit.NO_LIMIT) {
+            node = new Limit(limit, node);
         }
 
         return new Project(outFields, outTypes, node);
     }
 
+    /**
+     * @return a copy of the scan of a table and the filters over it, whose
+     *         scan reads the pages it claims from morsels
+     */
+    private static DbIterator copyScan(DbIterator plan, TransactionId t, Morsels morsels) {
+        if (plan instanceof Filter) {
+            Filter f = (Filter) plan;
+            return new Filter(f.getPredicate(), copyScan(f.getChildren()[0], t, morsels));
+        }
+        SeqScan scan = (SeqScan) plan;
+        return new SeqScan(t, scan.tableId, scan.getAlias(), morsels);
+    }
+
     public static void main(String argv[]) {
         // construct a 3-column table schema
         Type types[] = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
@@ -0,0 +1,133 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Morsels splits the pages of a HeapFile into runs of consecutive pages
+ * (morsels) that several scans of the file share out between them.  Each
+ * SeqScan built on the same Morsels takes the next unclaimed morsel when
+ * it finishes one, so the scans together read every page once, and a
+ * scan that runs faster reads more of them.
+ * <p>
+ * The pages are counted again whenever a scan is opened or rewound, so
+ * the scans read the pages the file has then, not when it was split.
+ *
+ * @see Gather
+ */
+public class Morsels implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default pages per morsel */
+    public static final int DEFAULT_MORSEL_PAGES = 16;
+
+    private final HeapFile file;
+    // the pages of the file when a scan was last opened or rewound
+    private volatile int numPages;
+    private final int morselPages;
+    private final AtomicInteger next = new AtomicInteger(0);
+
+    /**
+     * Split the pages of file into morsels of morselPages pages.
+     */
+    public Morsels(HeapFile file, int morselPages) {
+        this.file = file;
+        this.numPages = file.numPages();
+        this.morselPages = Math.max(1, morselPages);
+    }
+
+    public Morsels(HeapFile file) {
+        this(file, DEFAULT_MORSEL_PAGES);
+    }
+
+    /** @return the number of morsels */
+    public int size() {
+        return (numPages + morselPages - 1) / morselPages;
+    }
+
+    /** @return the first page of the next unclaimed morsel, or -1 if
+        every morsel has been claimed */
+    private int claim() {
+        int first = next.getAndAdd(morselPages);
+        return first < numPages ? first : -1;
+    }
+
+    /** Make every morsel unclaimed again, over the pages the file has now. */
+    void reset() {
+        numPages = file.numPages();
+        next.set(0);
+    }
+
+    /**
+     * @return an iterator over the tuples of the morsels it claims, read
+     *         as part of transaction tid
+     */
+    DbFileIterator iterator(TransactionId tid) {
+        return new MorselIterator(tid);
+    }
+
+    /** Reads a morsel at a time, claiming the next when one is done. */
+    private class MorselIterator implements DbFileIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final TransactionId tid;
+        private Iterator<Tuple> tuples = null;
+        // the next page to read, and the end of the morsel it is in
+        private int page = 0, end = 0;
+        private boolean open = false;
+
+        MorselIterator(TransactionId tid) {
+            this.tid = tid;
+        }
+
+        /**
+         * Start the shared scan.  Every scan sharing the morsels must be
+         * opened or rewound before any of them reads on, as Gather does.
+         */
+        public void open() {
+            reset();
+            open = true;
+            tuples = null;
+            page = end = 0;
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (!open)
+                return false;
+            while (tuples == null || !tuples.hasNext()) {
+                if (page == end) {
+                    page = claim();
+                    if (page < 0) {
+                        page = end = 0;
+                        tuples = null;
+                        return false;
+                    }
+                    end = Math.min(page + morselPages, numPages);
+                }
+                HeapPageId pid = new HeapPageId(file.getId(), page++);
+                tuples = Database.getBufferPool().getPage(tid, pid,
+                        Permissions.READ_ONLY).iterator();
+            }
+            return true;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException,
+                NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return tuples.next();
+        }
+
+        public void rewind() {
+            open();
+        }
+
+        public void close() {
+            open = false;
+            tuples = null;
+        }
+    }
+}
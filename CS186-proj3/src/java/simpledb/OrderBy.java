@@ -3,18 +3,26 @@ package simpledb;
 import java.util.*;
 
 /**
- * OrderBy is an operator that implements a relational ORDER BY.
+ * OrderBy is an operator that implements a relational ORDER BY.  Tuples
+ * are sorted in memory if they fit in its budget, and with an external
+ * merge sort otherwise.  Given a LIMIT that fits in the budget, it keeps
+ * only that many tuples, in a bounded heap, instead of sorting them all.
+ *
+ * @see ExternalSort
+ * @see TopN
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
     private DbIterator child;
     private TupleDesc td;
-    private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
     private int orderByField;
     private String orderByFieldName;
-    private Iterator<Tuple> it;
     private boolean asc;
+    private final int memoryTuples;
+    private final int limit;
+    private transient DbIterator sorted;
+    private transient int returned = 0;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -27,11 +35,30 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, DbIterator child) {
+        this(orderbyField, asc, child, ExternalSort.DEFAULT_MEMORY_TUPLES);
+    }
+
+    /**
+     * Creates a new OrderBy node that holds at most memoryTuples tuples in
+     * memory at once.
+     */
+    public OrderBy(int orderbyField, boolean asc, DbIterator child, int memoryTuples) {
+        this(orderbyField, asc, child, memoryTuples, Limit.NO_LIMIT);
+    }
+
+    /**
+     * Creates a new OrderBy node that returns only the first limit tuples
+     * of the ordering, or all of them if limit is Limit.NO_LIMIT.
+     */
+    public OrderBy(int orderbyField, boolean asc, DbIterator child,
+            int memoryTuples, int limit) {
         this.child = child;
         td = child.getTupleDesc();
         this.orderByField = orderbyField;
         this.orderByFieldName = td.getFieldName(orderbyField);
         this.asc = asc;
+        this.memoryTuples = memoryTuples;
+        this.limit = limit;
     }
     
     public boolean isASC()
@@ -48,6 +75,12 @@ public class OrderBy extends Operator {
     {
 	return this.orderByFieldName;
     }
+
+    /** @return the most tuples returned, or Limit.NO_LIMIT */
+    public int getLimit()
+    {
+        return this.limit;
+    }
     
     public TupleDesc getTupleDesc() {
         return td;
@@ -55,22 +88,27 @@ public class OrderBy extends Operator {
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
-        child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        // opening the sort reads and sorts the whole child
+        TupleComparator order = new TupleComparator(orderByField, asc);
+        if (limit != Limit.NO_LIMIT && limit <= memoryTuples)
+            sorted = new TopN(child, order, limit);
+        else
+            sorted = new ExternalSort(child, order, memoryTuples);
+        sorted.open();
+        returned = 0;
         super.open();
     }
 
     public void close() {
         super.close();
-        it = null;
+        if (sorted != null)
+            sorted.close();
+        sorted = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        sorted.rewind();
+        returned = 0;
     }
 
     /**
@@ -82,8 +120,9 @@ public class OrderBy extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        if (it != null && it.hasNext()) {
-            return it.next();
+        if (sorted != null && returned != limit && sorted.hasNext()) {
+            returned++;
+            return sorted.next();
         } else
             return null;
     }
@@ -99,25 +138,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-    
-}
@@ -8,8 +8,8 @@ import java.util.Iterator;
  * Pages may be "dirty", indicating that they have been modified since they
  * were last written out to disk.
  *
- * For recovery purposes, pages MUST have a single constructor of the form:
- *     Page(PageId id, byte[] data)
+ * For recovery purposes, page classes MUST be registered with PageCodec,
+ * with a factory that rebuilds a page from its id and getPageData().
  */
 public interface Page {
 
@@ -0,0 +1,134 @@
+package simpledb;
+
+import java.io.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * PageCodec assigns each Page and PageId implementation a small integer
+ * tag, which is what log records store in place of class names.  Pages
+ * and ids are rebuilt from a tag through a registered factory rather
+ * than by reflection.  New implementations must be registered (for
+ * example from a static initializer) before they are logged or
+ * recovered; tags are part of the log format and must never be reused.
+ *
+ * @see LogFile
+ */
+public class PageCodec {
+
+    /** Builds a page id from the integers returned by PageId.serialize() */
+    public interface PageIdFactory {
+        public PageId create(int[] data);
+    }
+
+    /** Builds a page from its id and the bytes returned by getPageData() */
+    public interface PageFactory {
+        public Page create(PageId id, byte[] data) throws IOException;
+    }
+
+    public static final int HEAP_PAGE = 1;
+    public static final int HEAP_PAGE_ID = 1;
+
+    private static final ConcurrentHashMap<Class<?>,Integer> pageTags =
+        new ConcurrentHashMap<Class<?>,Integer>();
+    private static final ConcurrentHashMap<Integer,PageFactory> pageFactories =
+        new ConcurrentHashMap<Integer,PageFactory>();
+    private static final ConcurrentHashMap<Class<?>,Integer> idTags =
+        new ConcurrentHashMap<Class<?>,Integer>();
+    private static final ConcurrentHashMap<Integer,PageIdFactory> idFactories =
+        new ConcurrentHashMap<Integer,PageIdFactory>();
+
+    static {
+        registerPage(HEAP_PAGE, HeapPage.class, new PageFactory() {
+            public Page create(PageId id, byte[] data) throws IOException {
+                return new HeapPage((HeapPageId) id, data);
+            }
+        });
+        registerPageId(HEAP_PAGE_ID, HeapPageId.class, new PageIdFactory() {
+            public PageId create(int[] data) {
+                return new HeapPageId(data[0], data[1]);
+            }
+        });
+    }
+
+    /**
+     * Register a Page implementation under tag.
+     * @throws IllegalArgumentException if the tag is already taken
+     */
+    public static synchronized void registerPage(int tag, Class<? extends Page> c,
+                                                 PageFactory f) {
+        if (pageFactories.containsKey(tag))
+            throw new IllegalArgumentException("page tag " + tag + " already registered");
+        pageFactories.put(tag, f);
+        pageTags.put(c, tag);
+    }
+
+    /**
+     * Register a PageId implementation under tag.
+     * @throws IllegalArgumentException if the tag is already taken
+     */
+    public static synchronized void registerPageId(int tag, Class<? extends PageId> c,
+                                                   PageIdFactory f) {
+        if (idFactories.containsKey(tag))
+            throw new IllegalArgumentException("page id tag " + tag + " already registered");
+        idFactories.put(tag, f);
+        idTags.put(c, tag);
+    }
+
+    /** @return the tag of p's class */
+    public static int pageTag(Page p) {
+        Integer tag = pageTags.get(p.getClass());
+        if (tag == null)
+            throw new IllegalArgumentException("unregistered page class " + p.getClass().getName());
+        return tag;
+    }
+
+    /** @return the tag of pid's class */
+    public static int pageIdTag(PageId pid) {
+        Integer tag = idTags.get(pid.getClass());
+        if (tag == null)
+            throw new IllegalArgumentException("unregistered page id class " + pid.getClass().getName());
+        return tag;
+    }
+
+    /** Build the page registered under tag.  Throws IOException for an
+        unknown tag, since it can only come from a damaged log. */
+    public static Page newPage(int tag, PageId pid, byte[] data) throws IOException {
+        PageFactory f = pageFactories.get(tag);
+        if (f == null)
+            throw new IOException("unknown page tag " + tag);
+        return f.create(pid, data);
+    }
+
+    /** Build the page id registered under tag.  Throws IOException for an
+        unknown tag, since it can only come from a damaged log. */
+    public static PageId newPageId(int tag, int[] data) throws IOException {
+        PageIdFactory f = idFactories.get(tag);
+        if (f == null)
+            throw new IOException("unknown page id tag " + tag);
+        return f.create(data);
+    }
+
+    /** Write pid as its tag, the number of integers in its serialized
+        form, and those integers. */
+    public static void writePageId(DataOutput out, PageId pid) throws IOException {
+        int data[] = pid.serialize();
+        out.writeInt(pageIdTag(pid));
+        out.writeInt(data.length);
+        for (int i = 0; i < data.length; i++) {
+            out.writeInt(data[i]);
+        }
+    }
+
+    /** Read a page id written by writePageId. */
+    public static PageId readPageId(DataInput in) throws IOException {
+        int tag = in.readInt();
+        int n = in.readInt();
+        if (n < 0 || n > 64)
+            throw new EOFException();
+        int data[] = new int[n];
+        for (int i = 0; i < n; i++) {
+            data[i] = in.readInt();
+        }
+        return newPageId(tag, data);
+    }
+}
@@ -8,8 +8,8 @@ public interface PageId {
     /** Return a representation of this page id object as a collection of
         integers (used for logging)
 
-        This class MUST have a constructor that accepts n integer parameters,
-        where n is the number of integers returned in the array from serialize.
+        This class MUST be registered with PageCodec, with a factory that
+        rebuilds the id from the array returned by serialize.
     */
     public int[] serialize();
 
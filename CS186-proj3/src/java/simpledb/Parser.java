@@ -182,23 +182,20 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        Vector<String> groupByFields = new Vector<String>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             Vector<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.elementAt(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.add(groupByField);
+                lp.addGroupBy(groupByField);
             }
 
         }
@@ -207,8 +204,7 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         Vector<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        boolean hasAgg = false;
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.elementAt(i);
@@ -218,21 +214,22 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = si.getAggregate();
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
                 lp.addProjectField(aggField, aggFun);
+                lp.addAggregate(aggFun, aggField);
+                hasAgg = true;
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
-                                .getColumn()))) {
+                boolean grouped = false;
+                for (String groupByField : groupByFields) {
+                    grouped |= groupByField.equals(si.getTable() + "."
+                            + si.getColumn())
+                            || groupByField.equals(si.getColumn());
+                }
+                if (!groupByFields.isEmpty() && !grouped) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
                             + " does not appear in GROUP BY list.");
@@ -241,13 +238,10 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && !hasAgg) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
-        }
         // sort the data
 
         if (q.getOrderBy() != null) {
@@ -276,10 +270,23 @@ public class Parser {
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
+        return handleQueryStatement(s, tId, Limit.NO_LIMIT);
+    }
+
+    /**
+     * Plan query s, returning at most limit tuples.
+     *
+     * @param limit
+     *            the statement's LIMIT, or Limit.NO_LIMIT
+     */
+    public Query handleQueryStatement(ZQuery s, TransactionId tId, int limit)
+            throws TransactionAbortedException, DbException, IOException,
+            simpledb.ParsingException, Zql.ParseException {
         // and run it
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        lp.setLimit(limit);
         DbIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -324,6 +331,19 @@ public class Parser {
     public Query handleInsertStatement(ZInsert s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
+        return handleInsertStatement(s, tId, Limit.NO_LIMIT);
+    }
+
+    /**
+     * Plan insert s, inserting at most limit tuples of its query, if it
+     * has one.
+     *
+     * @param limit
+     *            the statement's LIMIT, or Limit.NO_LIMIT
+     */
+    public Query handleInsertStatement(ZInsert s, TransactionId tId, int limit)
+            throws TransactionAbortedException, DbException, IOException,
+            simpledb.ParsingException, Zql.ParseException {
         int tableId;
         try {
             tableId = Database.getCatalog().getTableId(s.getTable()); // will
@@ -388,6 +408,7 @@ public class Parser {
         } else {
             ZQuery zq = (ZQuery) s.getQuery();
             LogicalPlan lp = parseQueryLogicalPlan(tId, zq);
+            lp.setLimit(limit);
             newTups = lp.physicalPlan(tId, TableStats.getStatsMap(), explain);
         }
         Query insertQ = new Query(tId);
@@ -436,19 +457,19 @@ public class Parser {
                 throw new simpledb.ParsingException(
                         "No transaction is currently running");
             curtrans.commit();
-            curtrans = null;
-            inUserTrans = false;
             System.out.println("Transaction " + curtrans.getId().getId()
                     + " committed.");
+            curtrans = null;
+            inUserTrans = false;
         } else if (s.getStmtType().equals("ROLLBACK")) {
             if (curtrans == null)
                 throw new simpledb.ParsingException(
                         "No transaction is currently running");
             curtrans.abort();
-            curtrans = null;
-            inUserTrans = false;
             System.out.println("Transaction " + curtrans.getId().getId()
                     + " aborted.");
+            curtrans = null;
+            inUserTrans = false;
 
         } else if (s.getStmtType().equals("SET TRANSACTION")) {
             if (curtrans != null)
@@ -466,12 +487,14 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        LimitedStatement st = stripLimit(s);
+        ByteArrayInputStream bis = new ByteArrayInputStream(st.sql.getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
                 LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                lp.setLimit(st.limit);
                 return lp;
             }
         } catch (Zql.ParseException e) {
@@ -485,6 +508,106 @@ public class Parser {
                 "Cannot generate logical plan for expression : " + s);
     }
 
+    /**
+     * A statement with its trailing LIMIT clause cut off.  Zql has no
+     * LIMIT, so the clause is removed before Zql reads the statement, and
+     * the limit is applied to the statement's plan.
+     */
+    static class LimitedStatement {
+        /** The statement, without its LIMIT clause */
+        final String sql;
+        /** The statement's LIMIT, or Limit.NO_LIMIT */
+        final int limit;
+
+        LimitedStatement(String sql, int limit) {
+            this.sql = sql;
+            this.limit = limit;
+        }
+    }
+
+    /**
+     * Cut a "LIMIT n" at the end of the first statement of sql, before its
+     * ';', if any.  sql is split into tokens first: words, quoted strings
+     * and other characters, so LIMIT inside a string is left alone.
+     */
+    static LimitedStatement stripLimit(String sql)
+            throws simpledb.ParsingException {
+        // start and end offsets of the tokens, up to the first ';'
+        ArrayList<Integer> starts = new ArrayList<Integer>();
+        ArrayList<Integer> ends = new ArrayList<Integer>();
+        int i = 0, n = sql.length();
+        boolean semicolon = false;
+        while (i < n && !semicolon) {
+            char c = sql.charAt(i);
+            int start = i++;
+            if (Character.isWhitespace(c))
+                continue;
+            if (c == '\'' || c == '"') {
+                // a doubled quote inside the string stands for itself
+                while (i < n && (sql.charAt(i) != c
+                        || (i + 1 < n && sql.charAt(i + 1) == c))) {
+                    i += sql.charAt(i) == c ? 2 : 1;
+                }
+                i = Math.min(i + 1, n);
+            } else if (Character.isLetterOrDigit(c) || c == '_') {
+                while (i < n && (Character.isLetterOrDigit(sql.charAt(i))
+                        || sql.charAt(i) == '_'))
+                    i++;
+            } else {
+                semicolon = c == ';';
+            }
+            starts.add(start);
+            ends.add(i);
+        }
+
+        int last = starts.size() - (semicolon ? 2 : 1);
+        if (last < 1
+                || !sql.substring(starts.get(last - 1), ends.get(last - 1))
+                        .equalsIgnoreCase("LIMIT"))
+            return new LimitedStatement(sql, Limit.NO_LIMIT);
+        String number = sql.substring(starts.get(last), ends.get(last));
+        for (int k = 0; k < number.length(); k++) {
+            if (number.charAt(k) < '0' || number.charAt(k) > '9')
+                return new LimitedStatement(sql, Limit.NO_LIMIT);
+        }
+        int limit;
+        try {
+            limit = Integer.parseInt(number);
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("LIMIT too large: " + number);
+        }
+
+        int end = starts.get(last - 1);
+        while (end > 0 && Character.isWhitespace(sql.charAt(end - 1)))
+            end--;
+        String rest = semicolon ? sql.substring(starts.get(last + 1)) : "";
+        return new LimitedStatement(sql.substring(0, end) + rest, limit);
+    }
+
+    /**
+     * Read the next statement of is: up to and including the first ';'
+     * outside quotes, or to the end of is.  Nothing after the ';' is read,
+     * so is may go on with more statements.
+     */
+    static String readStatement(InputStream is) throws IOException {
+        ByteArrayOutputStream sql = new ByteArrayOutputStream();
+        int quote = -1;
+        int b;
+        while ((b = is.read()) != -1) {
+            sql.write(b);
+            if (quote != -1) {
+                // a doubled quote closes the string and opens it again
+                if (b == quote)
+                    quote = -1;
+            } else if (b == '\'' || b == '"') {
+                quote = b;
+            } else if (b == ';') {
+                break;
+            }
+        }
+        return sql.toString("UTF-8");
+    }
+
     public void setTransaction(Transaction t) {
         curtrans = t;
     }
@@ -504,65 +627,7 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
-            ZStatement s = p.readStatement();
-
-            Query query = null;
-            if (s instanceof ZTransactStmt)
-                handleTransactStatement((ZTransactStmt) s);
-            else {
-                if (!this.inUserTrans) {
-                    curtrans = new Transaction();
-                    curtrans.start();
-                    System.out.println("Started a new transaction tid = "
-                            + curtrans.getId().getId());
-                }
-                try {
-                    if (s instanceof ZInsert)
-                        query = handleInsertStatement((ZInsert) s,
-                                curtrans.getId());
-                    else if (s instanceof ZDelete)
-                        query = handleDeleteStatement((ZDelete) s,
-                                curtrans.getId());
-                    else if (s instanceof ZQuery)
-                        query = handleQueryStatement((ZQuery) s,
-                                curtrans.getId());
-                    else {
-                        System.out
-                                .println("Can't parse "
-                                        + s
-                                        + "\n -- parser only handles SQL transactions, insert, delete, and select statements");
-                    }
-                    if (query != null)
-                        query.execute();
-
-                    if (!inUserTrans && curtrans != null) {
-                        curtrans.commit();
-                        System.out.println("Transaction "
-                                + curtrans.getId().getId() + " committed.");
-                    }
-                } catch (Throwable a) {
-                    // Whenever error happens, abort the current transaction
-                    if (curtrans != null) {
-                        curtrans.abort();
-                        System.out.println("Transaction "
-                                + curtrans.getId().getId()
-                                + " aborted because of unhandled error");
-                    }
-                    this.inUserTrans = false;
-
-                    if (a instanceof simpledb.ParsingException
-                            || a instanceof Zql.ParseException)
-                        throw new ParsingException((Exception) a);
-                    if (a instanceof Zql.TokenMgrError)
-                        throw (Zql.TokenMgrError) a;
-                    throw new DbException(a.getMessage());
-                } finally {
-                    if (!inUserTrans)
-                        curtrans = null;
-                }
-            }
-
+            processStatement(is);
         } catch (TransactionAbortedException e) {
             e.printStackTrace();
         } catch (DbException e) {
@@ -579,10 +644,86 @@ public class Parser {
         }
     }
 
+    /**
+     * Parse and run the next statement from is, in the current user
+     * transaction or else in a transaction of its own, throwing the errors
+     * that processNextStatement reports.
+     */
+    void processStatement(InputStream is) throws TransactionAbortedException,
+            DbException, IOException, simpledb.ParsingException,
+            Zql.ParseException {
+        LimitedStatement st = stripLimit(readStatement(is));
+        ZqlParser p = new ZqlParser(new ByteArrayInputStream(
+                st.sql.getBytes("UTF-8")));
+        ZStatement s = p.readStatement();
+
+        Query query = null;
+        if (s instanceof ZTransactStmt)
+            handleTransactStatement((ZTransactStmt) s);
+        else {
+            if (!this.inUserTrans) {
+                curtrans = new Transaction();
+                curtrans.start();
+                System.out.println("Started a new transaction tid = "
+                        + curtrans.getId().getId());
+            }
+            try {
+                if (s instanceof ZInsert)
+                    query = handleInsertStatement((ZInsert) s,
+                            curtrans.getId(), st.limit);
+                else if (s instanceof ZDelete)
+                    query = handleDeleteStatement((ZDelete) s,
+                            curtrans.getId());
+                else if (s instanceof ZQuery)
+                    query = handleQueryStatement((ZQuery) s,
+                            curtrans.getId(), st.limit);
+                else {
+                    System.out
+                            .println("Can't parse "
+                                    + s
+                                    + "\n -- parser only handles SQL transactions, insert, delete, and select statements");
+                }
+                if (query != null)
+                    execute(query);
+
+                if (!inUserTrans && curtrans != null) {
+                    curtrans.commit();
+                    System.out.println("Transaction "
+                            + curtrans.getId().getId() + " committed.");
+                }
+            } catch (Throwable a) {
+                // Whenever error happens, abort the current transaction
+                if (curtrans != null) {
+                    curtrans.abort();
+                    System.out.println("Transaction "
+                            + curtrans.getId().getId()
+                            + " aborted because of unhandled error");
+                }
+                this.inUserTrans = false;
+
+                if (a instanceof simpledb.ParsingException
+                        || a instanceof Zql.ParseException)
+                    throw new ParsingException((Exception) a);
+                if (a instanceof Zql.TokenMgrError)
+                    throw (Zql.TokenMgrError) a;
+                throw new DbException(a.getMessage());
+            } finally {
+                if (!inUserTrans)
+                    curtrans = null;
+            }
+        }
+    }
+
+    /** Run query and deliver its results: by default, print them. */
+    protected void execute(Query query) throws IOException, DbException,
+            TransactionAbortedException {
+        query.execute();
+    }
+
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "limit" };
 
     public static void main(String argv[]) throws IOException {
 
@@ -608,6 +749,7 @@ public class Parser {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
         TableStats.computeStatistics();
+        Database.getLogFile().startFlusher(LogFile.DEFAULT_FLUSH_INTERVAL);
 
         String queryFile = null;
 
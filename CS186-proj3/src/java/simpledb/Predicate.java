@@ -117,6 +117,31 @@ public class Predicate implements Serializable {
         return temp.compare(this.operator, this.operand);
     }
 
+    /**
+     * Narrows the selection of batch to the tuples that filter would
+     * return true for.  An INT field is compared with its int values.
+     *
+     * @param batch
+     *            The tuples to compare against
+     */
+    public void filter(TupleBatch batch) {
+        int[] sel = batch.selection();
+        int n = 0;
+        if (batch.getTupleDesc().getFieldType(this.field) == Type.INT_TYPE) {
+            int value = ((IntField) this.operand).getValue();
+            for (int k = 0; k < batch.size(); k++) {
+                if (IntField.compare(batch.getInt(this.field, sel[k]), this.operator, value))
+                    sel[n++] = sel[k];
+            }
+        } else {
+            for (int k = 0; k < batch.size(); k++) {
+                if (batch.getField(this.field, sel[k]).compare(this.operator, this.operand))
+                    sel[n++] = sel[k];
+            }
+        }
+        batch.select(n);
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string
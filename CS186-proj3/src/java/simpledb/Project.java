@@ -3,14 +3,18 @@ package simpledb;
 import java.util.*;
 
 /**
- * Project is an operator that implements a relational projection.
+ * Project is an operator that implements a relational projection.  In
+ * batches, it returns each batch of its child with only the projected
+ * columns, sharing their values.
  */
-public class Project extends Operator {
+public class Project extends Operator implements BatchedDbIterator {
 
     private static final long serialVersionUID = 1L;
     private DbIterator child;
     private TupleDesc td;
     private ArrayList<Integer> outFieldIds;
+    private transient int[] outFields = null;
+    private transient TupleBatch rows = null;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -80,6 +84,17 @@ public class Project extends Operator {
         return null;
     }
 
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (rows == null) {
+            rows = new TupleBatch(child.getTupleDesc());
+            outFields = new int[outFieldIds.size()];
+            for (int i = 0; i < outFields.length; i++)
+                outFields[i] = outFieldIds.get(i);
+        }
+        TupleBatch batch = TupleBatch.read(child, rows);
+        return batch == null ? null : batch.project(td, outFields);
+    }
+
     @Override
     public DbIterator[] getChildren() {
         return new DbIterator[] { this.child };
@@ -90,6 +105,7 @@ public class Project extends Operator {
 	if (this.child!=children[0])
 	{
 	    this.child = children[0];
+	    this.rows = null;
 	}
     }
     
@@ -0,0 +1,546 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * SegmentedLog stores the bytes of the write ahead log in fixed-size
+ * segment files, addressed by a log sequence number (LSN) that only ever
+ * grows: byte n of the log lives in segment n / segmentSize, at offset
+ * n % segmentSize.  Segment files are named after the control file with
+ * the segment's first LSN appended (log.0000000000000000, ...).
+ * <p>
+ * The control file holds the LSN of the last checkpoint and the segment
+ * size, so a log can be reopened even if the default size has changed.
+ * <p>
+ * Since LSNs never change, truncating the log just deletes the segments
+ * that lie entirely before the oldest LSN still needed.
+ * <p>
+ * Reads and writes happen at the current position, as with a
+ * RandomAccessFile.  Callers serialize access, except that force() may be
+ * called concurrently with writes and only covers writes that completed
+ * before it was called.
+ * <p>
+ * Appends are copied into an in-memory buffer and reach the segment files
+ * in large writes: when the buffer fills, when the log is forced, and
+ * before anything reads, overwrites or cuts the log.  So a log record costs
+ * a copy rather than a system call per field.  Buffered bytes are lost by
+ * a crash, exactly like written but unforced ones.
+ *
+ * @see LogFile
+ */
+class SegmentedLog implements DataInput, DataOutput {
+
+    private final File control;
+    private final boolean readOnly;
+    private RandomAccessFile controlFile;
+    private boolean controlDirty = false;
+    final long segmentSize;
+
+    // open segments, by first LSN
+    private final TreeMap<Long,FileChannel> segments = new TreeMap<Long,FileChannel>();
+    private final HashSet<FileChannel> unforced = new HashSet<FileChannel>();
+    private final ReentrantLock forceLock = new ReentrantLock();
+    // guards everything else; not the object's monitor, since it is held
+    // across segment reads and writes
+    private final ReentrantLock latch = new ReentrantLock();
+
+    /** Size of the append buffer, in bytes */
+    static int bufferSize = 256 * 1024;
+
+    // appends not yet written to a segment: LSNs [tailStart, endLSN)
+    private final ByteBuffer tail;
+    private long tailStart = 0;
+
+    private long checkpoint = LogFile.NO_CHECKPOINT_ID;
+    private long firstLSN = 0;
+    private long endLSN = 0;
+    private long pos = 0;
+    private final byte[] scratch = new byte[8];
+
+    /**
+     * Open the log whose control file is control, creating it if needed.
+     *
+     * @param control the control file; segments are placed beside it
+     * @param defaultSegmentSize segment size for a new log
+     * @param readOnly open for reading only (recovery workers); nothing
+     *   is created and the end of the log is fixed at open time
+     */
+    SegmentedLog(File control, long defaultSegmentSize, boolean readOnly)
+        throws IOException {
+        this.control = control.getAbsoluteFile();
+        this.readOnly = readOnly;
+
+        long size = defaultSegmentSize;
+        if (readOnly) {
+            RandomAccessFile in = new RandomAccessFile(this.control, "r");
+            checkpoint = in.readLong();
+            size = in.readLong();
+            in.close();
+        } else {
+            controlFile = new RandomAccessFile(this.control, "rw");
+            if (controlFile.length() >= 2 * LogFile.LONG_SIZE) {
+                controlFile.seek(0);
+                checkpoint = controlFile.readLong();
+                long stored = controlFile.readLong();
+                if (stored > 0)
+                    size = stored;
+            }
+        }
+        segmentSize = size;
+
+        File[] files = this.control.getParentFile().listFiles();
+        String prefix = this.control.getName() + ".";
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (!name.startsWith(prefix))
+                    continue;
+                long start;
+                try {
+                    start = Long.parseLong(name.substring(prefix.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (start % segmentSize != 0)
+                    continue;
+                segments.put(start, null);
+            }
+        }
+        if (!segments.isEmpty()) {
+            firstLSN = segments.firstKey();
+            endLSN = segments.lastKey() + segmentFile(segments.lastKey()).length();
+        }
+        pos = firstLSN;
+        tailStart = endLSN;
+
+        tail = readOnly ? null : ByteBuffer.allocate(bufferSize);
+        if (!readOnly)
+            writeControl();
+    }
+
+    private File segmentFile(long start) {
+        return new File(control.getParentFile(),
+                        control.getName() + "." + String.format("%016d", start));
+    }
+
+    private FileChannel segment(long start) throws IOException {
+        FileChannel ch = segments.get(start);
+        if (ch == null) {
+            if (readOnly && !segments.containsKey(start))
+                throw new EOFException();
+            ch = new RandomAccessFile(segmentFile(start), readOnly ? "r" : "rw").getChannel();
+            segments.put(start, ch);
+        }
+        return ch;
+    }
+
+    private void writeControl() throws IOException {
+        latch.lock();
+        try {
+            controlFile.seek(0);
+            controlFile.writeLong(checkpoint);
+            controlFile.writeLong(segmentSize);
+            controlDirty = true;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** @return the LSN of the last checkpoint, or LogFile.NO_CHECKPOINT_ID */
+    long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /** Record lsn as the last checkpoint.  Made durable by the next force. */
+    void setCheckpoint(long lsn) throws IOException {
+        checkpoint = lsn;
+        writeControl();
+    }
+
+    /** @return the oldest LSN still in the log */
+    long firstLSN() {
+        return firstLSN;
+    }
+
+    /** @return the LSN just past the last byte of the log */
+    long length() {
+        return endLSN;
+    }
+
+    long getFilePointer() {
+        return pos;
+    }
+
+    void seek(long lsn) {
+        pos = lsn;
+    }
+
+    /** Throw away the whole log; new records start at LSN 0. */
+    void reset() throws IOException {
+        latch.lock();
+        try {
+            tail.clear();
+            for (Long start : new ArrayList<Long>(segments.keySet())) {
+                deleteSegment(start);
+            }
+            firstLSN = endLSN = pos = tailStart = 0;
+            checkpoint = LogFile.NO_CHECKPOINT_ID;
+            writeControl();
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** Cut the log off at lsn, as after a torn final write. */
+    void setLength(long lsn) throws IOException {
+        latch.lock();
+        try {
+            setLengthLatched(lsn);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private void setLengthLatched(long lsn) throws IOException {
+        if (lsn >= endLSN)
+            return;
+        drain();
+        for (Long start : new ArrayList<Long>(segments.tailMap(lsn).keySet())) {
+            deleteSegment(start);
+        }
+        long start = lsn - lsn % segmentSize;
+        if (segments.containsKey(start))
+            segment(start).truncate(lsn - start);
+        endLSN = tailStart = lsn;
+        if (firstLSN > endLSN)
+            firstLSN = endLSN;
+    }
+
+    /** Delete every segment that lies entirely before lsn. */
+    void truncateBefore(long lsn) throws IOException {
+        latch.lock();
+        try {
+            drain();
+            for (Long start : new ArrayList<Long>(segments.keySet())) {
+                if (start + segmentSize > lsn)
+                    break;
+                deleteSegment(start);
+            }
+            firstLSN = segments.isEmpty() ? endLSN : Math.max(firstLSN, segments.firstKey());
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private void deleteSegment(long start) throws IOException {
+        FileChannel ch = segments.remove(start);
+        if (ch != null) {
+            unforced.remove(ch);
+            ch.close();
+        }
+        segmentFile(start).delete();
+    }
+
+    /** Force every write completed so far, and the control file, to disk. */
+    void force() throws IOException {
+        forceLock.lock();
+        try {
+            ArrayList<FileChannel> pending;
+            latch.lock();
+            try {
+                drain();
+                pending = new ArrayList<FileChannel>(unforced);
+            } finally {
+                latch.unlock();
+            }
+            for (FileChannel ch : pending) {
+                try {
+                    ch.force(true);
+                } catch (ClosedChannelException e) {
+                    // deleted by truncation; nothing left to force
+                }
+            }
+            latch.lock();
+            try {
+                unforced.removeAll(pending);
+                if (controlDirty) {
+                    controlFile.getChannel().force(true);
+                    controlDirty = false;
+                }
+            } finally {
+                latch.unlock();
+            }
+        } finally {
+            forceLock.unlock();
+        }
+    }
+
+    void close() throws IOException {
+        latch.lock();
+        try {
+            closeLatched();
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private void closeLatched() throws IOException {
+        if (tail != null)
+            drain();
+        for (FileChannel ch : segments.values()) {
+            if (ch != null)
+                ch.close();
+        }
+        if (controlFile != null)
+            controlFile.close();
+    }
+
+    // positioned access
+
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        latch.lock();
+        try {
+            readFullyLatched(b, off, len);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private void readFullyLatched(byte[] b, int off, int len) throws IOException {
+        if (pos < firstLSN || pos + len > endLSN)
+            throw new EOFException();
+        if (pos + len > tailStart)
+            drain();
+        while (len > 0) {
+            long start = pos - pos % segmentSize;
+            int n = (int) Math.min(len, start + segmentSize - pos);
+            FileChannel ch = segment(start);
+            ByteBuffer bb = ByteBuffer.wrap(b, off, n);
+            while (bb.hasRemaining()) {
+                if (ch.read(bb, pos - start + (bb.position() - off)) < 0)
+                    throw new EOFException();
+            }
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        latch.lock();
+        try {
+            writeLatched(b, off, len);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private void writeLatched(byte[] b, int off, int len) throws IOException {
+        if (readOnly)
+            throw new IOException("log opened read only");
+        if (pos != endLSN) {
+            // overwriting: bypass the buffer
+            drain();
+            writeThrough(pos, b, off, len);
+            pos += len;
+            endLSN = tailStart = Math.max(endLSN, pos);
+            return;
+        }
+        while (len > 0) {
+            if (!tail.hasRemaining())
+                drain();
+            int n = Math.min(len, tail.remaining());
+            tail.put(b, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+        endLSN = pos;
+    }
+
+    /** Write the append buffer out to the segments. */
+    private void drain() throws IOException {
+        if (tail.position() == 0)
+            return;
+        writeThrough(tailStart, tail.array(), 0, tail.position());
+        tail.clear();
+        tailStart = endLSN;
+    }
+
+    private void writeThrough(long at, byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            long start = at - at % segmentSize;
+            int n = (int) Math.min(len, start + segmentSize - at);
+            FileChannel ch = segment(start);
+            ByteBuffer bb = ByteBuffer.wrap(b, off, n);
+            while (bb.hasRemaining()) {
+                ch.write(bb, at - start + (bb.position() - off));
+            }
+            unforced.add(ch);
+            at += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    // DataInput
+
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    public int skipBytes(int n) throws IOException {
+        int skipped = (int) Math.max(0, Math.min(n, endLSN - pos));
+        pos += skipped;
+        return skipped;
+    }
+
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    public byte readByte() throws IOException {
+        readFully(scratch, 0, 1);
+        return scratch[0];
+    }
+
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xff;
+    }
+
+    public short readShort() throws IOException {
+        readFully(scratch, 0, 2);
+        return (short) (((scratch[0] & 0xff) << 8) | (scratch[1] & 0xff));
+    }
+
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xffff;
+    }
+
+    public char readChar() throws IOException {
+        return (char) readShort();
+    }
+
+    public int readInt() throws IOException {
+        readFully(scratch, 0, 4);
+        return ((scratch[0] & 0xff) << 24) | ((scratch[1] & 0xff) << 16)
+            | ((scratch[2] & 0xff) << 8) | (scratch[3] & 0xff);
+    }
+
+    public long readLong() throws IOException {
+        readFully(scratch, 0, 8);
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (scratch[i] & 0xff);
+        }
+        return v;
+    }
+
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    /** Reads a line of bytes as RandomAccessFile.readLine does: up to a
+        '\n', '\r' or "\r\n", or the end of the log. */
+    public String readLine() throws IOException {
+        if (pos >= endLSN)
+            return null;
+        StringBuilder line = new StringBuilder();
+        while (pos < endLSN) {
+            int c = readUnsignedByte();
+            if (c == '\n')
+                break;
+            if (c == '\r') {
+                if (pos < endLSN && readUnsignedByte() != '\n')
+                    pos--;
+                break;
+            }
+            line.append((char) c);
+        }
+        return line.toString();
+    }
+
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+
+    // DataOutput
+
+    public void write(int b) throws IOException {
+        scratch[0] = (byte) b;
+        write(scratch, 0, 1);
+    }
+
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    public void writeBoolean(boolean v) throws IOException {
+        write(v ? 1 : 0);
+    }
+
+    public void writeByte(int v) throws IOException {
+        write(v);
+    }
+
+    public void writeShort(int v) throws IOException {
+        scratch[0] = (byte) (v >>> 8);
+        scratch[1] = (byte) v;
+        write(scratch, 0, 2);
+    }
+
+    public void writeChar(int v) throws IOException {
+        writeShort(v);
+    }
+
+    public void writeInt(int v) throws IOException {
+        scratch[0] = (byte) (v >>> 24);
+        scratch[1] = (byte) (v >>> 16);
+        scratch[2] = (byte) (v >>> 8);
+        scratch[3] = (byte) v;
+        write(scratch, 0, 4);
+    }
+
+    public void writeLong(long v) throws IOException {
+        for (int i = 7; i >= 0; i--) {
+            scratch[i] = (byte) v;
+            v >>>= 8;
+        }
+        write(scratch, 0, 8);
+    }
+
+    public void writeFloat(float v) throws IOException {
+        writeInt(Float.floatToIntBits(v));
+    }
+
+    public void writeDouble(double v) throws IOException {
+        writeLong(Double.doubleToLongBits(v));
+    }
+
+    public void writeBytes(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            write(s.charAt(i));
+        }
+    }
+
+    public void writeChars(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            writeChar(s.charAt(i));
+        }
+    }
+
+    public void writeUTF(String s) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(s);
+        write(bytes.toByteArray());
+    }
+}
@@ -5,9 +5,11 @@ import java.util.*;
 /**
  * SeqScan is an implementation of a sequential scan access method that reads
  * each tuple of a table in no particular order (e.g., as they are laid out on
- * disk).
+ * disk).  It can also return the tuples a page's worth at a time, in
+ * batches of up to TupleBatch.CAPACITY tuples.  Scans built on the same
+ * Morsels share the table's pages, each reading the morsels it claims.
  */
-public class SeqScan implements DbIterator {
+public class SeqScan implements BatchedDbIterator {
 
     private static final long serialVersionUID = 1L;
     public TransactionId tid;
@@ -15,6 +17,10 @@ public class SeqScan implements DbIterator {
     public int tableId;
     public DbFile dbFile;
     public DbFileIterator dbIterator;
+    // the pages this scan shares with other scans, or null to read them all
+    private final Morsels morsels;
+    private transient TupleBatch batch = null;
+    private boolean open = false;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -33,11 +39,31 @@ public class SeqScan implements DbIterator {
      *            tableAlias.null, or null.null).
      */
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
+        this(tid, tableid, tableAlias, null);
+    }
+
+    /**
+     * Creates a scan that reads only the morsels of the table it claims
+     * from morsels, which other scans of the table may share.
+     *
+     * @param morsels
+     *            the morsels of the table's pages, or null to read them all
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, Morsels morsels) {
         // some code goes here
         this.tid = tid;
         this.tableAlias = tableAlias;
         this.tableId = tableid;
         this.dbFile = Database.getCatalog().getDbFile(this.tableId);
+        this.morsels = morsels;
+    }
+
+    /**
+     * @return the morsels this scan shares with others, or null if it
+     *         reads every page
+     */
+    public Morsels getMorsels() {
+        return this.morsels;
     }
 
     /**
@@ -81,8 +107,12 @@ public class SeqScan implements DbIterator {
     public void open() throws DbException, TransactionAbortedException {
         //cast the dbFile as a HeapFile
         HeapFile heapFile = (HeapFile) this.dbFile;
-        this.dbIterator = new HeapFileIterator(this.tid, heapFile);
+        if (this.morsels != null)
+            this.dbIterator = this.morsels.iterator(this.tid);
+        else
+            this.dbIterator = new HeapFileIterator(this.tid, heapFile);
         this.dbIterator.open();
+        this.open = true;
         // some code goes here
     }
 
@@ -123,9 +153,21 @@ public class SeqScan implements DbIterator {
         return this.dbIterator.next();
     }
 
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (!this.open)
+            throw new IllegalStateException("SeqScan not yet open");
+        if (this.batch == null)
+            this.batch = new TupleBatch(getTupleDesc());
+        this.batch.clear();
+        while (!this.batch.isFull() && this.dbIterator.hasNext())
+            this.batch.add(this.dbIterator.next());
+        return this.batch.size() == 0 ? null : this.batch;
+    }
+
     public void close() {
         // some code goes here
         this.dbIterator.close();
+        this.open = false;
     }
 
     public void rewind() throws DbException, NoSuchElementException,
@@ -91,6 +91,17 @@ public class SimpleDb {
             }
 
         }
+        else if (args[0].equals("server") || args[0].equals("client")) {
+            String[] newargs = new String[args.length-1];
+            for (int i = 1; i < args.length; ++i) {
+                newargs[i-1] = args[i];
+            }
+
+            if (args[0].equals("server"))
+                SqlServer.main(newargs);
+            else
+                SqlClient.main(newargs);
+        }
         else {
             System.err.println("Unknown command: " + args[0]);
             System.exit(1);
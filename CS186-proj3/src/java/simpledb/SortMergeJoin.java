@@ -0,0 +1,226 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SortMergeJoin joins two children that are sorted in ascending order on
+ * their join fields, sorting either of them first (with ExternalSort) if it
+ * is not already.  It handles =, &lt;, &lt;=, &gt; and &gt;= predicates.
+ * <p>
+ * For an equality join the children are merged, and the tuples of child2
+ * sharing a join value are held in memory while every tuple of child1
+ * with that value is joined with them.  For an inequality the tuples
+ * matching one tuple of the driving child form a prefix of the other
+ * child: child2 below a tuple of child1 for &gt; and &gt;=, and child1 below
+ * a tuple of child2 for &lt; and &lt;=.  Each driving tuple rescans that
+ * prefix and stops at the first tuple past it, so the tuples read are
+ * about the tuples returned.
+ *
+ * @see JoinOptimizer#estimateJoinCost
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate pred;
+    private DbIterator child1, child2;
+    private final boolean sorted1, sorted2;
+    private final int memoryTuples;
+    private final TupleDesc comboTD;
+
+    // the children in join field order
+    private transient DbIterator in1, in2;
+
+    // equality: the current tuple of child1, and the tuples of child2
+    // with its join value
+    private transient Tuple left;
+    private transient ArrayList<Tuple> group = new ArrayList<Tuple>();
+    private transient int nextInGroup;
+    private transient Tuple right;
+
+    // inequality: the current driving tuple
+    private transient Tuple driver;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on, and says which children are already sorted
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param sorted1
+     *            true if child1 is in ascending order of its join field
+     * @param sorted2
+     *            true if child2 is in ascending order of its join field
+     * @param memoryTuples
+     *            The most tuples of either child to sort in memory
+     * @throws IllegalArgumentException if p is not an ordering predicate
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2,
+            boolean sorted1, boolean sorted2, int memoryTuples) {
+        if (!supports(p.getOperator()))
+            throw new IllegalArgumentException("sort-merge join cannot evaluate " + p.getOperator());
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.sorted1 = sorted1;
+        this.sorted2 = sorted2;
+        this.memoryTuples = memoryTuples;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /** Constructor for children that must both be sorted first. */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, false, false, ExternalSort.DEFAULT_MEMORY_TUPLES);
+    }
+
+    /** @return true if a SortMergeJoin can join on op */
+    public static boolean supports(Predicate.Op op) {
+        switch (op) {
+        case EQUALS:
+        case LESS_THAN:
+        case LESS_THAN_OR_EQ:
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQ:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        in1 = sorted1 ? child1 : new ExternalSort(child1,
+                new TupleComparator(pred.getField1(), true), memoryTuples);
+        in2 = sorted2 ? child2 : new ExternalSort(child2,
+                new TupleComparator(pred.getField2(), true), memoryTuples);
+        in1.open();
+        in2.open();
+        reset();
+    }
+
+    public void close() {
+        super.close();
+        if (in1 != null) {
+            in2.close();
+            in1.close();
+        }
+        in1 = null;
+        in2 = null;
+        reset();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        in1.rewind();
+        in2.rewind();
+        reset();
+    }
+
+    private void reset() {
+        left = null;
+        right = null;
+        group.clear();
+        nextInGroup = 0;
+        driver = null;
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (pred.getOperator() == Predicate.Op.EQUALS)
+            return fetchNextEqual();
+        else
+            return fetchNextInequal();
+    }
+
+    private Tuple fetchNextEqual() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (left != null && nextInGroup < group.size())
+                return merge(left, group.get(nextInGroup++));
+            if (!in1.hasNext())
+                return null;
+            Tuple prev = left;
+            left = in1.next();
+            nextInGroup = 0;
+            Field key = left.getField(pred.getField1());
+            // a run of equal values in child1 reuses the group
+            if (prev != null && key.compare(Predicate.Op.EQUALS, prev.getField(pred.getField1())))
+                continue;
+
+            group.clear();
+            while (right != null || in2.hasNext()) {
+                if (right == null)
+                    right = in2.next();
+                Field rkey = right.getField(pred.getField2());
+                if (rkey.compare(Predicate.Op.GREATER_THAN, key))
+                    break;
+                if (rkey.compare(Predicate.Op.EQUALS, key))
+                    group.add(right);
+                right = null;
+            }
+        }
+    }
+
+    private Tuple fetchNextInequal() throws TransactionAbortedException, DbException {
+        // child1 drives for > and >=, child2 for < and <=
+        Predicate.Op op = pred.getOperator();
+        boolean leftDrives = op == Predicate.Op.GREATER_THAN
+                || op == Predicate.Op.GREATER_THAN_OR_EQ;
+        DbIterator driving = leftDrives ? in1 : in2;
+        DbIterator scanned = leftDrives ? in2 : in1;
+        while (true) {
+            if (driver != null && scanned.hasNext()) {
+                Tuple t = scanned.next();
+                Tuple l = leftDrives ? driver : t;
+                Tuple r = leftDrives ? t : driver;
+                if (pred.filter(l, r))
+                    return merge(l, r);
+            }
+            // past the prefix: move to the next driving tuple
+            if (!driving.hasNext())
+                return null;
+            driver = driving.next();
+            scanned.rewind();
+        }
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int n1 = t1.getTupleDesc().numFields();
+        int n2 = t2.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < n1; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < n2; i++)
+            t.setField(n1 + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
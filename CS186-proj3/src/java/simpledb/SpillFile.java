@@ -0,0 +1,79 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * SpillFile is a temporary file of tuples, used by operators that run out
+ * of memory to park part of their input.  Tuples are appended with add,
+ * then read back in the same order with read after rewind.  They are
+ * stored compactly, as in FrameCodec's ROWS frames: strings take only the
+ * bytes they use, and record ids are dropped.
+ * <p>
+ * The file is deleted by delete, or when the JVM exits at the latest.
+ */
+class SpillFile {
+
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private DataInputStream in;
+    private int size = 0;
+    private int unread = 0;
+
+    SpillFile(TupleDesc td) throws IOException {
+        this.td = td;
+        file = File.createTempFile("simpledb-spill", ".tmp");
+        file.deleteOnExit();
+        out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file), BUFFER_BYTES));
+    }
+
+    /** Append t to the file; only allowed before the first rewind. */
+    void add(Tuple t) throws IOException {
+        FrameCodec.writeTuple(out, t);
+        size++;
+    }
+
+    /** @return the number of tuples added */
+    int size() {
+        return size;
+    }
+
+    /** Start reading from the first tuple, ending any appends. */
+    void rewind() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        if (in != null)
+            in.close();
+        in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), BUFFER_BYTES));
+        unread = size;
+    }
+
+    /** @return the next tuple, or null if all have been read */
+    Tuple read() throws IOException {
+        if (unread == 0)
+            return null;
+        unread--;
+        return FrameCodec.readTuple(in, td);
+    }
+
+    /** Close the file and delete it. */
+    void delete() {
+        try {
+            if (out != null)
+                out.close();
+            if (in != null)
+                in.close();
+        } catch (IOException e) {
+            // nothing more to do with it
+        }
+        out = null;
+        in = null;
+        file.delete();
+    }
+}
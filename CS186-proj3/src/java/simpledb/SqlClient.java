@@ -0,0 +1,147 @@
+package simpledb;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.*;
+
+/**
+ * SqlClient sends statements to a SqlServer and reads back their results,
+ * one statement at a time.
+ * <p>
+ * execute sends a statement and returns once its schema (or its
+ * completion) arrives; the rows are then read with hasNext and next as
+ * the server streams them.  Executing the next statement first skips any
+ * rows left unread.
+ */
+public class SqlClient {
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    private TupleDesc td;
+    private Iterator<Tuple> batch;
+    private boolean done = true;
+    private int rowCount;
+
+    public SqlClient(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    /**
+     * Run sql on the server.
+     * @return the schema of its result, or null if it has none
+     * @throws DbException if the server could not run it
+     */
+    public TupleDesc execute(String sql) throws IOException, DbException {
+        while (!done)
+            readFrame();
+        FrameCodec.query(sql).write(out);
+        out.flush();
+
+        td = null;
+        batch = null;
+        done = false;
+        rowCount = 0;
+        while (!done && td == null)
+            readFrame();
+        return td;
+    }
+
+    /** @return true if the current statement has more rows */
+    public boolean hasNext() throws IOException, DbException {
+        while ((batch == null || !batch.hasNext()) && !done)
+            readFrame();
+        return batch != null && batch.hasNext();
+    }
+
+    public Tuple next() throws IOException, DbException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return batch.next();
+    }
+
+    /**
+     * @return the number of rows the server reported for the current
+     *   statement, once they have all been read
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private void readFrame() throws IOException, DbException {
+        FrameCodec.Frame f = FrameCodec.Frame.read(in);
+        if (f == null)
+            throw new EOFException("server closed the connection");
+        switch (f.type) {
+        case FrameCodec.SCHEMA:
+            td = FrameCodec.readSchema(f);
+            break;
+        case FrameCodec.ROWS:
+            batch = FrameCodec.readRows(f, td).iterator();
+            break;
+        case FrameCodec.DONE:
+            rowCount = FrameCodec.readInt(f);
+            done = true;
+            break;
+        case FrameCodec.ERROR:
+            done = true;
+            batch = null;
+            throw new DbException(FrameCodec.readMessage(f));
+        default:
+            throw new IOException("unexpected frame type " + f.type);
+        }
+    }
+
+    static final String usage = "Usage: client [host] [port]";
+
+    /** Read statements from standard input and print their results. */
+    public static void main(String[] argv) throws IOException {
+        if (argv.length > 2) {
+            System.out.println("Invalid number of arguments.\n" + usage);
+            System.exit(0);
+        }
+        String host = argv.length > 0 ? argv[0] : "localhost";
+        int port = argv.length > 1 ? Integer.parseInt(argv[1]) : SqlServer.DEFAULT_PORT;
+        SqlClient client = new SqlClient(host, port);
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+        StringBuilder buffer = new StringBuilder();
+        String line;
+        System.out.print("SimpleDB> ");
+        while ((line = reader.readLine()) != null) {
+            // statements end at ';', as at the console
+            while (line.indexOf(';') >= 0) {
+                int split = line.indexOf(';');
+                buffer.append(line.substring(0, split + 1));
+                String cmd = buffer.toString().trim();
+                if (cmd.equalsIgnoreCase("quit;") || cmd.equalsIgnoreCase("exit;")) {
+                    client.close();
+                    return;
+                }
+                try {
+                    TupleDesc td = client.execute(cmd);
+                    if (td != null)
+                        System.out.println(td);
+                    while (client.hasNext())
+                        System.out.println(client.next());
+                    System.out.println("\n " + client.getRowCount() + " rows.");
+                } catch (DbException e) {
+                    System.out.println(e.getMessage());
+                }
+                line = line.substring(split + 1);
+                buffer = new StringBuilder();
+            }
+            if (line.length() > 0)
+                buffer.append(line).append("\n");
+            System.out.print("SimpleDB> ");
+        }
+        client.close();
+    }
+}
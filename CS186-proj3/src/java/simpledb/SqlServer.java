@@ -0,0 +1,236 @@
+package simpledb;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.ProtocolCodecFilter;
+import org.apache.mina.filter.executor.ExecutorFilter;
+import org.apache.mina.filter.executor.OrderedThreadPoolExecutor;
+import org.apache.mina.transport.socket.nio.NioSocketAcceptor;
+
+/**
+ * SqlServer accepts SQL statements from many clients at once over TCP,
+ * using the frames described in FrameCodec.
+ * <p>
+ * Each connection is a session with its own Parser, and so its own
+ * current transaction: a statement outside SET TRANSACTION ... COMMIT
+ * runs in a transaction of its own, as at the console.  Statements run on
+ * a pool of worker threads, in order within a session and in parallel
+ * across sessions; MINA's I/O threads only decode and send frames.
+ * Results are streamed back in ROWS frames as the plan produces them,
+ * and a worker waits for a slow client to catch up rather than queueing
+ * its whole result.
+ * <p>
+ * Created without a worker count, the server runs each busy session on a
+ * virtual thread of its own where the JVM supports them (see
+ * VirtualThreads): a session blocked on a page read, a lock or a commit
+ * then holds no platform thread, so thousands of sessions can be served
+ * by a few cores.
+ *
+ * @see SqlClient
+ */
+public class SqlServer {
+
+    public static final int DEFAULT_PORT = 8186;
+    public static final int DEFAULT_WORKERS = 16;
+    /** Most sessions running statements at once on virtual threads */
+    public static final int MAX_VIRTUAL_WORKERS = 1 << 16;
+
+    /** Bytes of rows collected before they are sent as one ROWS frame */
+    static final int ROWS_FRAME_BYTES = 32 * 1024;
+    /** Bytes queued for a client past which a worker waits for it */
+    static final int MAX_QUEUED_BYTES = 1 << 20;
+
+    private final NioSocketAcceptor acceptor;
+    private final OrderedThreadPoolExecutor workers;
+
+    /**
+     * Create a server that runs statements on up to the given number of
+     * worker threads.
+     */
+    public SqlServer(int workers) {
+        this(new OrderedThreadPoolExecutor(workers));
+    }
+
+    /**
+     * Create a server that runs each session's statements on a virtual
+     * thread, or on up to DEFAULT_WORKERS platform threads if this JVM
+     * has no virtual threads, as before Java 21.
+     */
+    public SqlServer() {
+        this(VirtualThreads.isActive() ? MAX_VIRTUAL_WORKERS : DEFAULT_WORKERS,
+             VirtualThreads.factory("simpledb-session-"));
+    }
+
+    private SqlServer(int workers, ThreadFactory threads) {
+        // idle virtual threads are cheap to replace, so none are kept
+        this(new OrderedThreadPoolExecutor(0, workers, 1, TimeUnit.SECONDS, threads));
+    }
+
+    private SqlServer(OrderedThreadPoolExecutor workers) {
+        this.workers = workers;
+        acceptor = new NioSocketAcceptor();
+        acceptor.setReuseAddress(true);
+        acceptor.getFilterChain().addLast("codec", new ProtocolCodecFilter(new FrameCodec()));
+        acceptor.getFilterChain().addLast("workers", new ExecutorFilter(this.workers));
+        acceptor.setHandler(new Handler());
+    }
+
+    /**
+     * Start accepting clients on port, or on any free port if it is 0.
+     * @return the address the server listens on
+     */
+    public InetSocketAddress bind(int port) throws IOException {
+        acceptor.bind(new InetSocketAddress(port));
+        return acceptor.getLocalAddress();
+    }
+
+    /** @return the most statements this server runs at once */
+    int maxWorkers() {
+        return workers.getMaximumPoolSize();
+    }
+
+    /** Stop accepting clients, close every session and stop the workers. */
+    public void close() {
+        acceptor.unbind();
+        acceptor.dispose(true);
+        workers.shutdown();
+    }
+
+    private static class Handler extends IoHandlerAdapter {
+        public void sessionOpened(IoSession io) {
+            io.setAttribute(Session.class, new Session(io));
+        }
+
+        public void messageReceived(IoSession io, Object message) {
+            FrameCodec.Frame f = (FrameCodec.Frame) message;
+            Session session = (Session) io.getAttribute(Session.class);
+            if (f.type != FrameCodec.QUERY) {
+                session.sendError("expected a query frame");
+                return;
+            }
+            try {
+                session.run(new String(f.payload, "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /** A client that goes away abandons its open transaction. */
+        public void sessionClosed(IoSession io) {
+            Session session = (Session) io.getAttribute(Session.class);
+            if (session == null || session.getTransaction() == null)
+                return;
+            try {
+                session.getTransaction().abort();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        public void exceptionCaught(IoSession io, Throwable cause) {
+            cause.printStackTrace();
+            io.close(true);
+        }
+    }
+
+    /** A client's connection, and the parser state its statements share. */
+    static class Session extends Parser {
+        private final IoSession io;
+        private WriteFuture lastWrite;
+        private int rows;
+
+        Session(IoSession io) {
+            this.io = io;
+            this.interactive = false;
+        }
+
+        /** Run a statement and answer it with DONE or ERROR. */
+        void run(String sql) {
+            rows = 0;
+            try {
+                processStatement(new ByteArrayInputStream(sql.getBytes("UTF-8")));
+                send(FrameCodec.done(rows));
+            } catch (simpledb.ParsingException e) {
+                sendError("Invalid SQL expression: " + e.getMessage());
+            } catch (Zql.ParseException e) {
+                sendError("Invalid SQL expression: " + e.getMessage());
+            } catch (Zql.TokenMgrError e) {
+                sendError("Invalid SQL expression: " + e.getMessage());
+            } catch (Exception e) {
+                sendError(e.toString());
+            }
+        }
+
+        /** Stream query's results to the client instead of printing them. */
+        protected void execute(Query query) throws IOException, DbException,
+                TransactionAbortedException {
+            send(FrameCodec.schema(query.getOutputTupleDesc()));
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            int batch = 0;
+            query.start();
+            try {
+                while (query.hasNext()) {
+                    FrameCodec.writeTuple(out, query.next());
+                    batch++;
+                    rows++;
+                    if (bytes.size() >= ROWS_FRAME_BYTES) {
+                        sendRows(batch, bytes);
+                        batch = 0;
+                    }
+                }
+                if (batch > 0)
+                    sendRows(batch, bytes);
+            } finally {
+                query.close();
+            }
+        }
+
+        private void sendRows(int batch, ByteArrayOutputStream bytes) throws IOException {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream(bytes.size() + 4);
+            new DataOutputStream(frame).writeInt(batch);
+            bytes.writeTo(frame);
+            bytes.reset();
+            send(new FrameCodec.Frame(FrameCodec.ROWS, frame.toByteArray()));
+            if (io.getScheduledWriteBytes() > MAX_QUEUED_BYTES)
+                lastWrite.awaitUninterruptibly();
+        }
+
+        void sendError(String message) {
+            try {
+                send(FrameCodec.error(message));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        void send(FrameCodec.Frame f) {
+            lastWrite = io.write(f);
+        }
+    }
+
+    static final String usage = "Usage: server catalogFile [port] [workers]\n"
+        + "  with no worker count, each session runs on a virtual thread";
+
+    public static void main(String[] argv) throws IOException {
+        if (argv.length < 1 || argv.length > 3) {
+            System.out.println("Invalid number of arguments.\n" + usage);
+            System.exit(0);
+        }
+        int port = argv.length > 1 ? Integer.parseInt(argv[1]) : DEFAULT_PORT;
+
+        Database.getCatalog().loadSchema(argv[0]);
+        TableStats.computeStatistics();
+        Database.getLogFile().startFlusher(LogFile.DEFAULT_FLUSH_INTERVAL);
+
+        SqlServer server = argv.length > 2
+            ? new SqlServer(Integer.parseInt(argv[2])) : new SqlServer();
+        System.out.println("Listening on " + server.bind(port));
+    }
+}
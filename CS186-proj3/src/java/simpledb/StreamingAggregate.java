@@ -0,0 +1,215 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * StreamingAggregate computes the same aggregates as Aggregate over a
+ * child whose tuples arrive grouped: every tuple of a group follows the
+ * previous one, as they do when the child is sorted on the group-by
+ * fields.  Each group is returned as soon as a tuple of the next group
+ * (or the end of the child) is read, so the first group comes after
+ * reading only that group, and only one group's aggregates are held.
+ * <p>
+ * With no grouping the whole child is one group.  Over a child that is
+ * not grouped this returns a group each time the key changes, so the
+ * planner uses it only where {@link #groupsInOrder} knows the ordering.
+ */
+public class StreamingAggregate extends Aggregate {
+
+    private static final long serialVersionUID = 1L;
+
+    // the groups being read since the last open, if any
+    private Groups groups;
+
+    /**
+     * Constructor for several aggregates over a composite group key.
+     *
+     * @param child
+     *            The DbIterator that is feeding us tuples, grouped on
+     *            gfields
+     * @param afields
+     *            The columns over which we are computing aggregates.
+     * @param aops
+     *            The aggregation operator for each of afields
+     * @param gfields
+     *            The columns over which we are grouping the result, or an
+     *            empty array if there is no grouping
+     */
+    public StreamingAggregate(DbIterator child, int[] afields, Aggregator.Op[] aops,
+            int[] gfields) {
+        super(child, afields, aops, gfields);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The DbIterator that is feeding us tuples, grouped on gfield
+     * @param afield
+     *            The column over which we are computing an aggregate.
+     * @param gfield
+     *            The column over which we are grouping the result, or -1 if
+     *            there is no grouping
+     * @param aop
+     *            The aggregation operator to use
+     */
+    public StreamingAggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop) {
+        super(child, afield, gfield, aop);
+    }
+
+    @Override
+    protected DbIterator groups(DbIterator child) {
+        groups = new Groups(child);
+        return groups;
+    }
+
+    /** A new child while open is read from its start on the next rewind. */
+    @Override
+    public void setChildren(DbIterator[] children) {
+        super.setChildren(children);
+        if (groups != null)
+            groups.setChildren(children);
+    }
+
+    /**
+     * @return true if the tuples of it arrive grouped on gfields, because
+     *         it is sorted on a field equal to each of them
+     */
+    public static boolean groupsInOrder(DbIterator it, int[] gfields) {
+        Set<Integer> keys = sortKeys(it);
+        for (int gfield : gfields) {
+            if (!keys.contains(gfield))
+                return false;
+        }
+        return gfields.length > 0;
+    }
+
+    /**
+     * @return the fields that it is sorted on: the tuples are in order of
+     *         one of them, and the others are equal to it in every tuple
+     */
+    private static Set<Integer> sortKeys(DbIterator it) {
+        Set<Integer> keys = new HashSet<Integer>();
+        if (it instanceof OrderBy) {
+            keys.add(((OrderBy) it).getOrderByField());
+        } else if (it instanceof Filter || it instanceof Limit) {
+            keys.addAll(sortKeys(((Operator) it).getChildren()[0]));
+        } else if (it instanceof SortMergeJoin) {
+            // an equality join returns its tuples in order of the join value
+            JoinPredicate p = ((SortMergeJoin) it).getJoinPredicate();
+            if (p.getOperator() == Predicate.Op.EQUALS) {
+                int width1 = ((Operator) it).getChildren()[0].getTupleDesc().numFields();
+                keys.add(p.getField1());
+                keys.add(width1 + p.getField2());
+            }
+        } else if (it instanceof StreamingAggregate) {
+            // groups come out in the order of their first tuple
+            int[] gfields = ((StreamingAggregate) it).groupFields();
+            if (gfields.length == 1 && sortKeys(((Operator) it).getChildren()[0])
+                    .contains(gfields[0]))
+                keys.add(0);
+        }
+        return keys;
+    }
+
+    /** Returns each group of the child once its last tuple has been read. */
+    private class Groups extends Operator {
+
+        private static final long serialVersionUID = 1L;
+
+        private DbIterator child;
+        private final int[] gfields = groupFields();
+        private final int[] afields = aggregateFields();
+        private final Aggregator.Op[] ops = aggregateOps();
+        // the aggregates of the group being read, as the only group
+        private final IntAggregateTable table = new IntAggregateTable(ops, 0);
+        private final int[] noKey = new int[0];
+        // the first tuple of the next group, read past the end of the last
+        private Tuple pending = null;
+        private boolean returned = false;
+
+        Groups(DbIterator child) {
+            this.child = child;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return StreamingAggregate.this.getTupleDesc();
+        }
+
+        public void rewind() {
+            pending = null;
+            returned = false;
+        }
+
+        /** Forget the group being read, as for a new child. */
+        private void reset() {
+            table.clear();
+            rewind();
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            Tuple first = pending;
+            pending = null;
+            if (first == null && child.hasNext())
+                first = child.next();
+            if (first == null) {
+                // with no grouping the empty child is still one group, whose
+                // COUNT is 0
+                if (returned || gfields.length > 0)
+                    return null;
+                returned = true;
+                table.clear();
+                DbIterator empty = table.iterator(getTupleDesc(), new GroupKeys[0]);
+                empty.open();
+                return empty.hasNext() ? empty.next() : null;
+            }
+
+            table.clear();
+            int g = table.group(noKey);
+            merge(g, first);
+            while (child.hasNext()) {
+                Tuple t = child.next();
+                if (!sameGroup(first, t)) {
+                    pending = t;
+                    break;
+                }
+                merge(g, t);
+            }
+            returned = true;
+
+            Tuple out = new Tuple(getTupleDesc());
+            for (int j = 0; j < gfields.length; j++)
+                out.setField(j, first.getField(gfields[j]));
+            for (int a = 0; a < ops.length; a++)
+                out.setField(gfields.length + a, new IntField(table.result(g, a)));
+            return out;
+        }
+
+        private void merge(int g, Tuple t) {
+            for (int a = 0; a < ops.length; a++) {
+                int value = ops[a] == Aggregator.Op.COUNT ? 0
+                        : ((IntField) t.getField(afields[a])).getValue();
+                table.add(g, a, value);
+            }
+        }
+
+        private boolean sameGroup(Tuple t1, Tuple t2) {
+            for (int gfield : gfields) {
+                if (!t1.getField(gfield).equals(t2.getField(gfield)))
+                    return false;
+            }
+            return true;
+        }
+
+        @Override
+        public DbIterator[] getChildren() {
+            return new DbIterator[] { child };
+        }
+
+        @Override
+        public void setChildren(DbIterator[] children) {
+            child = children[0];
+            reset();
+        }
+    }
+}
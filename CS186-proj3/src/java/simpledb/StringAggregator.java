@@ -1,12 +1,9 @@
 package simpledb;
-import java.util.HashMap;
-import java.util.Map;
 
-import java.util.ArrayList;
-import java.util.Set;
-import java.util.List;
 /**
- * Knows how to compute some aggregate over a set of StringFields.
+ * Knows how to compute some aggregate over a set of StringFields.  Groups
+ * and their counts are kept in an IntAggregateTable, as in
+ * IntegerAggregator.
  */
 public class StringAggregator implements Aggregator {
 
@@ -15,13 +12,12 @@ public class StringAggregator implements Aggregator {
     private Type gbft;
     private int afield;
     private Op what;
-    
+
     private String groupName = "";
     private String tupName = "";
-    private static Map<Field,Field> aggset;
-    //private Map<Field, Integer> sums = new HashMap<Field, Integer>();
-    //private Map<Field, Integer> counts = new HashMap<Field, Integer>();
-
+    private final GroupKeys[] groups;
+    private final IntAggregateTable table;
+    private final int[] key;
 
     /**
      * Aggregate constructor
@@ -33,15 +29,17 @@ public class StringAggregator implements Aggregator {
      */
 
     public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
-        // some code goes here
+        if(!(what.equals(Op.COUNT))) {
+        	throw new IllegalArgumentException("STRING AGGREGATOR ONLY SUPPORTS COUNT");
+        }
         this.gbf = gbfield;
         this.gbft = gbfieldtype;
         this.afield = afield;
         this.what = what;
-        aggset = new HashMap<Field,Field>();
-        if(!(what.equals(Op.COUNT))) {
-        	throw new IllegalArgumentException("STRING AGGREGATOR ONLY SUPPORTS COUNT");
-        }
+        groups = gbfield == NO_GROUPING ? new GroupKeys[0]
+                : new GroupKeys[] { new GroupKeys(gbfieldtype) };
+        table = new IntAggregateTable(new Op[] { what }, groups.length);
+        key = new int[groups.length];
     }
 
     /**
@@ -49,31 +47,12 @@ public class StringAggregator implements Aggregator {
      * @param tup the Tuple containing an aggregate field and a group-by field
      */
     public void mergeTupleIntoGroup(Tuple tup) {
-        // some code goes here
-        Field tupField;
         tupName = tup.getTupleDesc().getFieldName(this.afield);
-        //String groupName = "";
-        
-        if(this.gbf != -1) {
-        	tupField = tup.getField(this.gbf);
-        	groupName = tup.getTupleDesc().getFieldName(this.gbf);
-        }
-        else {
-        	tupField = new IntField(-1);
+        if (groups.length > 0) {
+            groupName = tup.getTupleDesc().getFieldName(this.gbf);
+            key[0] = groups[0].key(tup.getField(this.gbf));
         }
-        
-        IntField currVal = (IntField)aggset.get(tupField);
-        //IntField aggField = (IntField)tup.getField(this.afield);
-        
-        if(this.what.equals(Op.COUNT)) {
-        	int count = 1;
-        	if(aggset.get(tupField) != null) {
-        		count = currVal.getValue() + 1;
-        	}
-        	Field newcount = new IntField(count);
-        	aggset.put(tupField, newcount);
-        }
-        
+        table.add(table.group(key), 0, 0);
     }
 
     /**
@@ -82,36 +61,17 @@ public class StringAggregator implements Aggregator {
      * @return a DbIterator whose tuples are the pair (groupVal,
      *   aggregateVal) if using group, or a single (aggregateVal) if no
      *   grouping. The aggregateVal is determined by the type of
-     *   aggregate specified in the constructor.
+     *   aggregate specified in the constructor.  Without grouping and
+     *   with no tuples merged, the COUNT is a single 0, as in Aggregate.
      */
     public DbIterator iterator() {
-        // some code goes here
-        List<Tuple> myList = new ArrayList<Tuple> ();
         TupleDesc myTD;
-        Type[] tdType;
-        String[] tdString;
-        if(this.gbf == -1){
-        	tdType = new Type[] {Type.INT_TYPE};
-        	tdString = new String[] {tupName};
-        	myTD = new TupleDesc(tdType,tdString);
-            Tuple tdGroup = new Tuple(myTD);
-            tdGroup.setField(0, aggset.get(new IntField(-1)));
-			myList.add(tdGroup);
-            return new TupleIterator(myTD, myList);      
-        } 
-        else{
-        	tdType = new Type[] {this.gbft, Type.INT_TYPE};
-        	tdString = new String[] {this.groupName, this.tupName};
-			myTD = new TupleDesc(tdType, tdString);
-            Set<Field> aggKeys = aggset.keySet();
-            for(Field key : aggKeys){
-            	Tuple tdGroup = new Tuple(myTD);
-               	tdGroup.setField(0, key);
-                tdGroup.setField(1, aggset.get(key));
-               	myList.add(tdGroup);
-           	}
-            return new TupleIterator(myTD, myList);    
-        }
+        if (groups.length == 0)
+            myTD = new TupleDesc(new Type[] { Type.INT_TYPE }, new String[] { tupName });
+        else
+            myTD = new TupleDesc(new Type[] { this.gbft, Type.INT_TYPE },
+                    new String[] { this.groupName, this.tupName });
+        return table.iterator(myTD, groups);
 	}
 
 }
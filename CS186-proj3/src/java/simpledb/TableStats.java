@@ -1,5 +1,6 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -103,7 +104,9 @@ public class TableStats {
         //System.out.println("dbFile = " + this.file);
         
         
-        DbFileIterator dbiter = this.file.iterator(null); // or new TransactionId()?
+        // scan in a transaction of its own, so the page locks are released
+        TransactionId scan = new TransactionId();
+        DbFileIterator dbiter = this.file.iterator(scan);
         TupleDesc ftd = this.file.getTupleDesc();
         try {
         	dbiter.open();
@@ -145,7 +148,7 @@ public class TableStats {
         dbiter.close();
         
         
-        dbiter = this.file.iterator(null); // or new TransactionId()?
+        dbiter = this.file.iterator(scan);
         ftd = this.file.getTupleDesc();
         try {
         	dbiter.open();
@@ -202,6 +205,12 @@ public class TableStats {
         	tae.printStackTrace();
         }
         dbiter.close();
+        try {
+        	Database.getBufferPool().transactionComplete(scan);
+        }
+        catch (IOException ioe) {
+        	ioe.printStackTrace();
+        }
         
   	}
   	
@@ -0,0 +1,97 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopN returns the first n tuples of its child in the order given by a
+ * comparator.  Open reads the whole child through a heap holding the n
+ * best tuples so far, with the worst of them on top to be replaced, so
+ * it takes O(N log n) time and O(n) memory for N tuples rather than
+ * sorting them all.  Like ExternalSort, it is stable: of tuples that
+ * compare equal, the earliest are kept and returned first.
+ *
+ * @see OrderBy
+ */
+class TopN implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final DbIterator child;
+    private final Comparator<Tuple> comparator;
+    private final int n;
+
+    // the kept tuples, in order
+    private transient Tuple[] top = null;
+    private transient int next = 0;
+
+    /** A tuple in the heap, and its position in the child */
+    private class Entry implements Comparable<Entry> {
+        final Tuple t;
+        final long seq;
+
+        Entry(Tuple t, long seq) {
+            this.t = t;
+            this.seq = seq;
+        }
+
+        // the worst entry, latest among equals, comes first
+        public int compareTo(Entry e) {
+            int c = comparator.compare(e.t, t);
+            return c != 0 ? c : (seq < e.seq ? 1 : seq > e.seq ? -1 : 0);
+        }
+    }
+
+    /**
+     * @param child the tuples to choose from
+     * @param comparator the order to return them in
+     * @param n the most tuples to return
+     */
+    TopN(DbIterator child, Comparator<Tuple> comparator, int n) {
+        this.child = child;
+        this.comparator = comparator;
+        this.n = n;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        PriorityQueue<Entry> heap = new PriorityQueue<Entry>(Math.max(1, n + 1));
+        child.open();
+        long seq = 0;
+        while (child.hasNext()) {
+            Entry e = new Entry(child.next(), seq++);
+            if (heap.size() < n)
+                heap.add(e);
+            else if (n > 0 && e.compareTo(heap.peek()) > 0) {
+                heap.poll();
+                heap.add(e);
+            }
+        }
+        top = new Tuple[heap.size()];
+        for (int i = top.length - 1; i >= 0; i--)
+            top[i] = heap.poll().t;
+        next = 0;
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        return top != null && next < top.length;
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException,
+            NoSuchElementException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return top[next++];
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        next = 0;
+    }
+
+    public void close() {
+        child.close();
+        top = null;
+    }
+}
@@ -10,6 +10,7 @@ import java.io.*;
 public class Transaction {
     private final TransactionId tid;
     volatile boolean started = false;
+    private boolean readOnly = false;
 
     public Transaction() {
         tid = new TransactionId();
@@ -25,6 +26,16 @@ public class Transaction {
         }
     }
 
+    /**
+     * Start the transaction as a read-only snapshot: it sees the database
+     * as committed at this point, takes no locks and writes no log records.
+     */
+    public void startSnapshot() {
+        readOnly = true;
+        started = true;
+        Database.getBufferPool().beginSnapshot(tid);
+    }
+
     public TransactionId getId() {
         return tid;
     }
@@ -44,7 +55,9 @@ public class Transaction {
 
         if (started) {
             //write commit / abort records
-            if (abort) {
+            if (readOnly) {
+                // nothing to write or undo
+            } else if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
                 //write all the dirty pages for this transaction out
@@ -0,0 +1,69 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TransactionGraph is the wait-for graph used by LockManager for deadlock
+ * detection.  There is an edge from t to u while transaction t is blocked
+ * waiting for a lock that u holds.  A cycle through t means t can never be
+ * granted its lock.
+ * <p>
+ * Several threads of one transaction, such as the workers of a Gather, can
+ * be blocked at once, each on a request of its own.  The edges are kept
+ * per request, and the edges of t are those of all of its requests.
+ *
+ * @see LockManager
+ */
+class TransactionGraph {
+
+    // the holders each blocked request waits for
+    private final HashMap<Object,HashSet<TransactionId>> edges =
+        new HashMap<Object,HashSet<TransactionId>>();
+    // the blocked requests of each transaction
+    private final HashMap<TransactionId,HashSet<Object>> requests =
+        new HashMap<TransactionId,HashSet<Object>>();
+
+    /** Replace the outgoing edges of waiter's request with edges to holders. */
+    void setEdges(Object request, TransactionId waiter, Collection<TransactionId> holders) {
+        if (holders.isEmpty()) {
+            removeEdges(request, waiter);
+            return;
+        }
+        edges.put(request, new HashSet<TransactionId>(holders));
+        HashSet<Object> rs = requests.get(waiter);
+        if (rs == null) {
+            rs = new HashSet<Object>();
+            requests.put(waiter, rs);
+        }
+        rs.add(request);
+    }
+
+    /** Remove the outgoing edges of a request of waiter that no longer waits. */
+    void removeEdges(Object request, TransactionId waiter) {
+        edges.remove(request);
+        HashSet<Object> rs = requests.get(waiter);
+        if (rs != null && rs.remove(request) && rs.isEmpty())
+            requests.remove(waiter);
+    }
+
+    /** @return true if tid can reach itself by following edges */
+    boolean hasCycle(TransactionId tid) {
+        HashSet<TransactionId> visited = new HashSet<TransactionId>();
+        ArrayList<TransactionId> stack = new ArrayList<TransactionId>();
+        stack.add(tid);
+        while (!stack.isEmpty()) {
+            HashSet<Object> rs = requests.get(stack.remove(stack.size() - 1));
+            if (rs == null)
+                continue;
+            for (Object r : rs) {
+                for (TransactionId u : edges.get(r)) {
+                    if (u.equals(tid))
+                        return true;
+                    if (visited.add(u))
+                        stack.add(u);
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,185 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * TupleBatch holds up to a fixed number of rows of one TupleDesc column by
+ * column: the values of an INT field are in an int array, and other
+ * fields are kept as their Field objects.  A selection vector lists the
+ * rows that are in the batch, so a filter narrows a batch without moving
+ * any values.
+ * <p>
+ * Rows are numbered by their position in the columns; the selected rows
+ * are row(0) .. row(size() - 1), in order.
+ *
+ * @see BatchedDbIterator
+ */
+public class TupleBatch implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The most rows in a batch */
+    public static final int CAPACITY = 1024;
+
+    private final TupleDesc td;
+    // ints[c] for an INT field c, fields[c] for the others
+    private final int[][] ints;
+    private final Field[][] fields;
+    private final RecordId[] rids;
+    private final int[] sel;
+    private int rows = 0;
+    private int selected = 0;
+
+    /** Create an empty batch of tuples of td. */
+    public TupleBatch(TupleDesc td) {
+        this.td = td;
+        int n = td.numFields();
+        ints = new int[n][];
+        fields = new Field[n][];
+        for (int c = 0; c < n; c++) {
+            if (td.getFieldType(c) == Type.INT_TYPE)
+                ints[c] = new int[CAPACITY];
+            else
+                fields[c] = new Field[CAPACITY];
+        }
+        rids = new RecordId[CAPACITY];
+        sel = new int[CAPACITY];
+    }
+
+    /** A batch of the columns cols of batch b, sharing its values. */
+    private TupleBatch(TupleDesc td, TupleBatch b, int[] cols) {
+        this.td = td;
+        ints = new int[cols.length][];
+        fields = new Field[cols.length][];
+        for (int c = 0; c < cols.length; c++) {
+            ints[c] = b.ints[cols[c]];
+            fields[c] = b.fields[cols[c]];
+        }
+        rids = b.rids;
+        sel = b.sel;
+        rows = b.rows;
+        selected = b.selected;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of selected rows */
+    public int size() {
+        return selected;
+    }
+
+    /** @return the row number of the kth selected row */
+    public int row(int k) {
+        return sel[k];
+    }
+
+    /** @return true if no more rows can be added */
+    public boolean isFull() {
+        return rows == CAPACITY;
+    }
+
+    /** Remove every row. */
+    public void clear() {
+        rows = 0;
+        selected = 0;
+    }
+
+    /** @return the value of INT field c of row */
+    public int getInt(int c, int row) {
+        return ints[c][row];
+    }
+
+    /** @return field c of row */
+    public Field getField(int c, int row) {
+        if (ints[c] != null)
+            return new IntField(ints[c][row]);
+        return fields[c][row];
+    }
+
+    /** @return row as a tuple */
+    public Tuple getTuple(int row) {
+        Tuple t = new Tuple(td);
+        for (int c = 0; c < ints.length; c++)
+            t.setField(c, getField(c, row));
+        t.setRecordId(rids[row]);
+        return t;
+    }
+
+    /** Add t as a new, selected row. */
+    public void add(Tuple t) {
+        for (int c = 0; c < ints.length; c++) {
+            if (ints[c] != null)
+                ints[c][rows] = ((IntField) t.getField(c)).getValue();
+            else
+                fields[c][rows] = t.getField(c);
+        }
+        rids[rows] = t.getRecordId();
+        sel[selected++] = rows++;
+    }
+
+    /**
+     * Add a new, selected row joining t1 with row of b: the fields of t1,
+     * then those of the row.
+     */
+    public void add(Tuple t1, TupleBatch b, int row) {
+        int n1 = t1.getTupleDesc().numFields();
+        for (int c = 0; c < n1; c++) {
+            if (ints[c] != null)
+                ints[c][rows] = ((IntField) t1.getField(c)).getValue();
+            else
+                fields[c][rows] = t1.getField(c);
+        }
+        for (int c = n1; c < ints.length; c++) {
+            if (ints[c] != null)
+                ints[c][rows] = b.ints[c - n1][row];
+            else
+                fields[c][rows] = b.fields[c - n1][row];
+        }
+        rids[rows] = null;
+        sel[selected++] = rows++;
+    }
+
+    /**
+     * @return the selection vector, whose first size() entries are the
+     *         selected rows.  Narrow the selection by moving the rows to
+     *         keep to its front, in order, and calling select.
+     */
+    int[] selection() {
+        return sel;
+    }
+
+    /** Keep only the first n rows of the selection vector. */
+    void select(int n) {
+        selected = n;
+    }
+
+    /**
+     * @return the fields cols of this batch as a batch of td.  It shares
+     *         this batch's values and selection, and is valid until this
+     *         batch changes.
+     */
+    public TupleBatch project(TupleDesc td, int[] cols) {
+        return new TupleBatch(td, this, cols);
+    }
+
+    /**
+     * Read the next batch of it: its own next batch if it is a
+     * BatchedDbIterator, or else its next tuples, added to rows.
+     *
+     * @param rows
+     *            the batch to clear and fill with the tuples of an iterator
+     *            without batches, reused from call to call
+     * @return the batch, or null if it has no more tuples
+     */
+    public static TupleBatch read(DbIterator it, TupleBatch rows)
+            throws DbException, TransactionAbortedException {
+        if (it instanceof BatchedDbIterator)
+            return ((BatchedDbIterator) it).nextBatch();
+        rows.clear();
+        while (!rows.isFull() && it.hasNext())
+            rows.add(it.next());
+        return rows.size() == 0 ? null : rows;
+    }
+}
@@ -0,0 +1,196 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * VersionStore keeps the committed versions of pages that read-only
+ * snapshot transactions may still need, so that they can read without
+ * taking locks and without blocking writers.
+ * <p>
+ * Every commit that writes pages is stamped with the next value of a
+ * logical clock, and a snapshot sees exactly the commits stamped at or
+ * before the clock value at its start.  For each page there is a chain of
+ * versions, newest first:
+ * <ul>
+ * <li>when a writer is granted a lock to change the page and the page has
+ *     no chain, nobody else is changing it, so it is still in its
+ *     committed state; a copy of that state starts a chain (stamped 0,
+ *     since every snapshot running can see it);
+ * <li>when a writer commits, its committed contents are pushed with the
+ *     commit's stamp: the whole page if it was the only writer, otherwise
+ *     the newest version with just the tuples it changed patched in;
+ * <li>a page with no chain has no writer and no version a running
+ *     snapshot still needs, so its current contents are what any snapshot
+ *     would see.
+ * </ul>
+ * Versions older than the newest one visible to the oldest running
+ * snapshot are dropped, and so is a chain with no writer once every
+ * snapshot can see its newest version.
+ * <p>
+ * BufferPool calls in while holding its latch, so readers and writers
+ * see chains change atomically with the page cache.  Nothing here blocks
+ * or does I/O, so the store's own monitor is enough.
+ *
+ * @see BufferPool#getPage
+ * @see Transaction#startSnapshot
+ */
+class VersionStore {
+
+    private static class Version {
+        final long ts;
+        final Page page;
+
+        Version(long ts, Page page) {
+            this.ts = ts;
+            this.page = page;
+        }
+    }
+
+    private static class Chain {
+        final HashSet<TransactionId> writers = new HashSet<TransactionId>();
+        final LinkedList<Version> versions = new LinkedList<Version>();
+    }
+
+    private final HashMap<PageId,Chain> chains = new HashMap<PageId,Chain>();
+    private final HashMap<TransactionId,Long> snapshots = new HashMap<TransactionId,Long>();
+    private long clock = 0;
+
+    /** @return a private copy of p, which later changes to p do not affect */
+    static Page copyOf(Page p) throws IOException {
+        return PageCodec.newPage(PageCodec.pageTag(p), p.getId(), p.getPageData());
+    }
+
+    /** Start a snapshot for tid that sees every commit made so far. */
+    synchronized void beginSnapshot(TransactionId tid) {
+        snapshots.put(tid, clock);
+    }
+
+    /** End tid's snapshot, releasing the versions only it needed. */
+    synchronized void endSnapshot(TransactionId tid) {
+        if (snapshots.remove(tid) == null)
+            return;
+        Iterator<Map.Entry<PageId,Chain>> it = chains.entrySet().iterator();
+        while (it.hasNext()) {
+            if (prune(it.next().getValue()))
+                it.remove();
+        }
+    }
+
+    /** @return true if tid is a snapshot transaction */
+    synchronized boolean isSnapshot(TransactionId tid) {
+        return snapshots.containsKey(tid);
+    }
+
+    /**
+     * @return the version of pid that snapshot tid sees, or null if it
+     *   sees the page's current contents
+     */
+    synchronized Page visible(TransactionId tid, PageId pid) {
+        Chain c = chains.get(pid);
+        if (c == null)
+            return null;
+        long ts = snapshots.get(tid);
+        for (Version v : c.versions) {
+            if (v.ts <= ts)
+                return v.page;
+        }
+        return c.versions.getLast().page;
+    }
+
+    /**
+     * Called when tid is granted a lock to change committed.getId(),
+     * before it can change the page.
+     */
+    synchronized void beforeWrite(TransactionId tid, Page committed) throws IOException {
+        Chain c = chains.get(committed.getId());
+        if (c == null) {
+            c = new Chain();
+            c.versions.add(new Version(0, copyOf(committed)));
+            chains.put(committed.getId(), c);
+        }
+        c.writers.add(tid);
+    }
+
+    /** Called when tid gives up its lock on pid without changing it. */
+    synchronized void released(TransactionId tid, PageId pid) {
+        Chain c = chains.get(pid);
+        if (c != null && c.writers.remove(tid)) {
+            if (prune(c))
+                chains.remove(pid);
+        }
+    }
+
+    /** @return the pages tid holds for writing */
+    synchronized ArrayList<PageId> writtenBy(TransactionId tid) {
+        ArrayList<PageId> pids = new ArrayList<PageId>();
+        for (Map.Entry<PageId,Chain> e : chains.entrySet()) {
+            if (e.getValue().writers.contains(tid))
+                pids.add(e.getKey());
+        }
+        return pids;
+    }
+
+    /**
+     * Publish the committed contents of the pages tid wrote, as one
+     * commit visible to snapshots started from now on.
+     *
+     * @param pages the committed page for each id returned by writtenBy(tid)
+     */
+    synchronized void commit(TransactionId tid, Collection<Page> pages) throws IOException {
+        if (pages.isEmpty())
+            return;
+        long ts = ++clock;
+        for (Page p : pages) {
+            Chain c = chains.get(p.getId());
+            Page committed;
+            if (c.writers.size() == 1 || !(p instanceof HeapPage)) {
+                committed = copyOf(p);
+            } else {
+                Page base = c.versions.getFirst().page;
+                LogFile.SlotDelta d = LogFile.SlotDelta.of(base, p, ((HeapPage) p).getDirtySlots(tid));
+                byte[] data = base.getPageData();
+                d.apply(data, true);
+                committed = PageCodec.newPage(PageCodec.pageTag(p), p.getId(), data);
+            }
+            c.versions.addFirst(new Version(ts, committed));
+            c.writers.remove(tid);
+            if (prune(c))
+                chains.remove(p.getId());
+        }
+    }
+
+    /** Forget tid's writes: the newest version of each page still stands. */
+    synchronized void abort(TransactionId tid) {
+        Iterator<Map.Entry<PageId,Chain>> it = chains.entrySet().iterator();
+        while (it.hasNext()) {
+            Chain c = it.next().getValue();
+            if (c.writers.remove(tid)) {
+                if (prune(c))
+                    it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drop versions no running snapshot can see.
+     * @return true if the whole chain can go
+     */
+    private boolean prune(Chain c) {
+        long oldest = Long.MAX_VALUE;
+        for (Long ts : snapshots.values()) {
+            oldest = Math.min(oldest, ts);
+        }
+        // keep everything newer than the oldest snapshot, and the version it sees
+        int keep = 0;
+        for (Version v : c.versions) {
+            keep++;
+            if (v.ts <= oldest)
+                break;
+        }
+        while (c.versions.size() > keep) {
+            c.versions.removeLast();
+        }
+        return c.writers.isEmpty() && c.versions.getFirst().ts <= oldest;
+    }
+}
@@ -0,0 +1,85 @@
+package simpledb;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * VirtualThreads makes the threads that sessions and background tasks
+ * run on.  Where the JVM has virtual threads (Java 21 and later) they are
+ * used, so that a thread blocked on a page read, a lock or a log force
+ * gives up its carrier and thousands of them can share a few cores;
+ * elsewhere they are ordinary daemon threads.
+ * <p>
+ * Virtual threads are found by reflection, so SimpleDb still builds and
+ * runs on older JVMs.  Code run on them must not block while holding an
+ * object's monitor, which pins the carrier: BufferPool, LogFile and the
+ * classes below them use ReentrantLock for that reason.
+ * <p>
+ * This tree is built and tested on Java 17, which has no virtual threads:
+ * there every thread made here is a platform thread, and SqlServer()
+ * runs with DEFAULT_WORKERS of them.  The virtual thread path, including
+ * SqlServer's MAX_VIRTUAL_WORKERS, only runs, and is only tested by
+ * VirtualThreadsTest, on Java 21 or later.
+ */
+class VirtualThreads {
+
+    /** Set to false to use platform threads even where virtual threads
+        are available. */
+    static volatile boolean enabled = true;
+
+    private static final Method ofVirtual;
+    private static final Method name;
+    private static final Method factory;
+
+    static {
+        Method v = null, n = null, f = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            v = Thread.class.getMethod("ofVirtual");
+            n = builder.getMethod("name", String.class, long.class);
+            f = builder.getMethod("factory");
+        } catch (ClassNotFoundException e) {
+            v = null;
+        } catch (NoSuchMethodException e) {
+            v = null;
+        }
+        ofVirtual = v;
+        name = n;
+        factory = f;
+    }
+
+    /** @return true if this JVM can run virtual threads */
+    static boolean isSupported() {
+        return ofVirtual != null;
+    }
+
+    /** @return true if factory() makes virtual threads */
+    static boolean isActive() {
+        return enabled && isSupported();
+    }
+
+    /**
+     * @return a factory for threads named prefix followed by a sequence
+     *   number: virtual threads if isActive(), and daemon platform threads
+     *   otherwise
+     */
+    static ThreadFactory factory(final String prefix) {
+        if (isActive()) {
+            try {
+                Object builder = name.invoke(ofVirtual.invoke(null), prefix, 0L);
+                return (ThreadFactory) factory.invoke(builder);
+            } catch (Exception e) {
+                // fall back to platform threads below
+            }
+        }
+        final AtomicLong count = new AtomicLong();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + count.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+}
@@ -176,6 +176,40 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /**
+   * @return the number of tuples of an Aggregate over no tuples, with the
+   *         given aggregates of field 1, grouped by field 0 or ungrouped
+   */
+  private int emptyRows(boolean grouped, Aggregator.Op... ops) throws Exception {
+    int[] afields = new int[ops.length];
+    java.util.Arrays.fill(afields, 1);
+    Aggregate op = new Aggregate(TestUtil.createTupleList(width1, new int[0]),
+        afields, ops, grouped ? new int[] { 0 } : new int[0]);
+    op.open();
+    int n = 0;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      for (int i = 0; i < ops.length; i++)
+        assertEquals(new IntField(0), t.getField(i));
+      n++;
+    }
+    op.close();
+    return n;
+  }
+
+  /**
+   * Unit test for Aggregate over no tuples: an ungrouped COUNT is 0, and
+   * the other aggregates, having no value, give no tuple
+   */
+  @Test public void emptyInput() throws Exception {
+    assertEquals(1, emptyRows(false, Aggregator.Op.COUNT));
+    assertEquals(1, emptyRows(false, Aggregator.Op.COUNT, Aggregator.Op.COUNT));
+    assertEquals(0, emptyRows(false, Aggregator.Op.SUM));
+    assertEquals(0, emptyRows(false, Aggregator.Op.MIN));
+    assertEquals(0, emptyRows(false, Aggregator.Op.COUNT, Aggregator.Op.AVG));
+    assertEquals(0, emptyRows(true, Aggregator.Op.COUNT));
+  }
+
   /**
    * JUnit suite target
    */
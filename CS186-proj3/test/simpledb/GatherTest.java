@@ -0,0 +1,169 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class GatherTest extends SimpleDbTestBase {
+
+  /**
+   * @return n iterators, the ith of rows tuples (j, i) for j = 0 .. rows-1
+   */
+  private DbIterator[] lists(int n, int rows) {
+    DbIterator[] lists = new DbIterator[n];
+    for (int i = 0; i < n; i++) {
+      int[] values = new int[2 * rows];
+      for (int j = 0; j < rows; j++) {
+        values[2 * j] = j;
+        values[2 * j + 1] = i;
+      }
+      lists[i] = TestUtil.createTupleList(2, values);
+    }
+    return lists;
+  }
+
+  private int count(DbIterator it) throws Exception {
+    int n = 0;
+    while (it.hasNext()) {
+      it.next();
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * Unit test for Gather returning every tuple of its children
+   */
+  @Test(timeout=20000) public void gathersAll() throws Exception {
+    Gather op = new Gather(lists(4, 1000));
+    ArrayList<Tuple> all = new ArrayList<Tuple>();
+    for (DbIterator list : lists(4, 1000)) {
+      while (list.hasNext())
+        all.add(list.next());
+    }
+    DbIterator expected = new TupleIterator(op.getTupleDesc(), all);
+    expected.open();
+    op.open();
+    TestUtil.matchAllTuples(expected, op);
+    op.rewind();
+    assertEquals(4000, count(op));
+    op.close();
+
+    // closing before the end stops the workers
+    op.open();
+    for (int i = 0; i < 10; i++)
+      op.next();
+    op.close();
+  }
+
+  /**
+   * Unit test for scans sharing the morsels of a table, gathered
+   */
+  @Test(timeout=20000) public void morsels() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 20000, null, tuples);
+    Morsels morsels = new Morsels(f, 2);
+    assertEquals((f.numPages() + 1) / 2, morsels.size());
+    TransactionId tid = new TransactionId();
+    DbIterator[] scans = new DbIterator[3];
+    for (int i = 0; i < scans.length; i++)
+      scans[i] = new SeqScan(tid, f.getId(), "t", morsels);
+    Gather op = new Gather(scans);
+    SystemTestUtil.matchTuples(op, tuples);
+    op.open();
+    op.rewind();
+    assertEquals(20000, count(op));
+    op.close();
+
+    // opened again, the scans read the pages added since the split
+    int pages = f.numPages();
+    for (int i = 0; i < 2000; i++)
+      Database.getBufferPool().insertTuple(tid, f.getId(), Utility.getHeapTuple(i, 2));
+    assertTrue(f.numPages() > pages);
+    op.open();
+    assertEquals(22000, count(op));
+    op.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Unit test for Gather reporting an error in a worker
+   */
+  @Test(timeout=20000) public void failure() throws Exception {
+    DbIterator[] children = lists(2, 5000);
+    children[1] = new Filter(new Predicate(0, Predicate.Op.EQUALS, new IntField(0)),
+        children[1]) {
+      protected Tuple fetchNext() throws DbException {
+        throw new DbException("broken");
+      }
+    };
+    Gather op = new Gather(children);
+    op.open();
+    try {
+      count(op);
+      fail("expected the worker's DbException");
+    } catch (DbException e) {
+      assertEquals("broken", e.getMessage());
+    }
+    op.close();
+  }
+
+  /**
+   * Unit test for a join of two Gathers with more workers than the pool
+   * has threads: the probe side's workers wait while the build side is
+   * read
+   */
+  @Test(timeout=60000) public void join() throws Exception {
+    int workers = 2 * Gather.DEFAULT_WORKERS + 2;
+    HashEquiJoin op = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        new Gather(lists(workers, 3000)), new Gather(lists(workers, 3000)));
+    op.open();
+    assertEquals(3000 * workers * workers, count(op));
+    op.close();
+  }
+
+  /**
+   * Unit test for the planner scanning a big table with Gather
+   */
+  @Test(timeout=60000) public void parallelPlan() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 100000, 1000, null, tuples, "c");
+    Database.getCatalog().addTable(f, "t");
+    TableStats.setTableStats("t", new TableStats(f.getId(), 101));
+
+    ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+    int cut = 500;
+    for (ArrayList<Integer> t : tuples) {
+      if (t.get(0) < cut)
+        expected.add(new ArrayList<Integer>(t.subList(1, 2)));
+    }
+
+    LogicalPlan lp = new LogicalPlan();
+    lp.setScanWorkers(3);
+    lp.addScan(f.getId(), "t");
+    lp.addFilter("t.c0", Predicate.Op.LESS_THAN, "" + cut);
+    lp.addProjectField("t.c1", null);
+    TransactionId tid = new TransactionId();
+    DbIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(plan instanceof Gather);
+    assertEquals(3, ((Gather) plan).getChildren().length);
+    assertTrue(((Gather) plan).getChildren()[0] instanceof Project);
+    SystemTestUtil.matchTuples(plan, expected);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(GatherTest.class);
+  }
+}
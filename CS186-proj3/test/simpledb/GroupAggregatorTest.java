@@ -0,0 +1,138 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class GroupAggregatorTest extends SimpleDbTestBase {
+
+  static final int ROWS = 20000;
+  static final Aggregator.Op[] OPS = new Aggregator.Op[] {
+    Aggregator.Op.COUNT, Aggregator.Op.SUM, Aggregator.Op.AVG,
+    Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.COUNT };
+  static final int[] AFIELDS = new int[] { 2, 2, 2, 2, 2, 1 };
+  static final int[] GFIELDS = new int[] { 0, 1 };
+
+  Object[] rows;
+  // group (field 0, field 1) -> its aggregates, in the order of OPS
+  Map<List<Object>, List<Integer>> expected;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleList() throws Exception {
+    rows = new Object[3 * ROWS];
+    Map<List<Object>, List<Integer>> values = new HashMap<List<Object>, List<Integer>>();
+    for (int i = 0; i < ROWS; i++) {
+      rows[3 * i] = i % 97;
+      rows[3 * i + 1] = "s" + (i % 13);
+      rows[3 * i + 2] = (i * 31) % 1000 - 500;
+      List<Object> key = Arrays.asList(rows[3 * i], rows[3 * i + 1]);
+      if (!values.containsKey(key))
+        values.put(key, new ArrayList<Integer>());
+      values.get(key).add((Integer) rows[3 * i + 2]);
+    }
+
+    expected = new HashMap<List<Object>, List<Integer>>();
+    for (Map.Entry<List<Object>, List<Integer>> e : values.entrySet()) {
+      int sum = 0;
+      for (int v : e.getValue())
+        sum += v;
+      int n = e.getValue().size();
+      expected.put(e.getKey(), Arrays.asList(n, sum, sum / n,
+          Collections.min(e.getValue()), Collections.max(e.getValue()), n));
+    }
+  }
+
+  /**
+   * Check that it returns exactly the expected groups and aggregates
+   */
+  private void checkGroups(DbIterator it) throws Exception {
+    Map<List<Object>, List<Integer>> actual = new HashMap<List<Object>, List<Integer>>();
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      List<Object> key = Arrays.<Object>asList(((IntField) t.getField(0)).getValue(),
+          ((StringField) t.getField(1)).getValue());
+      List<Integer> aggs = new ArrayList<Integer>();
+      for (int a = 0; a < OPS.length; a++)
+        aggs.add(((IntField) t.getField(2 + a)).getValue());
+      assertTrue(actual.put(key, aggs) == null);
+    }
+    assertEquals(expected, actual);
+  }
+
+  private GroupAggregator aggregate(int memoryGroups) throws Exception {
+    GroupAggregator agg = new GroupAggregator(TestUtil.createTupleList(3, rows)
+        .getTupleDesc(), GFIELDS, AFIELDS, OPS, memoryGroups);
+    DbIterator scan = TestUtil.createTupleList(3, rows);
+    while (scan.hasNext())
+      agg.mergeTupleIntoGroup(scan.next());
+    return agg;
+  }
+
+  /**
+   * Unit test for many aggregates over a composite key held in memory
+   */
+  @Test public void inMemory() throws Exception {
+    GroupAggregator agg = aggregate(GroupAggregator.DEFAULT_MEMORY_GROUPS);
+    assertFalse(agg.spilled());
+    DbIterator it = agg.iterator();
+    it.open();
+    checkGroups(it);
+  }
+
+  /**
+   * Unit test for groups spilled as partial aggregates, and merged a
+   * partition at a time
+   */
+  @Test public void spilled() throws Exception {
+    GroupAggregator agg = aggregate(200);
+    assertTrue(agg.spilled());
+    DbIterator it = agg.iterator();
+    it.open();
+    checkGroups(it);
+    it.rewind();
+    checkGroups(it);
+    it.close();
+  }
+
+  /**
+   * Unit test for spilled partitions too big to merge, which are split
+   * again
+   */
+  @Test public void splitPartitions() throws Exception {
+    DbIterator it = aggregate(4).iterator();
+    it.open();
+    checkGroups(it);
+    it.close();
+  }
+
+  /**
+   * Unit test for Aggregate spilling, and reopened
+   */
+  @Test public void spilledOperator() throws Exception {
+    Aggregate op = new Aggregate(TestUtil.createTupleList(3, rows), AFIELDS, OPS,
+        GFIELDS, 100);
+    op.open();
+    checkGroups(op);
+    op.close();
+    op.open();
+    checkGroups(op);
+    op.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(GroupAggregatorTest.class);
+  }
+}
@@ -126,6 +126,45 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Test IntegerAggregator over many groups, interleaved with a second
+   * aggregator that must not share its groups
+   */
+  @Test public void manyGroups() throws Exception {
+    int groups = 5000;
+    int[] values = new int[2 * 3 * groups];
+    int[] sums = new int[2 * groups];
+    int[] maxes = new int[2 * groups];
+    for (int i = 0; i < 3 * groups; i++) {
+      int g = (i * 7919) % groups - groups / 2;
+      values[2 * i] = g;
+      values[2 * i + 1] = i;
+    }
+    for (int g = 0; g < groups; g++) {
+      int key = (g * 7919) % groups - groups / 2;
+      sums[2 * g] = maxes[2 * g] = key;
+      sums[2 * g + 1] = 3 * g + 3 * groups;
+      maxes[2 * g + 1] = g + 2 * groups;
+    }
+
+    IntegerAggregator sum = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
+    IntegerAggregator max = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.MAX);
+    DbIterator scan = TestUtil.createTupleList(width1, values);
+    scan.open();
+    while (scan.hasNext()) {
+      Tuple t = scan.next();
+      sum.mergeTupleIntoGroup(t);
+      max.mergeTupleIntoGroup(t);
+    }
+
+    DbIterator it = sum.iterator();
+    it.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(width1, sums), it);
+    it = max.iterator();
+    it.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(width1, maxes), it);
+  }
+
   /**
    * Test IntegerAggregator.iterator() for DbIterator behaviour
    */
@@ -161,6 +161,33 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
 		Assert.assertEquals(Boolean.TRUE, ret[0]);
 	}
 
+	/**
+	 * Verify that equality joins of large inputs are planned as hash joins,
+	 * range joins as sort-merge joins, and other joins as nested loops
+	 */
+	@Test public void chooseAlgorithmTest() throws ParsingException {
+		TransactionId tid = new TransactionId();
+		Parser p = new Parser();
+		JoinOptimizer jo = new JoinOptimizer(p.generateLogicalPlan(tid, "SELECT * FROM " + tableName1 + " t1, " + tableName2 + " t2 WHERE t1.c1 = t2.c2;"),
+				new Vector<LogicalJoinNode>());
+		LogicalJoinNode equalsJoinNode = new LogicalJoinNode(tableName1, tableName2, Integer.toString(1), Integer.toString(2), Predicate.Op.EQUALS);
+		LogicalJoinNode gtJoinNode = new LogicalJoinNode(tableName1, tableName2, Integer.toString(1), Integer.toString(2), Predicate.Op.GREATER_THAN);
+		LogicalJoinNode neJoinNode = new LogicalJoinNode(tableName1, tableName2, Integer.toString(1), Integer.toString(2), Predicate.Op.NOT_EQUALS);
+
+		Assert.assertEquals(LogicalJoinNode.Algorithm.HASH,
+				jo.chooseAlgorithm(equalsJoinNode, 1000, 10000, 100.0, 1000.0));
+		Assert.assertEquals(LogicalJoinNode.Algorithm.SORT_MERGE,
+				jo.chooseAlgorithm(gtJoinNode, 1000, 10000, 100.0, 1000.0));
+		Assert.assertEquals(LogicalJoinNode.Algorithm.NESTED_LOOPS,
+				jo.chooseAlgorithm(neJoinNode, 1000, 10000, 100.0, 1000.0));
+		// a hash join costs far less than the nested loops it replaces
+		Assert.assertTrue(jo.estimateJoinCost(equalsJoinNode, 1000, 10000, 100.0, 1000.0)
+				< jo.estimateJoinCost(neJoinNode, 1000, 10000, 100.0, 1000.0) / 100);
+		// and a range join reads fewer pairs than nested loops compare
+		Assert.assertTrue(jo.estimateJoinCost(gtJoinNode, 1000, 10000, 100.0, 1000.0)
+				< jo.estimateJoinCost(neJoinNode, 1000, 10000, 100.0, 1000.0));
+	}
+
 	/**
 	 * Verify that the join cardinalities produced by estimateJoinCardinality() are reasonable
 	 */
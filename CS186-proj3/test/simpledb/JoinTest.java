@@ -1,6 +1,7 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
@@ -105,6 +106,178 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for BlockNestedLoopJoin.getNext() with blocks of two outer
+   * tuples, so the inner is scanned once per block
+   */
+  @Test public void blockGtJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+    int twoTuples = 2 * Utility.getTupleDesc(width1).getSize();
+    Join op = new BlockNestedLoopJoin(pred, scan1, scan2, twoTuples);
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    assertEquals(11, count);
+    gtJoin.open();
+    TestUtil.matchAllTuples(gtJoin, op);
+  }
+
+  /**
+   * Unit test for BlockNestedLoopJoin.rewind()
+   */
+  @Test public void blockRewind() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    Join op = new BlockNestedLoopJoin(pred, scan1, scan2, 1);
+    op.open();
+    while (op.hasNext()) {
+      assertNotNull(op.next());
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+    op.rewind();
+
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+  }
+
+  /**
+   * Unit test for HashEquiJoin.getNext()
+   */
+  @Test public void hashEqJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2);
+    op.open();
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+  }
+
+  /**
+   * Unit test for HashEquiJoin.rewind()
+   */
+  @Test public void hashRewind() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2);
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      assertNotNull(op.next());
+      count++;
+    }
+    assertEquals(3, count);
+    op.rewind();
+    while (op.hasNext()) {
+      op.next();
+      count--;
+    }
+    assertEquals(0, count);
+  }
+
+  /**
+   * Unit test for HashEquiJoin when the build side does not fit in memory
+   * and both children are partitioned into spill files
+   */
+  @Test public void hashSpillJoin() throws Exception {
+    int[] left = new int[2 * 300];
+    int[] right = new int[3 * 200];
+    for (int i = 0; i < 300; i++) {
+      left[2 * i] = i % 40;
+      left[2 * i + 1] = i;
+    }
+    for (int i = 0; i < 200; i++) {
+      right[3 * i] = i % 50;
+    }
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    DbIterator nl = new BlockNestedLoopJoin(pred,
+        TestUtil.createTupleList(2, left), TestUtil.createTupleList(3, right));
+    HashEquiJoin op = new HashEquiJoin(pred,
+        TestUtil.createTupleList(2, left), TestUtil.createTupleList(3, right), 10);
+    nl.open();
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    // keys 0..39 each appear 7 or 8 times on the left and 4 times on the right
+    assertEquals(300 * 4, count);
+    // asking again after the last spilled partition still finds nothing
+    assertFalse(op.hasNext());
+    assertFalse(op.hasNext());
+    TestUtil.matchAllTuples(nl, op);
+    op.close();
+  }
+
+  private static int count(DbIterator op) throws Exception {
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    op.close();
+    return count;
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getNext() using = and &gt; predicates
+   */
+  @Test public void sortMergeJoin() throws Exception {
+    JoinPredicate eq = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(eq, scan1, scan2);
+    op.open();
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+    op.close();
+
+    JoinPredicate gt = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+    op = new SortMergeJoin(gt, scan1, scan2);
+    assertEquals(11, count(op));
+    op.open();
+    gtJoin.open();
+    TestUtil.matchAllTuples(gtJoin, op);
+  }
+
+  /**
+   * Unit test for SortMergeJoin with duplicate join values, unsorted
+   * children sorted externally, and every ordering predicate
+   */
+  @Test public void sortMergeSpillJoin() throws Exception {
+    int[] left = new int[2 * 300];
+    int[] right = new int[3 * 200];
+    for (int i = 0; i < 300; i++) {
+      left[2 * i] = (i * 7) % 40;
+      left[2 * i + 1] = i;
+    }
+    for (int i = 0; i < 200; i++) {
+      right[3 * i] = (i * 13) % 50;
+    }
+    Predicate.Op[] ops = { Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+        Predicate.Op.LESS_THAN_OR_EQ, Predicate.Op.GREATER_THAN,
+        Predicate.Op.GREATER_THAN_OR_EQ };
+    for (Predicate.Op o : ops) {
+      JoinPredicate pred = new JoinPredicate(0, o, 0);
+      int expected = count(new BlockNestedLoopJoin(pred,
+          TestUtil.createTupleList(2, left), TestUtil.createTupleList(3, right)));
+      SortMergeJoin op = new SortMergeJoin(pred,
+          TestUtil.createTupleList(2, left), TestUtil.createTupleList(3, right),
+          false, false, 2);
+      assertEquals(o.toString(), expected, count(op));
+    }
+  }
+
+  /**
+   * Unit test for SortMergeJoin over children that are already sorted
+   */
+  @Test public void sortMergeSortedJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2, true, true, 1);
+    op.open();
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,122 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LimitTest extends SimpleDbTestBase {
+
+  /**
+   * Unit test for Limit returning the first tuples of its child
+   */
+  @Test public void limit() throws Exception {
+    Limit op = new Limit(3, TestUtil.createTupleList(1, new int[] { 5, 1, 4, 2, 3 }));
+    op.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(1, new int[] { 5, 1, 4 }), op);
+    op.rewind();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(1, new int[] { 5, 1, 4 }), op);
+    op.close();
+
+    op = new Limit(0, TestUtil.createTupleList(1, new int[] { 5, 1 }));
+    op.open();
+    assertEquals(false, op.hasNext());
+    op.close();
+  }
+
+  /**
+   * Unit test for Limit reading no more of its child than it returns
+   */
+  @Test public void stopsEarly() throws Exception {
+    TestUtil.MockScan scan = new TestUtil.MockScan(0, 1000, 1);
+    Limit op = new Limit(5, scan);
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    assertEquals(5, count);
+    assertEquals(5, ((IntField) scan.next().getField(0)).getValue());
+    op.close();
+  }
+
+  /**
+   * Unit test for OrderBy with a limit, kept in a heap or sorted
+   * externally
+   */
+  @Test public void topN() throws Exception {
+    int[] values = new int[] { 5, 0, 1, 1, 4, 2, 1, 3, 3, 4, 2, 5 };
+    int[] top = new int[] { 1, 1, 1, 3, 2, 5 };
+    int[] bottom = new int[] { 5, 0, 4, 2, 3, 4 };
+
+    OrderBy op = new OrderBy(0, true, TestUtil.createTupleList(2, values), 100, 3);
+    op.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(2, top), op);
+    op.rewind();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(2, top), op);
+    op.close();
+
+    op = new OrderBy(0, false, TestUtil.createTupleList(2, values), 100, 3);
+    op.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(2, bottom), op);
+    op.close();
+
+    // a limit over the memory budget falls back to the external sort
+    op = new OrderBy(0, true, TestUtil.createTupleList(2, values), 2, 3);
+    op.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(2, top), op);
+    op.close();
+  }
+
+  private static void assertStripped(String sql, int limit, String stripped)
+      throws Exception {
+    Parser.LimitedStatement st = Parser.stripLimit(sql);
+    assertEquals(stripped, st.sql);
+    assertEquals(limit, st.limit);
+  }
+
+  /**
+   * Unit test for the Parser recognizing a LIMIT clause
+   */
+  @Test public void parseLimit() throws Exception {
+    assertStripped("SELECT * FROM t ORDER BY t.a LIMIT 10;", 10,
+        "SELECT * FROM t ORDER BY t.a;");
+    assertStripped("select * from t limit 0\n", 0, "select * from t");
+    assertStripped("SELECT * FROM t;", Limit.NO_LIMIT, "SELECT * FROM t;");
+    assertStripped("SELECT * FROM t WHERE t.a = 'it''s' LIMIT 3;\n", 3,
+        "SELECT * FROM t WHERE t.a = 'it''s';\n");
+
+    // LIMIT inside a string is part of the string
+    String quoted = "SELECT * FROM t WHERE t.name = 'x LIMIT 5';";
+    assertStripped(quoted, Limit.NO_LIMIT, quoted);
+    quoted = "SELECT * FROM t WHERE t.name = 'x'' LIMIT 5';";
+    assertStripped(quoted, Limit.NO_LIMIT, quoted);
+    // only the first statement is looked at
+    assertStripped("SELECT * FROM t; SELECT * FROM u LIMIT 2;", Limit.NO_LIMIT,
+        "SELECT * FROM t; SELECT * FROM u LIMIT 2;");
+  }
+
+  /**
+   * Unit test for the Parser reading one statement at a time from a stream
+   */
+  @Test public void readStatement() throws Exception {
+    InputStream is = new ByteArrayInputStream(
+        "SELECT * FROM t WHERE t.a = ';' LIMIT 1;\nSELECT * FROM u".getBytes("UTF-8"));
+    assertEquals("SELECT * FROM t WHERE t.a = ';' LIMIT 1;", Parser.readStatement(is));
+    assertEquals("\nSELECT * FROM u", Parser.readStatement(is));
+    assertEquals("", Parser.readStatement(is));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LimitTest.class);
+  }
+}
@@ -0,0 +1,277 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LockingTest extends TestUtil.CreateHeapFile {
+    private static final int TIMEOUT = 100;
+
+    private PageId p0, p1;
+    private TransactionId tid1, tid2;
+    private BufferPool bp;
+
+    /**
+     * Create a table with two pages and two transactions to lock them.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 505; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(2, empty.numPages());
+        bp = Database.getBufferPool();
+        bp.transactionComplete(tid);
+
+        p0 = new HeapPageId(empty.getId(), 0);
+        p1 = new HeapPageId(empty.getId(), 1);
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+    }
+
+    /**
+     * Start a thread requesting pid for tid and report whether it got the
+     * lock within TIMEOUT milliseconds.
+     */
+    private TestUtil.LockGrabber grab(TransactionId tid, PageId pid, Permissions perm)
+        throws Exception {
+        TestUtil.LockGrabber t = new TestUtil.LockGrabber(tid, pid, perm);
+        t.start();
+        Thread.sleep(TIMEOUT);
+        return t;
+    }
+
+    @Test public void sharedLocksAreCompatible() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        assertTrue(grab(tid2, p0, Permissions.READ_ONLY).acquired());
+        assertTrue(bp.holdsLock(tid1, p0));
+        assertTrue(bp.holdsLock(tid2, p0));
+    }
+
+    @Test public void exclusiveLockBlocksUntilComplete() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        TestUtil.LockGrabber t = grab(tid2, p0, Permissions.READ_ONLY);
+        assertFalse(t.acquired());
+        assertEquals(1, bp.getLockManager().getConflicts());
+
+        bp.transactionComplete(tid1);
+        assertFalse(bp.holdsLock(tid1, p0));
+        t.join(TIMEOUT);
+        assertTrue(t.acquired());
+    }
+
+    @Test public void upgrade() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        assertFalse(grab(tid2, p0, Permissions.READ_ONLY).acquired());
+    }
+
+    @Test public void releasePage() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        bp.getPage(tid1, p1, Permissions.READ_WRITE);
+        bp.releasePage(tid1, p0);
+        assertFalse(bp.holdsLock(tid1, p0));
+        assertTrue(bp.holdsLock(tid1, p1));
+        assertTrue(grab(tid2, p0, Permissions.READ_WRITE).acquired());
+    }
+
+    /**
+     * Two transactions that each wait for the other's page: the one that
+     * closes the cycle is aborted and the other proceeds.
+     */
+    @Test public void deadlockAbortsVictim() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        bp.getPage(tid2, p1, Permissions.READ_WRITE);
+
+        TestUtil.LockGrabber t1 = grab(tid1, p1, Permissions.READ_WRITE);
+        assertFalse(t1.acquired());
+        TestUtil.LockGrabber t2 = grab(tid2, p0, Permissions.READ_WRITE);
+        t2.join(TIMEOUT);
+        assertTrue(t2.getError() instanceof TransactionAbortedException);
+        assertEquals(1, bp.getLockManager().getDeadlocks());
+
+        // the grabber aborted tid2, which releases p1
+        t1.join(TIMEOUT);
+        assertTrue(t1.acquired());
+    }
+
+    /**
+     * A lock granted after a wait is still held against later requests.
+     */
+    @Test public void grantedAfterWait() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        TestUtil.LockGrabber t = grab(tid2, p0, Permissions.READ_WRITE);
+        assertFalse(t.acquired());
+        bp.transactionComplete(tid1);
+        t.join(TIMEOUT);
+        assertTrue(t.acquired());
+        assertFalse(grab(new TransactionId(), p0, Permissions.READ_ONLY).acquired());
+    }
+
+    /**
+     * Both holders of a shared lock asking to upgrade deadlock.
+     */
+    @Test public void upgradeDeadlock() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        bp.getPage(tid2, p0, Permissions.READ_ONLY);
+
+        TestUtil.LockGrabber t1 = grab(tid1, p0, Permissions.READ_WRITE);
+        TestUtil.LockGrabber t2 = grab(tid2, p0, Permissions.READ_WRITE);
+        t2.join(TIMEOUT);
+        assertTrue(t2.getError() instanceof TransactionAbortedException);
+        t1.join(TIMEOUT);
+        assertTrue(t1.acquired());
+    }
+
+    /**
+     * Two Gather workers of one transaction blocked on different holders:
+     * each holder that then waits for the transaction closes a cycle.
+     */
+    @Test public void gatherWorkersWaitApart() throws Exception {
+        HeapFile a = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        HeapFile b = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        HeapFile c = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        PageId pc = new HeapPageId(c.getId(), 0);
+        TransactionId tid3 = new TransactionId();
+        bp.getPage(tid2, new HeapPageId(a.getId(), 0), Permissions.READ_WRITE);
+        bp.getPage(tid3, new HeapPageId(b.getId(), 0), Permissions.READ_WRITE);
+        bp.getPage(tid1, pc, Permissions.READ_ONLY);
+
+        // scans over morsels lock their first page when a worker reads it
+        Gather op = new Gather(new DbIterator[] {
+            new SeqScan(tid1, a.getId(), "a", new Morsels(a)),
+            new SeqScan(tid1, b.getId(), "b", new Morsels(b)) });
+        op.open();
+        Thread.sleep(TIMEOUT);
+        assertEquals(2, bp.getLockManager().getConflicts());
+
+        TestUtil.LockGrabber t3 = grab(tid3, pc, Permissions.READ_WRITE);
+        t3.join(TIMEOUT);
+        assertTrue(t3.getError() instanceof TransactionAbortedException);
+        // the worker tid3 held up has its page now, and the other still waits
+        TestUtil.LockGrabber t2 = grab(tid2, pc, Permissions.READ_WRITE);
+        t2.join(TIMEOUT);
+        assertTrue(t2.getError() instanceof TransactionAbortedException);
+        assertEquals(2, bp.getLockManager().getDeadlocks());
+
+        int n = 0;
+        while (op.hasNext()) {
+            op.next();
+            n++;
+        }
+        assertEquals(20, n);
+        op.close();
+    }
+
+    /**
+     * Insert a tuple for tid in a new thread and report whether it
+     * finished within TIMEOUT milliseconds.
+     */
+    private Thread insert(final TransactionId tid, final int value) throws Exception {
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(value, 2));
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        t.start();
+        t.join(TIMEOUT);
+        return t;
+    }
+
+    /**
+     * Two transactions can insert into the same page at once, each
+     * holding only its own tuple exclusively.
+     */
+    @Test public void tupleLocksShareAPage() throws Exception {
+        bp.insertTuple(tid1, empty.getId(), Utility.getHeapTuple(-1, 2));
+        assertFalse(insert(tid2, -2).isAlive());
+
+        assertTrue(bp.holdsLock(tid1, p1));
+        assertTrue(bp.holdsLock(tid2, p1));
+        assertEquals(0, bp.getLockManager().getConflicts());
+    }
+
+    /**
+     * A page read lock keeps tuple writers out of the page.
+     */
+    @Test public void pageReadBlocksTupleWrite() throws Exception {
+        bp.getPage(tid1, p1, Permissions.READ_ONLY);
+        Thread t = insert(tid2, -2);
+        assertTrue(t.isAlive());
+
+        bp.transactionComplete(tid1);
+        t.join(TIMEOUT);
+        assertFalse(t.isAlive());
+    }
+
+    /**
+     * Past the threshold, a transaction's tuple locks on a page become
+     * one page lock.
+     */
+    @Test public void escalateToPage() throws Exception {
+        int saved = LockManager.pageEscalation;
+        LockManager.pageEscalation = 4;
+        try {
+            HeapPage page = (HeapPage) bp.getPage(tid1, p0, Permissions.READ_ONLY);
+            bp.transactionComplete(tid1);
+            tid1 = new TransactionId();
+            LockManager lm = bp.getLockManager();
+            long before = lm.getEscalations();
+            int deleted = 0;
+            java.util.Iterator<Tuple> it = page.iterator();
+            while (deleted < 5) {
+                bp.deleteTuple(tid1, it.next());
+                deleted++;
+            }
+            assertEquals(before + 1, lm.getEscalations());
+            // the table IX and page X locks
+            assertEquals(2, lm.locksHeld(tid1));
+            assertFalse(grab(tid2, p0, Permissions.READ_ONLY).acquired());
+        } finally {
+            LockManager.pageEscalation = saved;
+        }
+    }
+
+    /**
+     * Locking a tuple tid already holds, or upgrading it, does not count
+     * towards escalation.
+     */
+    @Test public void relockDoesNotEscalate() throws Exception {
+        int saved = LockManager.pageEscalation;
+        LockManager.pageEscalation = 4;
+        try {
+            LockManager lm = bp.getLockManager();
+            long before = lm.getEscalations();
+            RecordId rid = new RecordId(p0, 0);
+            for (int i = 0; i < 10; i++)
+                lm.acquireTuple(tid1, rid, Permissions.READ_ONLY);
+            lm.acquireTuple(tid1, rid, Permissions.READ_WRITE);
+            lm.acquireTuple(tid1, rid, Permissions.READ_WRITE);
+            for (int i = 1; i < 4; i++)
+                lm.acquireTuple(tid1, new RecordId(p0, i), Permissions.READ_ONLY);
+            assertEquals(before, lm.getEscalations());
+            // the table, page and four tuple locks
+            assertEquals(6, lm.locksHeld(tid1));
+
+            lm.acquireTuple(tid1, new RecordId(p0, 4), Permissions.READ_ONLY);
+            assertEquals(before + 1, lm.getEscalations());
+        } finally {
+            LockManager.pageEscalation = saved;
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockingTest.class);
+    }
+}
@@ -0,0 +1,138 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+  static final int ROWS = 20000;
+
+  int[] values;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleLists() throws Exception {
+    Random r = new Random(186);
+    values = new int[2 * ROWS];
+    for (int i = 0; i < ROWS; i++) {
+      values[2 * i] = r.nextInt(1000);
+      values[2 * i + 1] = i;
+    }
+  }
+
+  /**
+   * Check that op returns all ROWS tuples, ordered on field 0, with ties
+   * in their original order
+   */
+  private void checkSorted(DbIterator op, boolean asc) throws Exception {
+    int count = 0;
+    Tuple prev = null;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      if (prev != null) {
+        int a = ((IntField) prev.getField(0)).getValue();
+        int b = ((IntField) t.getField(0)).getValue();
+        assertTrue(asc ? a <= b : a >= b);
+        if (a == b) {
+          assertTrue(((IntField) prev.getField(1)).getValue()
+              < ((IntField) t.getField(1)).getValue());
+        }
+      }
+      prev = t;
+      count++;
+    }
+    assertEquals(ROWS, count);
+  }
+
+  /**
+   * Unit test for OrderBy sorting in memory
+   */
+  @Test public void sortInMemory() throws Exception {
+    OrderBy op = new OrderBy(0, true, TestUtil.createTupleList(2, values));
+    op.open();
+    checkSorted(op, true);
+    op.close();
+  }
+
+  /**
+   * Unit test for OrderBy sorting externally, with more runs than are
+   * merged at once
+   */
+  @Test public void sortExternal() throws Exception {
+    OrderBy op = new OrderBy(0, false, TestUtil.createTupleList(2, values),
+        ROWS / (2 * ExternalSort.MERGE_FAN_IN));
+    op.open();
+    checkSorted(op, false);
+    op.rewind();
+    checkSorted(op, false);
+    op.close();
+  }
+
+  /**
+   * Unit test for ExternalSort sorting the runs of one buffer on several
+   * threads
+   */
+  @Test public void sortParallelRuns() throws Exception {
+    final Thread main = Thread.currentThread();
+    int threads = ExternalSort.sortThreads;
+    ExternalSort.sortThreads = 4;
+    try {
+      // the threads other than this one that compare tuples
+      final Set<Thread> sorters = Collections.synchronizedSet(new HashSet<Thread>());
+      final TupleComparator byField0 = new TupleComparator(0, true);
+      Comparator<Tuple> c = new Comparator<Tuple>() {
+        public int compare(Tuple t1, Tuple t2) {
+          if (Thread.currentThread() != main)
+            sorters.add(Thread.currentThread());
+          return byField0.compare(t1, t2);
+        }
+      };
+      ExternalSort sort = new ExternalSort(TestUtil.createTupleList(2, values), c, ROWS / 2);
+      for (int i = 0; i < 2; i++) {
+        sort.open();
+        assertEquals(8, sort.numRuns());
+        checkSorted(sort, true);
+        sort.close();
+      }
+      // every run was sorted on the pool Gather's workers share
+      assertFalse(sorters.isEmpty());
+      for (Thread t : sorters) {
+        assertTrue(t instanceof ForkJoinWorkerThread);
+        assertTrue(((ForkJoinWorkerThread) t).getPool() == Gather.pool);
+      }
+    } finally {
+      ExternalSort.sortThreads = threads;
+    }
+  }
+
+  /**
+   * Unit test for OrderBy closed and opened again
+   */
+  @Test public void reopen() throws Exception {
+    OrderBy op = new OrderBy(0, true, TestUtil.createTupleList(2, values), 1000);
+    op.open();
+    checkSorted(op, true);
+    op.close();
+    op.open();
+    checkSorted(op, true);
+    op.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OrderByTest.class);
+  }
+}
@@ -0,0 +1,155 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SegmentedLogTest extends SimpleDbTestBase {
+
+    private static final long SEGMENT = 64;
+    private File dir;
+    private File control;
+
+    @Before public void createDir() throws IOException {
+        dir = File.createTempFile("seglog", "");
+        dir.delete();
+        dir.mkdir();
+        control = new File(dir, "log");
+    }
+
+    @After public void deleteDir() {
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    private int segmentFiles() {
+        return dir.listFiles().length - 1; // minus the control file
+    }
+
+    /**
+     * Values written across segment boundaries read back at the same LSNs,
+     * also after reopening.
+     */
+    @Test public void writeAcrossSegments() throws IOException {
+        SegmentedLog log = new SegmentedLog(control, SEGMENT, false);
+        for (long i = 0; i < 100; i++)
+            log.writeLong(i);
+        log.force();
+        assertEquals(800, log.length());
+        assertEquals(13, segmentFiles());
+
+        log.seek(8 * 57);
+        assertEquals(57, log.readLong());
+        log.close();
+
+        log = new SegmentedLog(control, 4096, false);
+        assertEquals(SEGMENT, log.segmentSize);
+        assertEquals(800, log.length());
+        log.seek(8 * 99);
+        assertEquals(99, log.readLong());
+        log.close();
+    }
+
+    /**
+     * Truncation deletes whole segments only, and LSNs are unchanged.
+     */
+    @Test public void truncateBefore() throws IOException {
+        SegmentedLog log = new SegmentedLog(control, SEGMENT, false);
+        for (long i = 0; i < 100; i++)
+            log.writeLong(i);
+
+        log.truncateBefore(8 * 20);
+        assertEquals(2 * SEGMENT, log.firstLSN());
+        assertEquals(11, segmentFiles());
+        log.seek(8 * 20);
+        assertEquals(20, log.readLong());
+
+        log.seek(0);
+        try {
+            log.readLong();
+            fail("read before the first LSN should fail");
+        } catch (java.io.EOFException e) {
+            // expected
+        }
+        log.close();
+    }
+
+    /**
+     * The checkpoint LSN survives reopening; setLength cuts off the tail.
+     */
+    @Test public void checkpointAndSetLength() throws IOException {
+        SegmentedLog log = new SegmentedLog(control, SEGMENT, false);
+        for (long i = 0; i < 100; i++)
+            log.writeLong(i);
+        log.setCheckpoint(8 * 42);
+        log.setLength(8 * 30 + 4);
+        assertEquals(8 * 30 + 4, log.length());
+        log.force();
+        log.close();
+
+        log = new SegmentedLog(control, SEGMENT, true);
+        assertEquals(8 * 42, log.getCheckpoint());
+        assertEquals(8 * 30 + 4, log.length());
+        log.close();
+    }
+
+    /**
+     * Appends are buffered: they are readable at once, but reach the
+     * segment files only when the log is forced.
+     */
+    @Test public void bufferedAppends() throws IOException {
+        SegmentedLog log = new SegmentedLog(control, 4096, false);
+        for (long i = 0; i < 10; i++)
+            log.writeLong(i);
+        assertEquals(0, segmentFiles());
+
+        log.seek(8 * 3);
+        assertEquals(3, log.readLong());
+        log.seek(log.length());
+        log.writeLong(10);
+        log.force();
+        assertEquals(88, new File(dir, "log.0000000000000000").length());
+
+        SegmentedLog reader = new SegmentedLog(control, 4096, true);
+        reader.seek(8 * 10);
+        assertEquals(10, reader.readLong());
+        reader.close();
+        log.close();
+    }
+
+    /**
+     * Lines read back as from a RandomAccessFile, also across segments.
+     */
+    @Test public void readLines() throws IOException {
+        SegmentedLog log = new SegmentedLog(control, SEGMENT, false);
+        StringBuilder longLine = new StringBuilder();
+        for (int i = 0; i < 100; i++)
+            longLine.append((char) ('a' + i % 26));
+        log.writeBytes("one\ntwo\r\nthree\r" + longLine + "\nlast");
+        log.seek(0);
+        assertEquals("one", log.readLine());
+        assertEquals("two", log.readLine());
+        assertEquals("three", log.readLine());
+        assertEquals(longLine.toString(), log.readLine());
+        assertEquals("last", log.readLine());
+        assertNull(log.readLine());
+        log.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SegmentedLogTest.class);
+    }
+}
@@ -0,0 +1,109 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SnapshotTest extends TestUtil.CreateHeapFile {
+    private static final int TIMEOUT = 100;
+
+    private BufferPool bp;
+
+    /**
+     * Start with one committed tuple in the table.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.getBufferPool();
+        Transaction t = new Transaction();
+        t.start();
+        bp.insertTuple(t.getId(), empty.getId(), Utility.getHeapTuple(1, 2));
+        t.commit();
+    }
+
+    private int count(Transaction t) throws Exception {
+        SeqScan scan = new SeqScan(t.getId(), empty.getId(), "");
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.close();
+        return n;
+    }
+
+    /**
+     * A snapshot reads past an uncommitted writer's exclusive lock and
+     * does not see its change, nor the commit that follows.
+     */
+    @Test public void ignoresLaterWrites() throws Exception {
+        Transaction snapshot = new Transaction();
+        snapshot.startSnapshot();
+
+        Transaction writer = new Transaction();
+        writer.start();
+        bp.insertTuple(writer.getId(), empty.getId(), Utility.getHeapTuple(2, 2));
+        assertEquals(1, count(snapshot));
+
+        writer.commit();
+        assertEquals(1, count(snapshot));
+        snapshot.commit();
+
+        Transaction later = new Transaction();
+        later.startSnapshot();
+        assertEquals(2, count(later));
+        later.commit();
+    }
+
+    /**
+     * A snapshot holds no locks, so a writer is not blocked by it.
+     */
+    @Test public void doesNotBlockWriters() throws Exception {
+        Transaction snapshot = new Transaction();
+        snapshot.startSnapshot();
+        assertEquals(1, count(snapshot));
+
+        PageId pid = new HeapPageId(empty.getId(), 0);
+        assertFalse(bp.holdsLock(snapshot.getId(), pid));
+        TestUtil.LockGrabber t = new TestUtil.LockGrabber(new TransactionId(), pid,
+                                                          Permissions.READ_WRITE);
+        t.start();
+        t.join(TIMEOUT);
+        assertTrue(t.acquired());
+        snapshot.commit();
+    }
+
+    /**
+     * An aborted write is never visible, and the committed version
+     * survives it.
+     */
+    @Test public void abortedWrite() throws Exception {
+        Transaction writer = new Transaction();
+        writer.start();
+        bp.insertTuple(writer.getId(), empty.getId(), Utility.getHeapTuple(2, 2));
+
+        Transaction snapshot = new Transaction();
+        snapshot.startSnapshot();
+        assertEquals(1, count(snapshot));
+        writer.abort();
+        assertEquals(1, count(snapshot));
+        snapshot.commit();
+    }
+
+    @Test(expected = DbException.class)
+    public void readOnly() throws Exception {
+        Transaction snapshot = new Transaction();
+        snapshot.startSnapshot();
+        bp.getPage(snapshot.getId(), new HeapPageId(empty.getId(), 0), Permissions.READ_WRITE);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotTest.class);
+    }
+}
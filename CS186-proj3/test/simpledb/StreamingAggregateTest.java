@@ -0,0 +1,135 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class StreamingAggregateTest extends SimpleDbTestBase {
+
+  static final Aggregator.Op[] OPS = new Aggregator.Op[] {
+    Aggregator.Op.COUNT, Aggregator.Op.SUM, Aggregator.Op.AVG,
+    Aggregator.Op.MIN, Aggregator.Op.MAX };
+  static final int[] AFIELDS = new int[] { 2, 2, 2, 2, 2 };
+
+  Object[] rows;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleList() throws Exception {
+    rows = new Object[3 * 500];
+    for (int i = 0; i < 500; i++) {
+      rows[3 * i] = i % 7;
+      rows[3 * i + 1] = "s" + (i % 3);
+      rows[3 * i + 2] = (i * 31) % 100 - 50;
+    }
+  }
+
+  /**
+   * Unit test for StreamingAggregate over sorted input, matching Aggregate
+   */
+  @Test public void sortedInput() throws Exception {
+    for (int gfield = 0; gfield < 2; gfield++) {
+      int[] gfields = new int[] { gfield };
+      Aggregate hash = new Aggregate(TestUtil.createTupleList(3, rows), AFIELDS, OPS, gfields);
+      StreamingAggregate op = new StreamingAggregate(
+          new OrderBy(gfield, false, TestUtil.createTupleList(3, rows)), AFIELDS, OPS, gfields);
+      hash.open();
+      op.open();
+      TestUtil.matchAllTuples(hash, op);
+      op.rewind();
+      hash.rewind();
+      TestUtil.matchAllTuples(hash, op);
+      op.close();
+      hash.close();
+    }
+  }
+
+  /**
+   * Unit test for StreamingAggregate returning a group as soon as it ends
+   */
+  @Test public void streams() throws Exception {
+    TestUtil.MockScan scan = new TestUtil.MockScan(0, 1000, 1);
+    StreamingAggregate op = new StreamingAggregate(scan, 0, 0, Aggregator.Op.COUNT);
+    op.open();
+    assertTrue(TestUtil.compareTuples(TestUtil.createTupleList(2, new int[] { 0, 1 }).next(),
+        op.next()));
+    // only the first tuple of the next group has been read
+    assertEquals(2, ((IntField) scan.next().getField(0)).getValue());
+    op.close();
+  }
+
+  /**
+   * Unit test for StreamingAggregate without grouping
+   */
+  @Test public void noGrouping() throws Exception {
+    StreamingAggregate op = new StreamingAggregate(TestUtil.createTupleList(3, rows),
+        AFIELDS, OPS, new int[0]);
+    Aggregate hash = new Aggregate(TestUtil.createTupleList(3, rows), AFIELDS, OPS, new int[0]);
+    op.open();
+    hash.open();
+    TestUtil.compareDbIterators(hash, op);
+    op.close();
+
+    // the COUNT of nothing is 0
+    op = new StreamingAggregate(TestUtil.createTupleList(1, new int[0]), 0,
+        Aggregator.NO_GROUPING, Aggregator.Op.COUNT);
+    op.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(1, new int[] { 0 }), op);
+    op.close();
+  }
+
+  /**
+   * Unit test for StreamingAggregate.setChildren() while open, part way
+   * through a group
+   */
+  @Test public void setChildren() throws Exception {
+    StreamingAggregate op = new StreamingAggregate(
+        TestUtil.createTupleList(2, new int[] { 1, 1, 1, 2, 2, 3 }), 1, 0,
+        Aggregator.Op.SUM);
+    op.open();
+    assertTrue(TestUtil.compareTuples(TestUtil.createTupleList(2, new int[] { 1, 3 }).next(),
+        op.next()));
+    DbIterator child = TestUtil.createTupleList(2, new int[] { 5, 1, 5, 2, 6, 4 });
+    child.open();
+    op.setChildren(new DbIterator[] { child });
+    op.rewind();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(2, new int[] { 5, 3, 6, 4 }), op);
+    op.close();
+  }
+
+  /**
+   * Unit test for recognizing children whose groups arrive in order
+   */
+  @Test public void groupsInOrder() throws Exception {
+    DbIterator scan = TestUtil.createTupleList(3, rows);
+    assertFalse(StreamingAggregate.groupsInOrder(scan, new int[] { 0 }));
+    DbIterator sorted = new OrderBy(1, true, scan);
+    assertTrue(StreamingAggregate.groupsInOrder(sorted, new int[] { 1 }));
+    assertFalse(StreamingAggregate.groupsInOrder(sorted, new int[] { 0 }));
+    assertFalse(StreamingAggregate.groupsInOrder(sorted, new int[] { 1, 0 }));
+    assertFalse(StreamingAggregate.groupsInOrder(sorted, new int[0]));
+    assertTrue(StreamingAggregate.groupsInOrder(new Filter(
+        new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(2)), sorted), new int[] { 1 }));
+
+    DbIterator join = new SortMergeJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        TestUtil.createTupleList(3, rows), TestUtil.createTupleList(3, rows));
+    assertTrue(StreamingAggregate.groupsInOrder(join, new int[] { 0, 3 }));
+    assertFalse(StreamingAggregate.groupsInOrder(join, new int[] { 1 }));
+    assertTrue(StreamingAggregate.groupsInOrder(
+        new StreamingAggregate(join, 2, 3, Aggregator.Op.SUM), new int[] { 0 }));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(StreamingAggregateTest.class);
+  }
+}
@@ -0,0 +1,183 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TupleBatchTest extends SimpleDbTestBase {
+
+  int[] values;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleList() throws Exception {
+    values = new int[3 * 3000];
+    for (int i = 0; i < 3000; i++) {
+      values[3 * i] = i % 10;
+      values[3 * i + 1] = i;
+      values[3 * i + 2] = (i * 7) % 100;
+    }
+  }
+
+  /**
+   * @return the tuples of every batch of it, as an open iterator
+   */
+  private DbIterator batches(BatchedDbIterator it) throws Exception {
+    ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+    TupleBatch batch;
+    while ((batch = it.nextBatch()) != null) {
+      assertTrue(batch.size() > 0 && batch.size() <= TupleBatch.CAPACITY);
+      for (int k = 0; k < batch.size(); k++)
+        tuples.add(batch.getTuple(batch.row(k)));
+    }
+    assertNull(it.nextBatch());
+    DbIterator result = new TupleIterator(it.getTupleDesc(), tuples);
+    result.open();
+    return result;
+  }
+
+  /**
+   * Unit test for Filter and Project in batches, matching their tuples
+   */
+  @Test public void filterProject() throws Exception {
+    Predicate p = new Predicate(2, Predicate.Op.LESS_THAN, new IntField(30));
+    Filter rows = new Filter(p, TestUtil.createTupleList(3, values));
+    Filter batched = new Filter(p, TestUtil.createTupleList(3, values));
+    rows.open();
+    batched.open();
+    TestUtil.compareDbIterators(rows, batches(batched));
+
+    ArrayList<Integer> fields = new ArrayList<Integer>(Arrays.asList(2, 0));
+    Type[] types = new Type[] { Type.INT_TYPE, Type.INT_TYPE };
+    Project projectRows = new Project(fields, types, rows);
+    Project project = new Project(fields, types, batched);
+    projectRows.open();
+    project.open();
+    TestUtil.compareDbIterators(projectRows, batches(project));
+  }
+
+  /**
+   * Unit test for HashEquiJoin in batches, joining more tuples than fit in
+   * a batch
+   */
+  @Test public void hashJoin() throws Exception {
+    JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    int[] build = new int[] { 1, 10, 2, 20, 3, 30, 1, 11 };
+    HashEquiJoin rows = new HashEquiJoin(p, TestUtil.createTupleList(2, build),
+        TestUtil.createTupleList(3, values));
+    HashEquiJoin batched = new HashEquiJoin(p, TestUtil.createTupleList(2, build),
+        new Filter(new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(-1)),
+            TestUtil.createTupleList(3, values)));
+    rows.open();
+    batched.open();
+    TestUtil.matchAllTuples(rows, batches(batched));
+    batched.rewind();
+    rows.rewind();
+    TestUtil.matchAllTuples(rows, batches(batched));
+    batched.close();
+
+    // a build side that spills is joined a tuple at a time
+    batched = new HashEquiJoin(p, TestUtil.createTupleList(2, build),
+        TestUtil.createTupleList(3, values), 2);
+    batched.open();
+    rows.rewind();
+    TestUtil.matchAllTuples(rows, batches(batched));
+  }
+
+  /**
+   * Unit test for Aggregate reading its child in batches
+   */
+  @Test public void aggregate() throws Exception {
+    int[] afields = new int[] { 1, 2, 2 };
+    Aggregator.Op[] ops = new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.MAX,
+      Aggregator.Op.COUNT };
+    Predicate p = new Predicate(2, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(50));
+    Aggregate batched = new Aggregate(new Filter(p, TestUtil.createTupleList(3, values)),
+        afields, ops, new int[] { 0 });
+    batched.open();
+    Map<Integer, int[]> groups = new HashMap<Integer, int[]>();
+    for (int i = 0; i < 3000; i++) {
+      if (values[3 * i + 2] < 50)
+        continue;
+      int[] g = groups.get(values[3 * i]);
+      if (g == null)
+        groups.put(values[3 * i], g = new int[] { 0, 0, 0 });
+      g[0] += values[3 * i + 1];
+      g[1] = Math.max(g[1], values[3 * i + 2]);
+      g[2]++;
+    }
+    int[] expected = new int[4 * groups.size()];
+    int n = 0;
+    for (Map.Entry<Integer, int[]> e : groups.entrySet()) {
+      expected[n++] = e.getKey();
+      for (int v : e.getValue())
+        expected[n++] = v;
+    }
+    TestUtil.matchAllTuples(TestUtil.createTupleList(4, expected), batches(batched));
+  }
+
+  /**
+   * Unit test for SeqScan in batches, keeping the tuples' record ids
+   */
+  @Test public void seqScan() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 2500, null, tuples);
+    TransactionId tid = new TransactionId();
+    SeqScan scan = new SeqScan(tid, f.getId(), "t");
+    scan.open();
+    DbIterator it = batches(scan);
+    int n = 0;
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      assertEquals(f.getId(), t.getRecordId().getPageId().getTableId());
+      n++;
+    }
+    assertEquals(2500, n);
+    SystemTestUtil.matchTuples(it, tuples);
+    scan.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Unit test for SeqScan.nextBatch() before open and after close
+   */
+  @Test public void seqScanNotOpen() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+    TransactionId tid = new TransactionId();
+    SeqScan scan = new SeqScan(tid, f.getId(), "t");
+    try {
+      scan.nextBatch();
+      fail("expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    scan.open();
+    assertEquals(10, scan.nextBatch().size());
+    scan.close();
+    try {
+      scan.nextBatch();
+      fail("expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TupleBatchTest.class);
+  }
+}
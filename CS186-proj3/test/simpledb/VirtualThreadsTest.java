@@ -0,0 +1,100 @@
+package simpledb;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+/**
+ * The virtual thread tests only run on a JVM with virtual threads (Java
+ * 21 or later); on older ones they pass without checking anything, and
+ * only the platform thread fallback is tested.
+ */
+public class VirtualThreadsTest extends SimpleDbTestBase {
+
+    @After public void enable() {
+        VirtualThreads.enabled = true;
+    }
+
+    private static boolean isVirtual(Thread t) throws Exception {
+        try {
+            Method m = Thread.class.getMethod("isVirtual");
+            return (Boolean) m.invoke(t);
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Without virtual threads, or with them disabled, the factory makes
+     * daemon platform threads and SqlServer() a pool of DEFAULT_WORKERS.
+     */
+    @Test public void platformFallback() throws Exception {
+        VirtualThreads.enabled = false;
+        assertFalse(VirtualThreads.isActive());
+        Thread t = VirtualThreads.factory("fallback-").newThread(new Runnable() {
+            public void run() {
+            }
+        });
+        assertFalse(isVirtual(t));
+        assertTrue(t.isDaemon());
+        assertEquals("fallback-0", t.getName());
+
+        SqlServer server = new SqlServer();
+        assertEquals(SqlServer.DEFAULT_WORKERS, server.maxWorkers());
+        server.close();
+    }
+
+    /**
+     * Where the JVM has them, the factory makes virtual threads, enough of
+     * them blocked at once to exhaust any platform thread pool, and
+     * SqlServer() allows MAX_VIRTUAL_WORKERS sessions at once.
+     */
+    @Test(timeout=20000) public void virtualThreads() throws Exception {
+        Assume.assumeTrue(VirtualThreads.isSupported());
+        assertTrue(VirtualThreads.isActive());
+
+        final int THREADS = 10000;
+        final CountDownLatch started = new CountDownLatch(THREADS);
+        final CountDownLatch release = new CountDownLatch(1);
+        ThreadFactory f = VirtualThreads.factory("virtual-");
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            threads[i] = f.newThread(new Runnable() {
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            assertTrue(isVirtual(threads[i]));
+            threads[i].start();
+        }
+        started.await();
+        release.countDown();
+        for (Thread t : threads)
+            t.join();
+
+        SqlServer server = new SqlServer();
+        assertEquals(SqlServer.MAX_VIRTUAL_WORKERS, server.maxWorkers());
+        server.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(VirtualThreadsTest.class);
+    }
+}
@@ -2,7 +2,9 @@ package simpledb.systemtest;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import simpledb.*;
@@ -113,6 +115,65 @@ public class AggregateTest extends SimpleDbTestBase {
         doAggregate(Aggregator.Op.AVG, Aggregator.NO_GROUPING);
     }
 
+    private static final Aggregator.Op[] ALL_OPS = new Aggregator.Op[] {
+        Aggregator.Op.COUNT, Aggregator.Op.SUM, Aggregator.Op.MAX,
+        Aggregator.Op.MIN, Aggregator.Op.AVG };
+
+    /** Compute ALL_OPS over column 1, grouped by columns 0 and 2: each
+        result is the two group values, then the aggregates. */
+    private ArrayList<ArrayList<Integer>> aggregateAll(ArrayList<ArrayList<Integer>> tuples) {
+        HashMap<List<Integer>, ArrayList<Integer>> values = new HashMap<List<Integer>, ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            List<Integer> key = Arrays.asList(t.get(0), t.get(2));
+            if (!values.containsKey(key)) values.put(key, new ArrayList<Integer>());
+            values.get(key).add(t.get(1));
+        }
+
+        ArrayList<ArrayList<Integer>> results = new ArrayList<ArrayList<Integer>>();
+        for (Map.Entry<List<Integer>, ArrayList<Integer>> e : values.entrySet()) {
+            ArrayList<Integer> result = new ArrayList<Integer>(e.getKey());
+            for (Aggregator.Op op : ALL_OPS)
+                result.add(computeAggregate(e.getValue(), op));
+            results.add(result);
+        }
+        return results;
+    }
+
+    @Test public void testManyAggregates()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> createdTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, ROWS, 8, null, createdTuples);
+
+        TransactionId tid = new TransactionId();
+        SeqScan ss = new SeqScan(tid, table.getId(), "");
+        Aggregate ag = new Aggregate(ss, new int[] { 1, 1, 1, 1, 1 }, ALL_OPS,
+                new int[] { 0, 2 });
+        SystemTestUtil.matchTuples(ag, aggregateAll(createdTuples));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testManyAggregatesQuery() throws Exception {
+        ArrayList<ArrayList<Integer>> createdTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, ROWS, 8, null, createdTuples, "c");
+        Database.getCatalog().addTable(table, "agg");
+        TableStats.setTableStats("agg", new TableStats(table.getId(), 1));
+
+        // the select list puts the group fields in the other order
+        ArrayList<ArrayList<Integer>> expected = aggregateAll(createdTuples);
+        for (ArrayList<Integer> row : expected)
+            row.add(0, row.remove(1));
+
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT agg.c2, agg.c0, COUNT(*), SUM(agg.c1), MAX(agg.c1), MIN(agg.c1), AVG(agg.c1)"
+                + " FROM agg GROUP BY agg.c0, agg.c2;");
+        DbIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        SystemTestUtil.matchTuples(plan, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(AggregateTest.class);
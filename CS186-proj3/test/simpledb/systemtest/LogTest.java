@@ -0,0 +1,349 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import simpledb.*;
+
+public class LogTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    private Tuple makeTuple(int value) {
+        Tuple t = new Tuple(Utility.getTupleDesc(COLUMNS));
+        for (int i = 0; i < COLUMNS; i++)
+            t.setField(i, new IntField(value));
+        return t;
+    }
+
+    private ArrayList<Integer> makeList(int value) {
+        ArrayList<Integer> list = new ArrayList<Integer>();
+        for (int i = 0; i < COLUMNS; i++)
+            list.add(value);
+        return list;
+    }
+
+    /** Insert a tuple, flush it (so it is logged), then abort. */
+    @Test public void testAbortFlushedInsert()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, tuples);
+
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), table.getId(), makeTuple(-1));
+        Database.getBufferPool().flushAllPages();
+        t.abort();
+
+        SystemTestUtil.matchTuples(table, tuples);
+    }
+
+    /** An aborted transaction must not undo an earlier committed one. */
+    @Test public void testAbortAfterCommit()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, tuples);
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        Database.getBufferPool().insertTuple(t1.getId(), table.getId(), makeTuple(-1));
+        t1.commit();
+        tuples.add(makeList(-1));
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        Database.getBufferPool().insertTuple(t2.getId(), table.getId(), makeTuple(-2));
+        Database.getBufferPool().flushAllPages();
+        Database.getBufferPool().insertTuple(t2.getId(), table.getId(), makeTuple(-3));
+        Database.getBufferPool().flushAllPages();
+        t2.abort();
+
+        SystemTestUtil.matchTuples(table, tuples);
+    }
+
+    /** Unflushed changes of an aborted transaction are simply dropped. */
+    @Test public void testAbortUnflushed()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, tuples);
+
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), table.getId(), makeTuple(-1));
+        t.abort();
+
+        SystemTestUtil.matchTuples(table, tuples);
+    }
+
+    /** @return the total size of the log's segment files */
+    private long logBytes() {
+        long total = 0;
+        for (File f : new File("log").getAbsoluteFile().getParentFile().listFiles()) {
+            if (f.getName().startsWith("log."))
+                total += f.length();
+        }
+        return total;
+    }
+
+    /** A single-tuple change is logged as a slot delta, not two pages. */
+    @Test public void testDeltaRecordSize()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, tuples);
+
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), table.getId(), makeTuple(-1));
+        Database.getBufferPool().flushAllPages();
+        assertTrue(logBytes() < BufferPool.PAGE_SIZE);
+        t.abort();
+
+        SystemTestUtil.matchTuples(table, tuples);
+    }
+
+    /** Changing most of a page falls back to full images. */
+    @Test public void testAbortManySlots()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, tuples);
+
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 400; i++)
+            Database.getBufferPool().insertTuple(t.getId(), table.getId(), makeTuple(-i));
+        Database.getBufferPool().flushAllPages();
+        assertTrue(logBytes() > 2 * BufferPool.PAGE_SIZE);
+        t.abort();
+
+        SystemTestUtil.matchTuples(table, tuples);
+    }
+
+    /** Two transactions share a page; undoing one keeps the other's tuple. */
+    @Test public void testAbortSharedPage()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, tuples);
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        Transaction t2 = new Transaction();
+        t2.start();
+        Database.getBufferPool().insertTuple(t1.getId(), table.getId(), makeTuple(-1));
+        Database.getBufferPool().insertTuple(t2.getId(), table.getId(), makeTuple(-2));
+        assertEquals(1, table.numPages());
+        Database.getBufferPool().flushAllPages();
+        t1.abort();
+        t2.commit();
+        tuples.add(makeList(-2));
+
+        SystemTestUtil.matchTuples(table, tuples);
+    }
+
+    /** Simulate a crash: drop all in-memory state, reopen the tables and
+        the log from disk and run recovery. */
+    private HeapFile[] crashAndRecover(HeapFile... tables) throws IOException {
+        Database.reset();
+        HeapFile[] reopened = new HeapFile[tables.length];
+        for (int i = 0; i < tables.length; i++)
+            reopened[i] = Utility.openHeapFile(COLUMNS, tables[i].getFile());
+        Database.getLogFile().recover();
+        return reopened;
+    }
+
+    private byte[] readFile(File f) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(f, "r");
+        byte[] data = new byte[(int) in.length()];
+        in.readFully(data);
+        in.close();
+        return data;
+    }
+
+    private void writeFile(File f, byte[] data) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(f, "rw");
+        out.setLength(0);
+        out.write(data);
+        out.close();
+    }
+
+    /** Flushed changes of a transaction that never finished are undone. */
+    @Test public void testRecoverUndoesLoser()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, tuples);
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        Database.getBufferPool().insertTuple(t1.getId(), table.getId(), makeTuple(-1));
+        t1.commit();
+        tuples.add(makeList(-1));
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        Database.getBufferPool().insertTuple(t2.getId(), table.getId(), makeTuple(-2));
+        Database.getBufferPool().flushAllPages();
+
+        SystemTestUtil.matchTuples(crashAndRecover(table)[0], tuples);
+    }
+
+    /** A loser's tuples are undone without touching a winner's tuples on
+        the same page. */
+    @Test public void testRecoverSharedPage()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, tuples);
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        Transaction t2 = new Transaction();
+        t2.start();
+        Database.getBufferPool().insertTuple(t1.getId(), table.getId(), makeTuple(-1));
+        Database.getBufferPool().insertTuple(t2.getId(), table.getId(), makeTuple(-2));
+        t2.commit();
+        tuples.add(makeList(-2));
+
+        SystemTestUtil.matchTuples(crashAndRecover(table)[0], tuples);
+    }
+
+    /** Committed changes whose page writes were lost are redone. */
+    @Test public void testRecoverRedoesWinner()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, tuples);
+        byte[] original = readFile(table.getFile());
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        Database.getBufferPool().insertTuple(t1.getId(), table.getId(), makeTuple(-1));
+        t1.commit();
+        tuples.add(makeList(-1));
+
+        // lose the data file write, keeping only the log
+        writeFile(table.getFile(), original);
+
+        SystemTestUtil.matchTuples(crashAndRecover(table)[0], tuples);
+    }
+
+    /** A loser that was active at a checkpoint is still undone, and work
+        committed after the checkpoint survives. */
+    @Test public void testRecoverAcrossCheckpoint()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, tuples);
+        HeapFile other = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null,
+                new ArrayList<ArrayList<Integer>>());
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        Database.getBufferPool().insertTuple(t1.getId(), other.getId(), makeTuple(-1));
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logCheckpoint();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        Database.getBufferPool().insertTuple(t2.getId(), table.getId(), makeTuple(-2));
+        t2.commit();
+        tuples.add(makeList(-2));
+
+        HeapFile[] recovered = crashAndRecover(table, other);
+        SystemTestUtil.matchTuples(recovered[0], tuples);
+
+        // t1's insert into the other table was rolled back
+        Transaction t3 = new Transaction();
+        t3.start();
+        SeqScan scan = new SeqScan(t3.getId(), recovered[1].getId(), "");
+        scan.open();
+        while (scan.hasNext()) {
+            assertTrue(((IntField) scan.next().getField(0)).getValue() != -1);
+        }
+        scan.close();
+        t3.commit();
+    }
+
+    /** Redo starts before a fuzzy checkpoint for pages whose table file
+        had not been forced when it was taken. */
+    @Test public void testRecoverFromDirtyPageTable()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, tuples);
+        byte[] original = readFile(table.getFile());
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        Database.getBufferPool().insertTuple(t1.getId(), table.getId(), makeTuple(-1));
+        t1.commit();
+        tuples.add(makeList(-1));
+        Database.getLogFile().logCheckpoint();
+
+        // the write was never forced, so it may be lost
+        writeFile(table.getFile(), original);
+
+        SystemTestUtil.matchTuples(crashAndRecover(table)[0], tuples);
+    }
+
+    /** Forcing the table files lets truncation drop committed work from
+        the log without losing it. */
+    @Test public void testRecoverAfterSyncAndTruncate()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, tuples);
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        Database.getBufferPool().insertTuple(t1.getId(), table.getId(), makeTuple(-1));
+        t1.commit();
+        tuples.add(makeList(-1));
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        Database.getBufferPool().insertTuple(t2.getId(), table.getId(), makeTuple(-2));
+        Database.getBufferPool().flushAllPages();
+
+        LogFile log = Database.getLogFile();
+        log.syncDataFiles();
+        log.logCheckpoint();
+        log.logTruncate();
+
+        SystemTestUtil.matchTuples(crashAndRecover(table)[0], tuples);
+    }
+
+    /** Concurrent committers share forces and all of them return. */
+    @Test public void testGroupCommit() throws Exception {
+        final int THREADS = 8;
+        final int COMMITS = 20;
+        final ArrayList<Exception> errors = new ArrayList<Exception>();
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < COMMITS; j++) {
+                            Transaction t = new Transaction();
+                            t.start();
+                            t.commit();
+                        }
+                    } catch (Exception e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+
+        assertTrue(errors.isEmpty());
+        LogFile log = Database.getLogFile();
+        assertEquals(2 * THREADS * COMMITS, log.getTotalRecords());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(LogTest.class);
+    }
+}
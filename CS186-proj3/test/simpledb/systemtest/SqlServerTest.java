@@ -0,0 +1,161 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+public class SqlServerTest extends SimpleDbTestBase {
+    private static final int ROWS = 5000;
+
+    private SqlServer server;
+    private int port;
+
+    /** Serve a table "t" of ROWS two-column rows. */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        HeapFile t = SystemTestUtil.createRandomHeapFile(2, ROWS, null,
+                new ArrayList<ArrayList<Integer>>(), "c");
+        Database.getCatalog().addTable(t, "t");
+        TableStats.setTableStats("t", new TableStats(t.getId(), 101));
+
+        server = new SqlServer(4);
+        port = server.bind(0).getPort();
+    }
+
+    @After public void tearDown() {
+        server.close();
+    }
+
+    private int count(SqlClient client, String sql) throws Exception {
+        client.execute(sql);
+        int n = 0;
+        while (client.hasNext()) {
+            client.next();
+            n++;
+        }
+        assertEquals(n, client.getRowCount());
+        return n;
+    }
+
+    /** A result bigger than one frame arrives whole. */
+    @Test(timeout=20000) public void streamsResult() throws Exception {
+        SqlClient client = new SqlClient("localhost", port);
+        TupleDesc td = client.execute("SELECT * FROM t;");
+        assertEquals(2, td.numFields());
+        assertEquals(Type.INT_TYPE, td.getFieldType(0));
+        int n = 0;
+        while (client.hasNext()) {
+            assertNotNull(client.next().getField(1));
+            n++;
+        }
+        assertEquals(ROWS, n);
+        client.close();
+    }
+
+    /** A failed statement is reported, and the session carries on. */
+    @Test(timeout=20000) public void reportsErrors() throws Exception {
+        SqlClient client = new SqlClient("localhost", port);
+        try {
+            client.execute("SELECT * FROM missing;");
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        assertEquals(ROWS, count(client, "SELECT * FROM t;"));
+        client.close();
+    }
+
+    /** A LIMIT caps the rows returned, with or without an ORDER BY. */
+    @Test(timeout=20000) public void limitsRows() throws Exception {
+        SqlClient client = new SqlClient("localhost", port);
+        assertEquals(10, count(client, "SELECT * FROM t LIMIT 10;"));
+        assertEquals(10, count(client, "SELECT * FROM t ORDER BY t.c0 LIMIT 10;"));
+        assertEquals(ROWS, count(client, "SELECT * FROM t LIMIT " + (ROWS + 1) + ";"));
+        client.close();
+    }
+
+    /** Each session has its own transaction; one rolled back or abandoned
+        leaves no trace. */
+    @Test(timeout=20000) public void sessionTransactions() throws Exception {
+        SqlClient a = new SqlClient("localhost", port);
+        SqlClient b = new SqlClient("localhost", port);
+
+        a.execute("SET TRANSACTION READ WRITE;");
+        assertEquals(1, count(a, "INSERT INTO t VALUES (1, 1);"));
+        a.execute("ROLLBACK;");
+        assertEquals(ROWS, count(b, "SELECT * FROM t;"));
+
+        assertEquals(1, count(b, "INSERT INTO t VALUES (2, 2);"));
+        assertEquals(ROWS + 1, count(a, "SELECT * FROM t;"));
+
+        a.execute("SET TRANSACTION READ WRITE;");
+        count(a, "INSERT INTO t VALUES (3, 3);");
+        a.close();
+        assertEquals(ROWS + 1, count(b, "SELECT * FROM t;"));
+        b.close();
+    }
+
+    /** Many sessions can run queries at once. */
+    @Test(timeout=60000) public void concurrentSessions() throws Exception {
+        final int SESSIONS = 8;
+        final int[] counts = new int[SESSIONS];
+        Thread[] threads = new Thread[SESSIONS];
+        for (int i = 0; i < SESSIONS; i++) {
+            final int session = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        SqlClient client = new SqlClient("localhost", port);
+                        counts[session] = count(client, "SELECT * FROM t WHERE t.c0 > 0;");
+                        client.close();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        counts[session] = -1;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < SESSIONS; i++) {
+            threads[i].join();
+            assertTrue(counts[i] > 0);
+            assertEquals(counts[0], counts[i]);
+        }
+    }
+
+    /** Many more sessions than worker threads can be open and waiting
+        at once, with each session's threads made as it needs them. */
+    @Test(timeout=60000) public void manySessions() throws Exception {
+        final int SESSIONS = 200;
+        SqlServer shared = new SqlServer();
+        try {
+            int sharedPort = shared.bind(0).getPort();
+            SqlClient[] clients = new SqlClient[SESSIONS];
+            for (int i = 0; i < SESSIONS; i++) {
+                clients[i] = new SqlClient("localhost", sharedPort);
+                clients[i].execute("SELECT * FROM t;");
+            }
+            for (int i = 0; i < SESSIONS; i++) {
+                int n = 0;
+                while (clients[i].hasNext()) {
+                    clients[i].next();
+                    n++;
+                }
+                assertEquals(ROWS, n);
+                clients[i].close();
+            }
+        } finally {
+            shared.close();
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SqlServerTest.class);
+    }
+}